@@ -16,6 +16,7 @@
 from java.io import File
 import sys
 from de.csbdresden.csbdeep.commands import GenericNetwork
+from de.csbdresden.csbdeep.commands import GenericBatchNetwork
 
 def getFileName(path):
 	fileparts = path.split("/")
@@ -56,9 +57,15 @@ else:
 	if(output == input):
 		print("ERROR: please provide an output directory that is not the same as the input directory")
 		sys.exit()
-	directory = File(input);
-	listOfFilesInFolder = directory.listFiles();
-
-	for file in listOfFilesInFolder:
-		if file.toString().endswith(".tif"):
-			runNetwork(file.toString(), output + getFileName(file.toString()))
+	command.run(GenericBatchNetwork, False,
+		"inputDirectory", File(input),
+		"outputDirectory", File(output),
+		"fileExtensions", ".tif",
+		"nTiles", nTiles,
+		"overlap", overlap,
+		"normalizeInput", normalizeInput,
+		"percentileBottom", percentileBottom,
+		"percentileTop", percentileTop,
+		"clip", clip,
+		"showProgressDialog", showProgressDialog,
+		"modelFile", modelFile).get()
@@ -0,0 +1,419 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.csbdeep.commands;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.scijava.Context;
+import org.scijava.ItemIO;
+import org.scijava.command.Command;
+import org.scijava.command.CommandModule;
+import org.scijava.command.CommandService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.service.Service;
+import org.scijava.widget.Button;
+
+import de.csbdresden.csbdeep.io.DatasetOutputProcessor;
+import de.csbdresden.csbdeep.io.OutputProcessor;
+import de.csbdresden.csbdeep.normalize.DefaultInputNormalizer;
+import io.scif.services.DatasetIOService;
+import net.imagej.Dataset;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Runs a network on all images of a folder and saves the results into another
+ * folder. The model is loaded once. While the network processes one image,
+ * the next one is read and normalized and the result of the previous one is
+ * written, so at most three images are held in memory. A file which cannot be
+ * read, processed or written is reported and skipped.
+ * <p>
+ * With several images processed at the same time, each image is run by a
+ * {@link GenericNetwork} with the settings of this command. The runs share the
+ * loaded model, with micro-batching their tiles are combined into one network
+ * call, which pays off for many small images.
+ * </p>
+ * <p>
+ * The {@code input} parameter is not used, the command is meant to be called
+ * headless and without preprocessing, e.g. from a script with
+ * {@code command.run(GenericBatchNetwork, False, ...)}.
+ * </p>
+ */
+@Plugin(type = Command.class, headless = true)
+public class GenericBatchNetwork extends GenericCoreNetwork {
+
+	@Parameter(label = "Input folder", style = "directory")
+	protected File inputDirectory;
+
+	@Parameter(label = "Output folder", style = "directory")
+	protected File outputDirectory;
+
+	@Parameter(label = "File extensions (comma separated)")
+	protected String fileExtensions = ".tif,.tiff";
+
+	@Parameter(label = "Skip files which already have an output")
+	protected boolean skipExisting = false;
+
+	@Parameter(label = "Images processed at the same time", min = "1",
+		persist = false)
+	protected int parallelImages = 1;
+
+	@Parameter
+	private DatasetIOService datasetIOService;
+
+	@Parameter
+	private CommandService commandService;
+
+	private Dataset currentOutput;
+	private boolean modelPrepared;
+	protected final List<String> failures = new ArrayList<>();
+	protected int processed;
+	protected final AtomicLong inferenceMillis = new AtomicLong();
+
+	static class Prefetched {
+
+		final Dataset input;
+		final Dataset normalizedInput;
+
+		Prefetched(final Dataset input, final Dataset normalizedInput) {
+			this.input = input;
+			this.normalizedInput = normalizedInput;
+		}
+	}
+
+	private static class InFlight {
+
+		private final File file;
+		private final Future<Dataset> result;
+
+		InFlight(final File file, final Future<Dataset> result) {
+			this.file = file;
+			this.result = result;
+		}
+	}
+
+	@Override
+	protected OutputProcessor initOutputProcessor() {
+		return new DatasetOutputProcessor(datasetService);
+	}
+
+	@Override
+	protected void computeOutput(
+		final List<RandomAccessibleInterval<FloatType>> output)
+	{
+		currentOutput = (Dataset) outputProcessor.run(output, network
+			.getOutputNode());
+	}
+
+	@Override
+	public void run() {
+
+		if(isCanceled()) return;
+		final long startTime = System.currentTimeMillis();
+
+		if(!checkDirectories()) return;
+		final List<File> files = getInputFiles();
+		if(files.isEmpty()) {
+			log("No files ending with " + fileExtensions + " in " + inputDirectory);
+			return;
+		}
+
+		final ExecutorService reader = Executors.newSingleThreadExecutor();
+		final ExecutorService inference = Executors.newFixedThreadPool(Math.max(
+			1, parallelImages));
+		final ExecutorService writer = Executors.newSingleThreadExecutor();
+		final Deque<InFlight> inFlight = new ArrayDeque<>();
+		failures.clear();
+		processed = 0;
+		inferenceMillis.set(0);
+		modelPrepared = false;
+		try {
+			Future<Prefetched> next = reader.submit(() -> read(files.get(0)));
+			Future<?> writing = null;
+			for (int i = 0; i < files.size() && !isCanceled(); i++) {
+				final File file = files.get(i);
+				Prefetched current = null;
+				try {
+					current = next.get();
+				} catch (ExecutionException e) {
+					failures.add(file.getName() + ": " + getMessage(e.getCause()));
+				}
+				// read the next image while this one is processed
+				if(i + 1 < files.size()) {
+					final File nextFile = files.get(i + 1);
+					next = reader.submit(() -> read(nextFile));
+				}
+				if(current == null) continue;
+
+				log("Processing " + file.getName() + " (" + (i + 1) + " of " +
+					files.size() + ")");
+				final Prefetched image = current;
+				inFlight.add(new InFlight(file, inference.submit(() -> parallelImages > 1
+					? runWorker(image) : runHere(file, image))));
+				// only one result waits for the disk while the next images are processed
+				while(inFlight.size() >= Math.max(1, parallelImages)) {
+					writing = finish(inFlight.poll(), writing, writer);
+				}
+			}
+			while(!inFlight.isEmpty()) {
+				writing = finish(inFlight.poll(), writing, writer);
+			}
+			waitFor(writing);
+		} catch (InterruptedException e) {
+			log("CSBDeep batch canceled.");
+		} finally {
+			reader.shutdownNow();
+			inference.shutdownNow();
+			writer.shutdown();
+			dispose();
+		}
+
+		logSummary(files.size(), System.currentTimeMillis() - startTime);
+
+	}
+
+	/**
+	 * Runs the network of this command on the image. The model is loaded with
+	 * the first image.
+	 */
+	protected Dataset runHere(final File file, final Prefetched image) {
+		final long start = System.currentTimeMillis();
+		try {
+			input = image.input;
+			if(!modelPrepared) {
+				modelPrepared = prepareModel();
+				if(!modelPrepared) {
+					throw new IllegalStateException("the network could not be loaded or does not fit the image");
+				}
+			} else if(!checkInput()) {
+				throw new IllegalArgumentException("the image does not fit the network");
+			}
+			currentOutput = null;
+			runNetwork(image.normalizedInput);
+			if(currentOutput == null) {
+				throw new IllegalStateException("the network run failed");
+			}
+			inferenceMillis.addAndGet(System.currentTimeMillis() - start);
+			return currentOutput;
+		} finally {
+			input = null;
+			currentOutput = null;
+		}
+	}
+
+	/**
+	 * Runs a {@link GenericNetwork} with the settings of this command on the
+	 * image. Several of them run at the same time and share the loaded model.
+	 */
+	private Dataset runWorker(final Prefetched image) throws Exception {
+		final long start = System.currentTimeMillis();
+		final Map<String, Object> inputs = getWorkerInputs();
+		inputs.put("input", image.normalizedInput);
+		inputs.put("normalizeInput", false);
+		inputs.put("showProgressDialog", false);
+		final CommandModule module = commandService.run(GenericNetwork.class,
+			false, inputs).get();
+		final Dataset result = (Dataset) module.getOutput("output");
+		if(result == null) throw new IllegalStateException("the network run failed");
+		inferenceMillis.addAndGet(System.currentTimeMillis() - start);
+		return result;
+	}
+
+	/**
+	 * @return the values of the network parameters of this command
+	 */
+	private Map<String, Object> getWorkerInputs() throws IllegalAccessException {
+		final Map<String, Object> inputs = new HashMap<>();
+		for (Field field : GenericCoreNetwork.class.getDeclaredFields()) {
+			final Parameter parameter = field.getAnnotation(Parameter.class);
+			if(parameter == null || parameter.type() == ItemIO.OUTPUT) continue;
+			final Class<?> type = field.getType();
+			if(Service.class.isAssignableFrom(type) || Context.class.equals(type) ||
+				Button.class.equals(type)) continue;
+			field.setAccessible(true);
+			final Object value = field.get(this);
+			if(value != null) inputs.put(field.getName(), value);
+		}
+		return inputs;
+	}
+
+	/**
+	 * Waits for the network result of an image and hands it to the writer, once
+	 * the previous result is written.
+	 */
+	private Future<?> finish(final InFlight image, final Future<?> writing,
+		final ExecutorService writer) throws InterruptedException
+	{
+		final Dataset result;
+		try {
+			result = image.result.get();
+		} catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if(!(cause instanceof IllegalArgumentException ||
+				cause instanceof IllegalStateException)) cause.printStackTrace();
+			failures.add(image.file.getName() + ": " + getMessage(cause));
+			return writing;
+		}
+		waitFor(writing);
+		final File outputFile = getOutputFile(image.file);
+		return submitWrite(writer, image.file, () -> write(result, outputFile));
+	}
+
+	/**
+	 * Checks that the input folder exists and creates the output folder.
+	 */
+	protected boolean checkDirectories() {
+		if(inputDirectory == null || !inputDirectory.isDirectory()) {
+			error("Input folder " + inputDirectory + " does not exist");
+			return false;
+		}
+		if(outputDirectory == null || outputDirectory.getAbsoluteFile().equals(
+			inputDirectory.getAbsoluteFile()))
+		{
+			error("Please choose an output folder which is not the input folder");
+			return false;
+		}
+		if(!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+			error("Could not create output folder " + outputDirectory);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if the file is an image this command processes
+	 */
+	protected boolean isInputFile(final File file) {
+		if(!file.isFile()) return false;
+		final String name = file.getName().toLowerCase();
+		return Arrays.stream(fileExtensions.split(",")).map(String::trim).map(
+			String::toLowerCase).anyMatch(e -> !e.isEmpty() && name.endsWith(e));
+	}
+
+	private List<File> getInputFiles() {
+		final File[] candidates = inputDirectory.listFiles(this::isInputFile);
+		final List<File> files = new ArrayList<>();
+		if(candidates == null) return files;
+		Arrays.sort(candidates);
+		for (File file : candidates) {
+			if(skipExisting && getOutputFile(file).exists()) continue;
+			files.add(file);
+		}
+		return files;
+	}
+
+	protected File getOutputFile(final File inputFile) {
+		return new File(outputDirectory, inputFile.getName());
+	}
+
+	/**
+	 * Opens and normalizes an image. Runs on the reader thread with its own
+	 * normalizer, so that it does not interfere with the network run.
+	 */
+	protected Prefetched read(final File file) throws IOException {
+		final Dataset image = datasetIOService.open(file.getAbsolutePath());
+		if(!doInputNormalization()) return new Prefetched(image, image);
+		final DefaultInputNormalizer normalizer = new DefaultInputNormalizer();
+		setupNormalizer(normalizer);
+		return new Prefetched(image, normalizer.run(image, opService,
+			datasetService));
+	}
+
+	protected Void write(final Dataset result, final File file) throws IOException {
+		datasetIOService.save(result, file.getAbsolutePath());
+		return null;
+	}
+
+	/**
+	 * Writes the result of an input file on the writer thread. A failure is
+	 * reported with the name of the input file.
+	 */
+	protected Future<?> submitWrite(final ExecutorService writer,
+		final File inputFile, final Callable<Void> write)
+	{
+		return writer.submit(() -> {
+			try {
+				return write.call();
+			} catch (Exception e) {
+				throw new IOException(inputFile.getName() + ": writing failed: " +
+					getMessage(e), e);
+			}
+		});
+	}
+
+	/**
+	 * Waits until the previous result is written. Its file only counts as
+	 * processed if writing succeeded, otherwise the failure is recorded.
+	 */
+	protected void waitFor(final Future<?> writing) throws InterruptedException {
+		if(writing == null) return;
+		try {
+			writing.get();
+			processed++;
+		} catch (ExecutionException e) {
+			failures.add(getMessage(e.getCause()));
+		}
+	}
+
+	protected void logSummary(final int total, final long totalMillis) {
+		log("Processed " + processed + " of " + total + " file(s) in " +
+			totalMillis + " milliseconds");
+		if(processed > 0) {
+			log(String.format("Throughput: %.2f files per minute, %d milliseconds network time per file",
+				processed * 60000.0 / Math.max(1, totalMillis), inferenceMillis.get() /
+					processed));
+		}
+		if(!failures.isEmpty()) {
+			error(failures.size() + " file(s) failed:");
+			failures.forEach(this::error);
+		}
+	}
+
+	protected static String getMessage(final Throwable e) {
+		return e.getMessage() != null ? e.getMessage() : e.getClass()
+			.getSimpleName();
+	}
+
+}
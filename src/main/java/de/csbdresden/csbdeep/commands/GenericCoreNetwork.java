@@ -40,24 +40,42 @@ import de.csbdresden.csbdeep.network.InputMapper;
 import de.csbdresden.csbdeep.network.InputValidator;
 import de.csbdresden.csbdeep.network.ModelExecutor;
 import de.csbdresden.csbdeep.network.ModelLoader;
+import de.csbdresden.csbdeep.network.model.ExecutionProfile;
+import de.csbdresden.csbdeep.network.model.ImageTensor;
 import de.csbdresden.csbdeep.network.model.Network;
 import de.csbdresden.csbdeep.network.model.tensorflow.TensorFlowNetwork;
 import de.csbdresden.csbdeep.normalize.DefaultInputNormalizer;
+import de.csbdresden.csbdeep.normalize.HistogramPercentile;
 import de.csbdresden.csbdeep.normalize.InputNormalizer;
+import de.csbdresden.csbdeep.normalize.Normalizer;
+import de.csbdresden.csbdeep.normalize.Percentile;
+import de.csbdresden.csbdeep.normalize.PercentileNormalizer;
+import de.csbdresden.csbdeep.normalize.SketchPercentile;
 import de.csbdresden.csbdeep.task.Task;
 import de.csbdresden.csbdeep.task.TaskForceManager;
 import de.csbdresden.csbdeep.task.TaskManager;
 import de.csbdresden.csbdeep.tiling.AdvancedTiledView;
+import de.csbdresden.csbdeep.tiling.BackgroundFilter;
 import de.csbdresden.csbdeep.tiling.DefaultInputTiler;
 import de.csbdresden.csbdeep.tiling.DefaultOutputTiler;
 import de.csbdresden.csbdeep.tiling.DefaultTiling;
 import de.csbdresden.csbdeep.tiling.InputTiler;
+import de.csbdresden.csbdeep.tiling.MemoryCalibration;
 import de.csbdresden.csbdeep.tiling.OutputTiler;
+import de.csbdresden.csbdeep.tiling.TileCache;
+import de.csbdresden.csbdeep.tiling.TileCheckpoint;
+import de.csbdresden.csbdeep.tiling.TileMerger;
+import de.csbdresden.csbdeep.tiling.TileResplitter;
 import de.csbdresden.csbdeep.tiling.Tiling;
+import de.csbdresden.csbdeep.tiling.TilingPlanner;
 import de.csbdresden.csbdeep.ui.MappingDialog;
 import de.csbdresden.csbdeep.util.IOHelper;
+import de.csbdresden.csbdeep.util.MemoryHelper;
+import de.csbdresden.csbdeep.util.MemoryMonitor;
+import de.csbdresden.csbdeep.util.ModelSourceResolver;
 import net.imagej.Dataset;
 import net.imagej.DatasetService;
+import net.imagej.axis.Axes;
 import net.imagej.axis.AxisType;
 import net.imagej.ops.OpService;
 import net.imagej.tensorflow.TensorFlowService;
@@ -69,6 +87,7 @@ import org.scijava.Context;
 import org.scijava.Disposable;
 import org.scijava.Initializable;
 import org.scijava.ItemIO;
+import org.scijava.ItemVisibility;
 import org.scijava.app.StatusService;
 import org.scijava.command.Command;
 import org.scijava.log.LogService;
@@ -84,6 +103,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
@@ -107,6 +127,18 @@ public abstract class GenericCoreNetwork implements
 	@Parameter
 	protected float percentileTop = 99.8f;
 
+	@Parameter(label = "Percentile error relative to value (0 = exact)", min = "0",
+			visibility = ItemVisibility.INVISIBLE, persist = false)
+	protected float percentileError = 0;
+
+	@Parameter(label = "Percentiles from every n-th pixel", min = "1",
+			visibility = ItemVisibility.INVISIBLE, persist = false)
+	protected int percentileSampling = 1;
+
+	@Parameter(label = "Normalize tiles while gathering them (no normalized copy)",
+			visibility = ItemVisibility.INVISIBLE, persist = false)
+	protected boolean lazyNormalization = true;
+
 	protected float min = 0;
 	protected float max = 1;
 
@@ -125,6 +157,87 @@ public abstract class GenericCoreNetwork implements
 	@Parameter(label = "Batch size", min = "1")
 	protected int batchSize = 1;
 
+	@Parameter(label = "Tiles per network call (0 = automatic)", min = "0",
+			visibility = ItemVisibility.INVISIBLE, persist = false)
+	protected int tilesPerBatch = 1;
+
+	@Parameter(label = "Tile batches in flight", min = "1",
+			visibility = ItemVisibility.INVISIBLE, persist = false)
+	protected int pipelineDepth = 3;
+
+	@Parameter(label = "Concurrent network runs", min = "1",
+			visibility = ItemVisibility.INVISIBLE, persist = false)
+	protected int concurrentRuns = 1;
+
+	@Parameter(label = "Threads per network run (0 = TensorFlow default)", min = "0",
+			visibility = ItemVisibility.INVISIBLE, persist = false)
+	protected int intraOpThreads = 0;
+
+	@Parameter(label = "Parallel operations per network run (0 = TensorFlow default)", min = "0",
+			visibility = ItemVisibility.INVISIBLE, persist = false)
+	protected int interOpThreads = 0;
+
+	@Parameter(label = "Optimize network graph",
+			visibility = ItemVisibility.INVISIBLE, persist = false)
+	protected boolean graphOptimizations = true;
+
+	@Parameter(label = "Compile network graph (XLA JIT)",
+			visibility = ItemVisibility.INVISIBLE, persist = false)
+	protected boolean jitCompilation = false;
+
+	@Parameter(label = "Warm up network before the first tile",
+			visibility = ItemVisibility.INVISIBLE, persist = false)
+	protected boolean warmUp = false;
+
+	@Parameter(label = "Wait for tiles of other images to run them together (milliseconds, 0 = off)", min = "0",
+			visibility = ItemVisibility.INVISIBLE, persist = false)
+	protected int microBatchDelay = 0;
+
+	@Parameter(label = "Largest number of tiles run together", min = "1",
+			visibility = ItemVisibility.INVISIBLE, persist = false)
+	protected int microBatchSize = 16;
+
+	@Parameter(label = "Memory budget in MB (0 = available memory)", min = "0",
+			visibility = ItemVisibility.INVISIBLE, persist = false)
+	protected int memoryBudget = 0;
+
+	@Parameter(label = "Only estimate memory and time (dry run)", persist = false)
+	protected boolean dryRun = false;
+
+	@Parameter(label = "Skip tiles containing only background", persist = false)
+	protected boolean skipBackground = false;
+
+	@Parameter(label = "Background statistic",
+			visibility = ItemVisibility.INVISIBLE, persist = false)
+	protected BackgroundFilter.Statistic backgroundStatistic =
+		BackgroundFilter.Statistic.MAXIMUM;
+
+	@Parameter(label = "Background if statistic is below (normalized input)",
+			visibility = ItemVisibility.INVISIBLE, persist = false)
+	protected float backgroundThreshold = 0.1f;
+
+	@Parameter(label = "Foreground level for foreground fraction (normalized input)",
+			visibility = ItemVisibility.INVISIBLE, persist = false)
+	protected float foregroundLevel = 0.5f;
+
+	@Parameter(label = "Output value of background tiles",
+			visibility = ItemVisibility.INVISIBLE, persist = false)
+	protected float backgroundFill = 0f;
+
+	@Parameter(label = "Checkpoint directory (empty = no checkpoints)",
+			style = "directory", required = false,
+			visibility = ItemVisibility.INVISIBLE, persist = false)
+	protected File checkpointDirectory;
+
+	@Parameter(label = "Tile cache directory (empty = no cache)",
+			style = "directory", required = false,
+			visibility = ItemVisibility.INVISIBLE, persist = false)
+	protected File tileCacheDirectory;
+
+	@Parameter(label = "Tile cache size in MB", min = "1",
+			visibility = ItemVisibility.INVISIBLE, persist = false)
+	protected int tileCacheSize = 2048;
+
 	@Parameter
 	private Context context;
 
@@ -137,7 +250,7 @@ public abstract class GenericCoreNetwork implements
 	
 	private NetworkInputSourceType networkInputSourceType = NetworkInputSourceType.UNSET;
 
-	@Parameter(label = "Import model (.zip)", callback = "modelFileChanged",
+	@Parameter(label = "Import model (.zip or saved_model.pb of an unpacked model)", callback = "modelFileChanged",
 			initializer = "modelFileInitialized", persist = false, required = false)
 	private File modelFile;
 
@@ -204,6 +317,19 @@ public abstract class GenericCoreNetwork implements
 
 	private int oldNTiles;
 	private int oldBatchesSize;
+	private int oldTilesPerBatch;
+	private MemoryCalibration memoryCalibration;
+	private TilingPlanner.Plan tilingPlan;
+	private boolean outOfMemoryOccurred;
+	private List<AdvancedTiledView<FloatType>> runningTiledInput;
+	private List<String> inputFingerprints;
+
+	// stop starting new tiles if more of the heap is still in use after a
+	// garbage collection or if less physical memory is available
+	private static final double HEAP_PRESSURE_THRESHOLD = 0.9;
+	private static final long MIN_AVAILABLE_NATIVE_MEMORY = 256L * 1024 * 1024;
+	// the tile cache keeps at most this many of its most recent results on the heap
+	private static final long MAX_TILE_CACHE_HEAP = 256L * 1024 * 1024;
 
 	protected void openTFMappingDialog() {
 		threadService.run(() -> {
@@ -229,7 +355,11 @@ public abstract class GenericCoreNetwork implements
 		}
 	}
 
-	private void updateCacheName() {
+	/**
+	 * @param download if false, a model given by URL is only looked up in the
+	 *          local model cache, so that the call never waits for the network
+	 */
+	private void updateCacheName(final boolean download) {
 		switch(networkInputSourceType) {
 			case UNSET:
 			default:
@@ -239,12 +369,32 @@ public abstract class GenericCoreNetwork implements
 				if(cacheName != null) savePreferences();
 				break;
 			case URL:
-				cacheName = getUrlCacheName(this.getClass(), modelUrl);
-				if(cacheName != null) savePreferences();
+				final ModelSourceResolver.Resolution model = resolveModelUrl(download);
+				if(model != null) {
+					cacheName = IOHelper.getUrlCacheName(this.getClass(), modelUrl,
+						model.getLastModified());
+					// load the local copy, it stays usable offline
+					modelFileUrl = model.getFile().getAbsolutePath();
+					savePreferences();
+				}
 				break;
 		}
 	}
 
+	private ModelSourceResolver.Resolution resolveModelUrl(final boolean download) {
+		try {
+			final ModelSourceResolver.Resolution model = ModelSourceResolver
+				.getInstance().resolve(modelUrl, download);
+			if(model != null && !model.isCached()) {
+				log("Downloaded model " + modelUrl + " to " + model.getFile());
+			}
+			return model;
+		} catch (IOException e) {
+			error("Could not download model " + modelUrl + ": " + e.getMessage());
+			return null;
+		}
+	}
+
 	public static String getUrlCacheName(Class commandClass, String modelUrl) {
 		try {
 			return IOHelper.getUrlCacheName(commandClass, modelUrl);
@@ -263,6 +413,14 @@ public abstract class GenericCoreNetwork implements
 		}
 	}
 
+	/**
+	 * @return the path of the model file or the model URL, as given to this
+	 *         command
+	 */
+	protected String getModelSource() {
+		return modelFile != null ? modelFile.getAbsolutePath() : modelUrl;
+	}
+
 	protected void modelFileChanged() {
 		if (modelFile != null) {
 			if(modelFile.exists()) {
@@ -278,7 +436,8 @@ public abstract class GenericCoreNetwork implements
 
 	protected void modelUrlChanged() {
 		if(modelUrl != null && modelUrl.length() > new String("https://").length()) {
-			if (IOHelper.urlExists(modelUrl)) {
+			// the model is downloaded when the command runs, not in this callback
+			if (IOHelper.isUrl(modelUrl)) {
 				modelFile = null;
 				networkInputSourceType = NetworkInputSourceType.URL;
 				modelFileUrl = modelUrl;
@@ -289,7 +448,7 @@ public abstract class GenericCoreNetwork implements
 	}
 
 	protected void modelChanged() {
-		updateCacheName();
+		updateCacheName(false);
 		modelNeedsInitialization = true;
 		savePreferences();
 		if (networkInitialized) {
@@ -435,18 +594,11 @@ public abstract class GenericCoreNetwork implements
 
 	protected void mainThread() throws OutOfMemoryError {
 
-		tryToInitialize();
-		taskManager.finalizeSetup();
-		solveModelSource();
-
-		updateCacheName();
-		savePreferences();
-
-		initiateModelIfNeeded();
-		if(!networkAndInputCompatible) return;
+		if(!prepareModel()) return;
 
 		final Dataset normalizedInput;
-		if (doInputNormalization()) {
+		// the shape of the input is all a dry run needs
+		if (doInputNormalization() && !dryRun) {
 			setupNormalizer();
 			normalizedInput = inputNormalizer.run(getInput(), opService,
 					datasetService);
@@ -455,6 +607,46 @@ public abstract class GenericCoreNetwork implements
 			inputNormalizer.setFinished();
 		}
 
+		runNetwork(normalizedInput);
+
+	}
+
+	/**
+	 * Sets up the tasks, resolves and loads the model and checks the current
+	 * input against it.
+	 *
+	 * @return true if the network can be run on the input
+	 */
+	protected boolean prepareModel() {
+
+		tryToInitialize();
+		taskManager.finalizeSetup();
+		solveModelSource();
+
+		updateCacheName(true);
+		savePreferences();
+
+		return checkInput();
+
+	}
+
+	/**
+	 * Checks the current input against the loaded model and maps its axes to
+	 * the network input.
+	 *
+	 * @return true if the network can be run on the input
+	 */
+	protected boolean checkInput() {
+		initiateModelIfNeeded();
+		return networkAndInputCompatible;
+	}
+
+	/**
+	 * Tiles the normalized input, runs the network and passes the result to
+	 * {@link #computeOutput(List)}.
+	 */
+	protected void runNetwork(final Dataset normalizedInput) throws OutOfMemoryError {
+
 		final List<RandomAccessibleInterval> processedInput = inputProcessor.run(
 				normalizedInput, network);
 
@@ -463,14 +655,26 @@ public abstract class GenericCoreNetwork implements
 		log("OUTPUT NODE: ");
 		network.getOutputNode().printMapping(inputProcessor);
 
+		if(!planTiling(processedInput)) return;
 		initTiling();
 		List<AdvancedTiledView<FloatType>> tiledOutput = null;
-		try {
+		final long networkStartTime = System.currentTimeMillis();
+		try (MemoryMonitor memoryMonitor = new MemoryMonitor(
+			HEAP_PRESSURE_THRESHOLD, MIN_AVAILABLE_NATIVE_MEMORY))
+		{
+			network.setMemoryMonitor(memoryMonitor);
 			tiledOutput = tryToTileAndRunNetwork(processedInput);
+			if(memoryMonitor.wasHeapFull()) {
+				log.warn("The heap was almost full during the network run, but " +
+					"did not grow with the tiles. Consider a larger maximum heap size.");
+			}
 		} catch (ExecutionException e) {
 			e.printStackTrace();
+		} finally {
+			network.setMemoryMonitor(null);
 		}
 		if(tiledOutput != null) {
+			calibrate(System.currentTimeMillis() - networkStartTime);
 			final List<RandomAccessibleInterval<FloatType>> output;
 			if(network.getOutputNode().getTilingAllowed()) {
 				output = outputTiler.run(
@@ -482,12 +686,92 @@ public abstract class GenericCoreNetwork implements
 				obj.dispose();
 			}
 			computeOutput(output);
+			deleteCheckpoints();
 		}
 
 	}
 
 	protected abstract void computeOutput(List<RandomAccessibleInterval<FloatType>> output);
 
+	/**
+	 * Estimates the memory needed by the network run and adjusts
+	 * {@link #nTiles} and {@link #batchSize} to the memory budget. The
+	 * configured number of tiles and batch size are used as the smallest number
+	 * of tiles and the largest batch size.
+	 *
+	 * @return false if this is a dry run and the network should not be run
+	 */
+	protected boolean planTiling(final List<RandomAccessibleInterval> input) {
+		outOfMemoryOccurred = false;
+		memoryCalibration = cacheName == null ? new MemoryCalibration()
+			: MemoryCalibration.load(prefService, this.getClass(), cacheName);
+
+		final ImageTensor inputNode = network.getInputNode();
+		final AxisType[] finalInputAxes = inputNode.getFinalAxesArray();
+		final boolean tilingAllowed = inputNode.getTilingAllowed();
+		final Tiling.TilingAction[] tilingActions;
+		if(tilingAllowed) {
+			tilingActions = inputNode.getTilingActions();
+		} else {
+			tilingActions = new Tiling.TilingAction[finalInputAxes.length];
+			Arrays.fill(tilingActions, Tiling.TilingAction.NO_TILING);
+		}
+
+		final TilingPlanner planner = new TilingPlanner(blockMultiple, overlap,
+			memoryCalibration);
+		planner.setOutputScale(getOutputScale());
+		planner.setTilesPerBatch(tilesPerBatch);
+		planner.setPipelineDepth(pipelineDepth);
+		planner.setConcurrentRuns(concurrentRuns);
+		final long availableHeap = MemoryHelper.availableHeapAfterCollection();
+		final long totalBudget = memoryBudget > 0 ? memoryBudget * 1024L * 1024L
+			: availableHeap + MemoryHelper.availableNativeMemory();
+		tilingPlan = planner.plan(input, finalInputAxes, tilingActions,
+			tilingAllowed ? nTiles : 1, batchSize, Math.min(availableHeap,
+				totalBudget), totalBudget);
+
+		log("Tiling plan: " + tilingPlan);
+		if(dryRun) {
+			log("Dry run, the network is not executed.");
+			return false;
+		}
+		if(!tilingPlan.fits()) {
+			log.warn("The estimated memory of the network run exceeds the budget " +
+				"of " + MemoryHelper.toMegabytes(totalBudget) + ", no tiling fits.");
+		}
+		if(tilingAllowed && (tilingPlan.getNTiles() != nTiles || tilingPlan
+			.getBatchSize() != batchSize))
+		{
+			log("Using " + tilingPlan.getNTiles() + " tiles and batch size " +
+				tilingPlan.getBatchSize() + " to stay within the memory budget.");
+			nTiles = tilingPlan.getNTiles();
+			batchSize = tilingPlan.getBatchSize();
+		}
+		return true;
+	}
+
+	private double getOutputScale() {
+		return (double) getNodeChannels(network.getOutputNode()) /
+			getNodeChannels(network.getInputNode());
+	}
+
+	private static long getNodeChannels(final ImageTensor node) {
+		final int channelDim = node.getNodeAxes().indexOf(Axes.CHANNEL);
+		if(channelDim < 0) return 1;
+		final Long channels = node.getNodeShape()[channelDim];
+		return channels == null || channels < 1 ? 1 : channels;
+	}
+
+	/**
+	 * Refines the time estimate of the model with a successful network run.
+	 */
+	private void calibrate(final long millis) {
+		if(memoryCalibration == null || tilingPlan == null || cacheName == null
+			|| outOfMemoryOccurred) return;
+		memoryCalibration.recordRun(tilingPlan.getProcessedVoxels(), millis);
+		memoryCalibration.save(prefService, this.getClass(), cacheName);
+	}
+
 	private RandomAccessibleInterval<FloatType> getSingleTile(AdvancedTiledView<FloatType> tile) {
 		return tile.getProcessedTiles().get(0);
 	}
@@ -498,9 +782,33 @@ public abstract class GenericCoreNetwork implements
 	}
 
 	protected void setupNormalizer() {
-		((DefaultInputNormalizer) inputNormalizer).getNormalizer().setup(
-				new float[] { percentileBottom, percentileTop }, new float[] { min,
-						max }, clip);
+		setupNormalizer((DefaultInputNormalizer) inputNormalizer);
+	}
+
+	protected void setupNormalizer(final DefaultInputNormalizer normalizer) {
+		normalizer.setLazy(lazyNormalization);
+		setupNormalizer(normalizer.getNormalizer());
+	}
+
+	protected void setupNormalizer(final Normalizer normalizer) {
+		normalizer.setup(new float[] { percentileBottom, percentileTop },
+			new float[] { min, max }, clip);
+		if(normalizer instanceof PercentileNormalizer) {
+			((PercentileNormalizer) normalizer).setPercentileMethod(
+				createPercentile());
+		}
+	}
+
+	/**
+	 * @return the exact percentile computation, or a sketch approximating the
+	 *         percentiles if an error or sampling is configured
+	 */
+	protected Percentile createPercentile() {
+		if(percentileError <= 0 && percentileSampling <= 1) {
+			return new HistogramPercentile<>();
+		}
+		return new SketchPercentile<>(percentileError > 0 ? percentileError
+			: Math.pow(2, -10), percentileSampling);
 	}
 
 	protected boolean doInputNormalization() {
@@ -521,7 +829,12 @@ public abstract class GenericCoreNetwork implements
 		if(modelFileUrl.isEmpty()) {
 			taskManager.logError("Trained model file / URL is missing or unavailable");
 		}
+		restoreExecutionProfile();
+		network.setExecutionProfile(getExecutionProfile());
 		modelLoader.run(modelName, network, modelFileUrl, getInput());
+		if(network.isInitialized() && modelName != null) {
+			getExecutionProfile().save(prefService, this.getClass(), modelName);
+		}
 
 		try {
 			inputValidator.run(getInput(), network);
@@ -534,6 +847,26 @@ public abstract class GenericCoreNetwork implements
 		networkAndInputCompatible = !inputMapper.isFailed();
 	}
 
+	protected ExecutionProfile getExecutionProfile() {
+		return new ExecutionProfile(intraOpThreads, interOpThreads,
+			graphOptimizations, jitCompilation);
+	}
+
+	/**
+	 * Applies the execution profile which was last used with the current model,
+	 * unless a profile other than the default was given to the command.
+	 */
+	private void restoreExecutionProfile() {
+		if(modelName == null || !getExecutionProfile().isDefault()) return;
+		final ExecutionProfile profile = ExecutionProfile.load(prefService,
+			this.getClass(), modelName);
+		if(profile == null) return;
+		intraOpThreads = profile.getIntraOpThreads();
+		interOpThreads = profile.getInterOpThreads();
+		graphOptimizations = profile.isGraphOptimizations();
+		jitCompilation = profile.isJitCompilation();
+	}
+
 	private void savePreferences() {
 		if(modelFile != null) {
 			prefService.put(this.getClass(), modelFileKey, modelFile.getAbsolutePath());
@@ -558,20 +891,34 @@ public abstract class GenericCoreNetwork implements
 		final List<RandomAccessibleInterval> normalizedInput)
 			throws OutOfMemoryError, ExecutionException {
 		List<AdvancedTiledView<FloatType>> tiledOutput = null;
+		TileResplitter<FloatType> resplitter = null;
+		runningTiledInput = null;
+		inputFingerprints = null;
 
 		boolean isOutOfMemory = true;
 		boolean canHandleOutOfMemory = true;
 
 		while (isOutOfMemory && canHandleOutOfMemory) {
 			try {
-				tiledOutput = tileAndRunNetwork(normalizedInput);
+				if(resplitter == null) {
+					tiledOutput = tileAndRunNetwork(normalizedInput);
+				} else {
+					tiledOutput = resplitter.run(runningTiledInput, modelExecutor, network);
+				}
 				isOutOfMemory = false;
 			}
 			catch (final OutOfMemoryError e) {
 				isOutOfMemory = true;
-				canHandleOutOfMemory = tryHandleOutOfMemoryError();
+				if(resplitter == null && TileResplitter.canResume(runningTiledInput)) {
+					// keep the finished tiles, continue with the others
+					resplitter = createResplitter();
+				}
+				canHandleOutOfMemory = resplitter != null
+					? tryResplitUnfinishedTiles(resplitter)
+					: tryHandleOutOfMemoryError();
 			}
 		}
+		runningTiledInput = null;
 
 		if (isOutOfMemory) throw new OutOfMemoryError(
 			"Out of memory exception occurred. Plugin exit.");
@@ -591,9 +938,144 @@ public abstract class GenericCoreNetwork implements
 			tiledInput = input.stream().map(image -> getSingleTileView(image, finalInputAxes)).collect(Collectors.toList());
 		}
 		if(tiledInput == null) return null;
+		if(network.getOutputNode().getTilingAllowed()) {
+			// write the tile results into the output as soon as they are computed
+			final AxisType[] outputAxes = network.getOutputNode().getFinalAxesArray();
+			tiledInput.forEach(view -> view.setMerger(new TileMerger<>(view, outputAxes)));
+			attachCheckpoints(input, tiledInput, outputAxes);
+		}
+		network.setTilesPerBatch(tilesPerBatch);
+		network.setPipelineDepth(pipelineDepth);
+		network.setConcurrentRuns(concurrentRuns);
+		network.setBackgroundFilter(getBackgroundFilter());
+		network.setWarmUp(warmUp);
+		network.setMicroBatching(microBatchSize, microBatchDelay);
+		modelExecutor.setTileCache(openTileCache(), getTileCacheContext());
+		runningTiledInput = (List) tiledInput;
 		return modelExecutor.run(tiledInput, network);
 	}
 
+	/**
+	 * Stores the finished tiles in the checkpoint directory, so that an
+	 * interrupted run with the same model, input and tiling can continue.
+	 */
+	private void attachCheckpoints(final List<RandomAccessibleInterval> input,
+		final List<AdvancedTiledView> tiledInput, final AxisType[] outputAxes) {
+		if(checkpointDirectory == null || cacheName == null) return;
+		if(inputFingerprints == null) {
+			log("Computing input fingerprint for checkpoints..");
+			inputFingerprints = input.stream().map(
+				image -> TileCheckpoint.fingerprint(image)).collect(Collectors.toList());
+		}
+		for (int i = 0; i < tiledInput.size(); i++) {
+			try {
+				tiledInput.get(i).getMerger().setCheckpoint(TileCheckpoint.open(
+					checkpointDirectory, cacheName, inputFingerprints.get(i),
+					tiledInput.get(i), outputAxes));
+			} catch (IOException e) {
+				error("Could not create checkpoint in " + checkpointDirectory + ": " +
+					e.getMessage());
+			}
+		}
+	}
+
+	private TileCache openTileCache() {
+		if(tileCacheDirectory == null || cacheName == null) return null;
+		try {
+			return TileCache.open(tileCacheDirectory, tileCacheSize * 1024L * 1024L,
+				Math.min(MAX_TILE_CACHE_HEAP, Runtime.getRuntime().maxMemory() / 8));
+		} catch (IOException e) {
+			error("Could not open tile cache in " + tileCacheDirectory + ": " +
+				e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Describes everything besides the tile input a tile result depends on:
+	 * the model, the normalization including how its percentiles are computed
+	 * and the axes mapping of the network.
+	 */
+	protected String getTileCacheContext() {
+		final StringBuilder context = new StringBuilder(cacheName);
+		context.append("\nnormalization ");
+		if(doInputNormalization()) {
+			context.append(percentileBottom).append(" ").append(percentileTop)
+				.append(" ").append(min).append(" ").append(max).append(" ")
+				.append(clip);
+			context.append("\npercentiles ").append(createPercentile().getClass()
+				.getSimpleName()).append(" ").append(percentileError).append(" ")
+				.append(percentileSampling);
+			context.append("\nlazy ").append(lazyNormalization);
+		} else {
+			context.append("none");
+		}
+		context.append("\ninput axes ").append(getAxesLabels(
+			network.getInputNode().getFinalAxesArray()));
+		context.append("\noutput axes ").append(getAxesLabels(
+			network.getOutputNode().getFinalAxesArray()));
+		return context.toString();
+	}
+
+	private static String getAxesLabels(final AxisType[] axes) {
+		return Arrays.stream(axes).map(AxisType::getLabel).collect(
+			Collectors.joining(","));
+	}
+
+	/**
+	 * Removes the checkpoints of this input and model, including those of
+	 * tilings tried before the one which succeeded.
+	 */
+	private void deleteCheckpoints() {
+		if(checkpointDirectory == null || cacheName == null || inputFingerprints == null) return;
+		for (String inputFingerprint : inputFingerprints) {
+			TileCheckpoint.deleteAll(checkpointDirectory, cacheName, inputFingerprint);
+		}
+	}
+
+	protected BackgroundFilter getBackgroundFilter() {
+		if(!skipBackground) return null;
+		return new BackgroundFilter(backgroundStatistic, backgroundThreshold,
+			foregroundLevel, backgroundFill);
+	}
+
+	private TileResplitter<FloatType> createResplitter() {
+		return new TileResplitter<>(blockMultiple, overlap, batchSize,
+			network.getInputNode().getFinalAxesArray(),
+			network.getInputNode().getTilingActions(),
+			network.getOutputNode().getFinalAxesArray());
+	}
+
+	private boolean tryResplitUnfinishedTiles(final TileResplitter<FloatType> resplitter) {
+		final Task modelExecutorTask = modelExecutor;
+		recordOutOfMemory();
+		if(!resplitter.splitFurther()) {
+			modelExecutorTask.setFailed();
+			return false;
+		}
+		final long unfinished = TileResplitter.countUnfinished(runningTiledInput);
+		modelExecutorTask.logWarning(
+			"Out of memory exception occurred. Keeping the finished tiles and " +
+				"splitting each of the remaining " + unfinished + " tile(s) into " +
+				resplitter.getSubTiles() + " sub-tiles...");
+		modelExecutorTask.startNewIteration();
+		return true;
+	}
+
+	/**
+	 * If the tiling plan was expected to fit, the memory calibration of the
+	 * model was too optimistic.
+	 */
+	private void recordOutOfMemory() {
+		if(!outOfMemoryOccurred && tilingPlan != null && tilingPlan.fits() &&
+			memoryCalibration != null && cacheName != null)
+		{
+			memoryCalibration.recordOutOfMemory();
+			memoryCalibration.save(prefService, this.getClass(), cacheName);
+		}
+		outOfMemoryOccurred = true;
+	}
+
 	private AdvancedTiledView getSingleTileView(RandomAccessibleInterval image, AxisType[] finalInputAxes) {
 		long[] blockSize = new long[image.numDimensions()];
 		long[] overlap = new long[image.numDimensions()];
@@ -628,20 +1110,23 @@ public abstract class GenericCoreNetwork implements
 		// We expect it to be an out of memory exception and
 		// try it again with more tiles or smaller batches.
 		final Task modelExecutorTask = modelExecutor;
+		recordOutOfMemory();
 		nTiles = tiling.getTilesNum();
-		if(oldNTiles == nTiles && oldBatchesSize == batchSize) {
+		if(oldNTiles == nTiles && oldBatchesSize == batchSize && oldTilesPerBatch == tilesPerBatch) {
 			modelExecutorTask.setFailed();
 			return false;
 		}
 		oldNTiles = nTiles;
 		oldBatchesSize = batchSize;
+		oldTilesPerBatch = tilesPerBatch;
 
 		handleOutOfMemoryError();
 		initTiling();
 		nTiles = tiling.getTilesNum();
 		modelExecutorTask.logWarning(
 			"Out of memory exception occurred. Trying with " + nTiles +
-				" tiles, batch size " + batchSize + " and overlap " + overlap + "...");
+				" tiles, batch size " + batchSize + ", " + tilesPerBatch +
+				" tile(s) per network call and overlap " + overlap + "...");
 
 		modelExecutorTask.startNewIteration();
 		inputTiler.addIteration();
@@ -649,6 +1134,11 @@ public abstract class GenericCoreNetwork implements
 	}
 
 	protected void handleOutOfMemoryError() {
+		if (tilesPerBatch != 1) {
+			// first try to run the tiles one by one
+			tilesPerBatch = 1;
+			return;
+		}
 		batchSize /= 2;
 		if (batchSize < 1) {
 			batchSize = 1;
@@ -0,0 +1,210 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.csbdeep.commands;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import de.csbdresden.csbdeep.io.DatasetOutputProcessor;
+import de.csbdresden.csbdeep.io.DirectoryFrameSink;
+import de.csbdresden.csbdeep.io.DisplayFrameSink;
+import de.csbdresden.csbdeep.io.FrameSink;
+import de.csbdresden.csbdeep.io.OutputProcessor;
+import de.csbdresden.csbdeep.normalize.DefaultInputNormalizer;
+import de.csbdresden.csbdeep.normalize.PercentileNormalizer;
+import io.scif.services.DatasetIOService;
+import net.imagej.Dataset;
+import net.imagej.axis.Axes;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Runs a network on a time-lapse frame by frame. Each frame is normalized, run
+ * through the network and handed to the output sinks as soon as it is done:
+ * the result can be saved as one file per frame and the latest frame can be
+ * displayed. Only the current frame is held in memory besides the input, so
+ * the memory does not grow with the number of time points.
+ */
+@Plugin(type = Command.class,
+	menuPath = "Plugins>CSBDeep>Run your network frame by frame",
+	headless = true)
+public class GenericStreamingNetwork extends GenericCoreNetwork {
+
+	@Parameter(label = "Normalize each frame with its own percentiles")
+	protected boolean normalizePerFrame = false;
+
+	@Parameter(label = "Save frames to folder (empty = do not save)",
+		style = "directory", required = false)
+	protected File outputDirectory;
+
+	@Parameter(label = "Show the latest frame")
+	protected boolean showFrames = true;
+
+	@Parameter
+	private DatasetIOService datasetIOService;
+
+	private Dataset currentOutput;
+
+	@Override
+	protected OutputProcessor initOutputProcessor() {
+		return new DatasetOutputProcessor(datasetService);
+	}
+
+	@Override
+	protected void computeOutput(
+		final List<RandomAccessibleInterval<FloatType>> output)
+	{
+		currentOutput = (Dataset) outputProcessor.run(output, network
+			.getOutputNode());
+	}
+
+	@Override
+	protected void mainThread() throws OutOfMemoryError {
+
+		final Dataset series = getInput();
+		final int timeDim = series.dimensionIndex(Axes.TIME);
+		final long frames = timeDim < 0 ? 1 : series.dimension(timeDim);
+		final List<FrameSink> sinks = createSinks(series.getName(), frames);
+		if(sinks.isEmpty() && !dryRun) {
+			error("Please choose a folder to save the frames to or show the latest frame");
+			return;
+		}
+
+		// the percentiles of the whole series are computed once
+		final float[] sharedPercentiles = doInputNormalization() &&
+			!normalizePerFrame && !dryRun ? computePercentiles(series) : null;
+
+		try {
+			for (long t = 0; t < frames && !isCanceled(); t++) {
+				final long start = System.currentTimeMillis();
+				input = getFrame(series, timeDim, t);
+				if(t == 0) {
+					if(!prepareModel()) return;
+				} else if(!checkInput()) {
+					error("Frame " + t + " does not fit the network");
+					return;
+				}
+				currentOutput = null;
+				runNetwork(normalize(getInput(), sharedPercentiles));
+				if(dryRun) return;
+				if(currentOutput == null) {
+					error("Processing frame " + t + " failed");
+					return;
+				}
+				for (FrameSink sink : sinks) {
+					sink.write(t, currentOutput);
+				}
+				currentOutput = null;
+				log("Frame " + (t + 1) + " of " + frames + " done (took " + (System
+					.currentTimeMillis() - start) + " milliseconds)");
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			error("Could not write frame: " + e.getMessage());
+		} finally {
+			input = series;
+			currentOutput = null;
+			for (FrameSink sink : sinks) {
+				try {
+					sink.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+
+	}
+
+	private List<FrameSink> createSinks(final String name, final long frames) {
+		final List<FrameSink> sinks = new ArrayList<>();
+		final String baseName = name == null ? "result" : name.replaceFirst(
+			"\\.[^.]*$", "");
+		if(outputDirectory != null) {
+			sinks.add(new DirectoryFrameSink(datasetIOService, outputDirectory,
+				baseName, frames));
+		}
+		if(showFrames && !isHeadless()) {
+			sinks.add(new DisplayFrameSink(uiService, baseName + " result"));
+		}
+		return sinks;
+	}
+
+	/**
+	 * @return a view on one time point of the series, keeping the time axis
+	 *         with size one so that the axes match the whole series
+	 */
+	private Dataset getFrame(final Dataset series, final int timeDim,
+		final long t)
+	{
+		if(timeDim < 0) return series;
+		final long[] min = Intervals.minAsLongArray(series);
+		final long[] max = Intervals.maxAsLongArray(series);
+		min[timeDim] = t;
+		max[timeDim] = t;
+		final Dataset frame = datasetService.create((RandomAccessibleInterval) Views
+			.zeroMin(Views.interval(series.getImgPlus(), min, max)));
+		for (int i = 0; i < frame.numDimensions(); i++) {
+			frame.axis(i).setType(series.axis(i).type());
+		}
+		frame.setName(series.getName());
+		return frame;
+	}
+
+	private float[] computePercentiles(final Dataset series) {
+		log("Computing percentiles of all frames..");
+		return createPercentile().computePercentiles(series.getImgPlus(),
+			new float[] { percentileBottom, percentileTop }, opService);
+	}
+
+	private Dataset normalize(final Dataset frame,
+		final float[] sharedPercentiles)
+	{
+		if(!doInputNormalization() || dryRun) {
+			inputNormalizer.setFinished();
+			return frame;
+		}
+		setupNormalizer();
+		final DefaultInputNormalizer normalizer =
+			(DefaultInputNormalizer) inputNormalizer;
+		if(normalizer.getNormalizer() instanceof PercentileNormalizer) {
+			((PercentileNormalizer) normalizer.getNormalizer()).setPercentileValues(
+				sharedPercentiles);
+		}
+		return normalizer.run(frame, opService, datasetService);
+	}
+
+}
@@ -0,0 +1,226 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.csbdeep.commands;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import de.csbdresden.csbdeep.network.model.tensorflow.ModelPreloadService;
+import de.csbdresden.csbdeep.util.SettlingFileQueue;
+import de.csbdresden.csbdeep.util.SettlingFileQueue.Arrival;
+import net.imagej.Dataset;
+
+/**
+ * Watches a folder and runs the network on each image written to it, e.g. by
+ * a microscope during acquisition. A file is processed once its size and
+ * modification time have not changed for the settle time. The model is loaded
+ * when the command starts and stays loaded, so a new image only waits for the
+ * network itself. At most {@code queueSize} completed files wait for the
+ * network; further files stay on disk until there is room again. For each file
+ * the time from its completion to its saved result is reported.
+ * <p>
+ * The command runs until it is canceled or no file arrived for the idle
+ * time.
+ * </p>
+ */
+@Plugin(type = Command.class, headless = true)
+public class GenericWatchNetwork extends GenericBatchNetwork {
+
+	@Parameter(label = "Process images already in the folder")
+	protected boolean processExisting = false;
+
+	@Parameter(label = "A file is complete if unchanged for (milliseconds)", min = "0")
+	protected int settleTime = 2000;
+
+	@Parameter(label = "Largest number of files waiting for the network", min = "1")
+	protected int queueSize = 4;
+
+	@Parameter(label = "Stop if no file arrived for (minutes, 0 = never)", min = "0")
+	protected int idleTimeout = 0;
+
+	@Parameter
+	private ModelPreloadService modelPreloadService;
+
+	private static final long POLL_INTERVAL = 200;
+
+	private long startTime;
+
+	@Override
+	public void run() {
+
+		if(isCanceled()) return;
+		startTime = System.currentTimeMillis();
+		if(!checkDirectories()) return;
+
+		final String modelSource = getModelSource();
+		if(modelSource != null && !modelSource.isEmpty()) {
+			// load the model while waiting for the first file
+			modelPreloadService.preload(modelSource, getClass());
+		}
+
+		final SettlingFileQueue queue = new SettlingFileQueue(queueSize, settleTime,
+			file -> isInputFile(file) && !(skipExisting && getOutputFile(file).exists()));
+		final ExecutorService worker = Executors.newSingleThreadExecutor();
+		final ExecutorService writer = Executors.newSingleThreadExecutor();
+		failures.clear();
+		processed = 0;
+		inferenceMillis.set(0);
+		int arrived = 0;
+
+		try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+			final Path directory = inputDirectory.toPath();
+			directory.register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+			rescan(queue);
+			log("Watching " + inputDirectory + " for new images..");
+
+			final Future<?> processing = worker.submit(() -> process(queue, writer));
+			long lastArrival = System.currentTimeMillis();
+			boolean queueFull = false;
+			while(!isCanceled() && !processing.isDone()) {
+				final WatchKey key = watcher.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+				if(key != null) {
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if(event.kind() == OVERFLOW) {
+							// events were lost, look at the folder again
+							rescan(queue);
+							continue;
+						}
+						final Path path = directory.resolve((Path) event.context());
+						queue.add(path.toFile(), System.currentTimeMillis());
+					}
+					if(!key.reset()) {
+						error("Cannot watch " + inputDirectory + " anymore");
+						break;
+					}
+				}
+				final long time = System.currentTimeMillis();
+				final int moved = queue.update(time);
+				if(moved > 0) {
+					arrived += moved;
+					lastArrival = time;
+				}
+				// back-pressure: complete files wait on disk until the queue has room
+				if(queue.isFull() && !queueFull) log("Queue is full, waiting for the network..");
+				queueFull = queue.isFull();
+				if(idleTimeout > 0 && queue.isEmpty() && time -
+					lastArrival > idleTimeout * 60000L)
+				{
+					log("No new file for " + idleTimeout + " minute(s), stop watching");
+					break;
+				}
+			}
+			if(!processing.isDone()) {
+				// let the queued files finish unless canceled
+				queue.close(isCanceled());
+			}
+			processing.get();
+		} catch (InterruptedException e) {
+			log("CSBDeep watch canceled.");
+		} catch (Exception e) {
+			e.printStackTrace();
+			error("Watching " + inputDirectory + " failed: " + getMessage(e));
+		} finally {
+			worker.shutdownNow();
+			writer.shutdown();
+			dispose();
+		}
+
+		logSummary(arrived, System.currentTimeMillis() - startTime);
+
+	}
+
+	/**
+	 * Takes completed files from the queue and runs the network on them until
+	 * the queue is closed or the command is canceled.
+	 */
+	private Void process(final SettlingFileQueue queue,
+		final ExecutorService writer) throws InterruptedException
+	{
+		Future<?> writing = null;
+		while(!isCanceled()) {
+			final Arrival arrival = queue.take();
+			if(arrival == null) break;
+			final File file = arrival.getFile();
+			final long dequeued = System.currentTimeMillis();
+			final Dataset result;
+			try {
+				result = runHere(file, read(file));
+			} catch (Exception | OutOfMemoryError e) {
+				failures.add(file.getName() + ": " + getMessage(e));
+				error("Processing " + file.getName() + " failed: " + getMessage(e));
+				continue;
+			}
+			final long networkDone = System.currentTimeMillis();
+			waitFor(writing);
+			final File outputFile = getOutputFile(file);
+			writing = submitWrite(writer, file, () -> {
+				write(result, outputFile);
+				final long done = System.currentTimeMillis();
+				final long completed = arrival.getCompleted();
+				log(file.getName() + " restored " + (done - completed) +
+					" milliseconds after it was complete (waited " + (dequeued -
+						completed) + ", network " + (networkDone - dequeued) +
+					", writing " + (done - networkDone) + ", " + (completed -
+						arrival.getFirstSeen()) + " milliseconds from first seen to complete)");
+				return null;
+			});
+		}
+		waitFor(writing);
+		return null;
+	}
+
+	private void rescan(final SettlingFileQueue queue) {
+		final File[] files = inputDirectory.listFiles(this::isInputFile);
+		if(files == null) return;
+		final long now = System.currentTimeMillis();
+		for (File file : files) {
+			// files written before the start are only processed if asked for
+			if(processExisting || file.lastModified() >= startTime) {
+				queue.add(file, now);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,76 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.csbdeep.commands;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import de.csbdresden.csbdeep.network.model.tensorflow.ModelPreloadService;
+
+/**
+ * Loads models in the background so that the first run of a network does not
+ * wait for them, and optionally does so every time Fiji starts.
+ */
+@Plugin(type = Command.class,
+	menuPath = "Plugins>CSBDeep>Preload models", headless = true)
+public class PreloadModels implements Command {
+
+	@Parameter(label = "Model files or URLs (one per line)",
+		style = "text area", persist = false, initializer = "initModels",
+		required = false)
+	protected String models = "";
+
+	@Parameter(label = "Preload these models when Fiji starts")
+	protected boolean preloadAtStartup = true;
+
+	@Parameter
+	private ModelPreloadService preloadService;
+
+	protected void initModels() {
+		models = String.join("\n", preloadService.getStartupModels());
+	}
+
+	@Override
+	public void run() {
+		final List<String> list = new ArrayList<>();
+		for (final String model : models.split("\n")) {
+			if (!model.trim().isEmpty()) list.add(model.trim());
+		}
+		preloadService.setStartupModels(preloadAtStartup ? list
+			: new ArrayList<>());
+		for (final String model : list) {
+			preloadService.preload(model, GenericNetwork.class);
+		}
+	}
+
+}
@@ -30,6 +30,7 @@
 package de.csbdresden.csbdeep.imglib2;
 
 import net.imglib2.AbstractInterval;
+import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.Point;
 import net.imglib2.RandomAccess;
@@ -104,6 +105,36 @@ public class TiledView<T> extends AbstractInterval implements
 		return overlap.clone();
 	}
 
+	/**
+	 * Returns the interval of the source covered by the tile at the given grid
+	 * position, including the overlap. The tile returned by the random access
+	 * is this interval, translated to zero min.
+	 */
+	public Interval getTileInterval(final long... position) {
+		final long[] tileMin = new long[n];
+		final long[] tileMax = new long[n];
+		tileBounds(source, blockSize, max, overlap, position, tileMin, tileMax);
+		return new FinalInterval(tileMin, tileMax);
+	}
+
+	private static void tileBounds(final Interval source, final long[] blockSize,
+		final long[] max, final long[] overlap, final long[] position,
+		final long[] tileMin, final long[] tileMax)
+	{
+		for (int d = 0; d < tileMin.length; ++d) {
+			tileMin[d] = position[d] * blockSize[d];
+			if (position[d] < max[d]) {
+				tileMax[d] = tileMin[d] + blockSize[d] - 1;
+			}
+			else {
+				tileMax[d] = source.max(d);
+			}
+			// Add overlap
+			tileMin[d] -= overlap[d];
+			tileMax[d] += overlap[d];
+		}
+	}
+
 	@Override
 	public TiledViewRandomAccess<T> randomAccess() {
 		return new TiledViewRandomAccess<>(source, blockSize, max, overlap);
@@ -154,18 +185,7 @@ public class TiledView<T> extends AbstractInterval implements
 
 		@Override
 		public RandomAccessibleInterval<T> get() {
-			for (int d = 0; d < n; ++d) {
-				tempMin[d] = position[d] * blockSize[d];
-				if (position[d] < max[d]) {
-					tempMax[d] = tempMin[d] + blockSize[d] - 1;
-				}
-				else {
-					tempMax[d] = source.max(d);
-				}
-				// Add overlap
-				tempMin[d] -= overlap[d];
-				tempMax[d] += overlap[d];
-			}
+			tileBounds(source, blockSize, max, overlap, position, tempMin, tempMax);
 			// TODO: [Review] Creating multiple views per call probably isn't
 			// what we want.
 			// - zeroMin: do we want to ensure zeroMin at all? if yes: see
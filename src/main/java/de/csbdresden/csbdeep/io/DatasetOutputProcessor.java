@@ -31,14 +31,18 @@ package de.csbdresden.csbdeep.io;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.IntStream;
 
 import de.csbdresden.csbdeep.network.model.ImageTensor;
 import de.csbdresden.csbdeep.task.DefaultTask;
 import de.csbdresden.csbdeep.util.DatasetHelper;
 import net.imagej.Dataset;
 import net.imagej.DatasetService;
+import net.imagej.ImgPlus;
 import net.imagej.axis.AxisType;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.view.Views;
@@ -107,7 +111,9 @@ public class DatasetOutputProcessor<T extends RealType<T> & NativeType<T>>
 		// TODO convert back to original format to be able to save and load it
 		// (float 32 bit does not load in Fiji) /- note i think we do that now
 
-		final Dataset dataset = datasetService.create(img);
+		// wrap images instead of copying them
+		final Dataset dataset = img instanceof Img ? datasetService.create(
+			new ImgPlus<>((Img<T>) img)) : datasetService.create(img);
 		dataset.setName(name);
 		for (int i = 0; i < dataset.numDimensions(); i++) {
 			dataset.axis(i).setType(axes[i]);
@@ -117,6 +123,9 @@ public class DatasetOutputProcessor<T extends RealType<T> & NativeType<T>>
 
 
 	protected RandomAccessibleInterval<T> dropSingletonDimensions(RandomAccessibleInterval<T> rai, List<Integer> droppedDims) {
+		if (rai instanceof ArrayImg && isSingleton(rai, droppedDims)) {
+			return reshape((ArrayImg<T, ?>) rai, droppedDims);
+		}
 		RandomAccessibleInterval<T> res = rai;
 
 		for(int d = rai.numDimensions() - 1; d >= 0; --d) {
@@ -127,4 +136,30 @@ public class DatasetOutputProcessor<T extends RealType<T> & NativeType<T>>
 		return res;
 	}
 
+	private static boolean isSingleton(final RandomAccessibleInterval<?> rai,
+		final List<Integer> dims)
+	{
+		for (final int d : dims) {
+			if (d < rai.numDimensions() && rai.dimension(d) != 1) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Removes singleton dimensions from an {@link ArrayImg} without copying its
+	 * data, since they do not change the memory layout.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private ArrayImg<T, ?> reshape(final ArrayImg<T, ?> img,
+		final List<Integer> droppedDims)
+	{
+		final long[] dims = IntStream.range(0, img.numDimensions()).filter(
+			d -> !droppedDims.contains(d)).mapToLong(img::dimension).toArray();
+		final T type = img.firstElement();
+		final ArrayImg res = new ArrayImg(img.update(null), dims, type
+			.getEntitiesPerPixel());
+		res.setLinkedType(type.getNativeTypeFactory().createLinkedType(res));
+		return res;
+	}
+
 }
@@ -0,0 +1,72 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.csbdeep.io;
+
+import java.io.File;
+import java.io.IOException;
+
+import io.scif.services.DatasetIOService;
+import net.imagej.Dataset;
+
+/**
+ * Saves the result of each frame as its own file, named after the input and
+ * the frame index, e.g. {@code input_t003.tif}.
+ */
+public class DirectoryFrameSink implements FrameSink {
+
+	private final DatasetIOService datasetIOService;
+	private final File directory;
+	private final String name;
+	private final int digits;
+
+	public DirectoryFrameSink(final DatasetIOService datasetIOService,
+		final File directory, final String name, final long frames)
+	{
+		this.datasetIOService = datasetIOService;
+		this.directory = directory;
+		this.name = name;
+		this.digits = String.valueOf(Math.max(1, frames - 1)).length();
+	}
+
+	public File getFile(final long frame) {
+		return new File(directory, String.format("%s_t%0" + digits + "d.tif",
+			name, frame));
+	}
+
+	@Override
+	public void write(final long frame, final Dataset result)
+		throws IOException
+	{
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create " + directory);
+		}
+		datasetIOService.save(result, getFile(frame).getAbsolutePath());
+	}
+
+}
@@ -0,0 +1,83 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.csbdeep.io;
+
+import org.scijava.ui.UIService;
+
+import net.imagej.Dataset;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+
+/**
+ * Shows the result of the latest frame. The first result is displayed, the
+ * following ones are copied into it, so only one frame is kept however long
+ * the series is.
+ */
+public class DisplayFrameSink implements FrameSink {
+
+	private final UIService uiService;
+	private final String name;
+	private Dataset displayed;
+
+	public DisplayFrameSink(final UIService uiService, final String name) {
+		this.uiService = uiService;
+		this.name = name;
+	}
+
+	@Override
+	public void write(final long frame, final Dataset result) {
+		final String title = name + " (frame " + frame + ")";
+		if (displayed == null || !Intervals.equalDimensions(displayed, result)) {
+			displayed = result.duplicate();
+			displayed.setName(title);
+			uiService.show(displayed);
+			return;
+		}
+		copy(result, displayed);
+		displayed.setName(title);
+		displayed.update();
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static void copy(final Dataset source, final Dataset target) {
+		copy((RandomAccessibleInterval) source.getImgPlus(),
+			(RandomAccessibleInterval) target.getImgPlus());
+	}
+
+	private static <S extends RealType<S>, T extends RealType<T>> void copy(
+		final RandomAccessibleInterval<S> source,
+		final RandomAccessibleInterval<T> target)
+	{
+		LoopBuilder.setImages(source, target).forEachPixel((in, out) -> out
+			.setReal(in.getRealDouble()));
+	}
+
+}
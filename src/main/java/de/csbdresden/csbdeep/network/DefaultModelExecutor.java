@@ -32,13 +32,24 @@ package de.csbdresden.csbdeep.network;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.*;
+import java.util.stream.IntStream;
 
 import de.csbdresden.csbdeep.network.model.Network;
 import de.csbdresden.csbdeep.task.DefaultTask;
 import de.csbdresden.csbdeep.tiling.AdvancedTiledView;
+import de.csbdresden.csbdeep.tiling.TileCache;
+import de.csbdresden.csbdeep.tiling.TileMerger;
 import de.csbdresden.csbdeep.util.DatasetHelper;
+import de.csbdresden.csbdeep.util.MemoryHelper;
+import net.imglib2.Cursor;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.Img;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
 
 public class DefaultModelExecutor<T extends RealType<T>> extends DefaultTask
 	implements ModelExecutor<T>
@@ -48,6 +59,14 @@ public class DefaultModelExecutor<T extends RealType<T>> extends DefaultTask
 	private ExecutorService pool = null;
 	private Network network = null;
 	private boolean canceled = false;
+	private TileCache tileCache = null;
+	private String tileCacheContext = null;
+
+	@Override
+	public void setTileCache(final TileCache cache, final String context) {
+		tileCache = cache;
+		tileCacheContext = context;
+	}
 
 	@Override
 	public List<AdvancedTiledView<T>> run(final List<AdvancedTiledView<T>> input,
@@ -76,9 +95,17 @@ public class DefaultModelExecutor<T extends RealType<T>> extends DefaultTask
 			}
 			pool.shutdown();
 			if(isCanceled()) return null;
-			if (output.size() > 0) {
-				DatasetHelper.logDim(this, "Network output size", output.get(0)
-						.getProcessedTiles().get(0));
+			logSkippedTiles(input);
+			if (output.size() > 0 && output.get(0) != null) {
+				if (!output.get(0).getProcessedTiles().isEmpty()) {
+					DatasetHelper.logDim(this, "Network output size", output.get(0)
+							.getProcessedTiles().get(0));
+				}
+				else if (output.get(0).getMerger() != null && output.get(0)
+					.getMerger().getResult() != null) {
+					DatasetHelper.logDim(this, "Merged network output size", output.get(0)
+							.getMerger().getResult());
+				}
 			}
 			setFinished();
 			return output;
@@ -86,6 +113,20 @@ public class DefaultModelExecutor<T extends RealType<T>> extends DefaultTask
 		return null;
 	}
 
+	private void logSkippedTiles(final List<AdvancedTiledView<T>> input) {
+		long skipped = 0;
+		long total = 0;
+		for (AdvancedTiledView<T> view : input) {
+			if (view.getMerger() == null) continue;
+			skipped += view.getMerger().getFilledTiles();
+			total += Intervals.numElements(view);
+		}
+		if (skipped > 0) {
+			log(skipped + " of " + total +
+				" tile(s) were skipped as background");
+		}
+	}
+
 	private int getSteps(List<AdvancedTiledView<T>> input) {
 		int numSteps = 0;
 		for (AdvancedTiledView<T> tile : input) {
@@ -103,6 +144,22 @@ public class DefaultModelExecutor<T extends RealType<T>> extends DefaultTask
 
 		input.getProcessedTiles().clear();
 
+		final TileMerger<T> merger = input.getMerger();
+		if (merger != null && merger.getCheckpoint() != null) {
+			final int restored = merger.restoreCheckpoint();
+			if (restored > 0) {
+				log("Restored " + restored + " finished tile(s) from checkpoint " +
+					merger.getCheckpoint().getDirectory());
+			}
+		}
+		if (merger != null && tileCache != null) {
+			final int cached = useTileCache(input, merger);
+			if (cached > 0) {
+				log("Took " + cached + " of " + Intervals.numElements(input) +
+					" tile(s) from tile cache " + tileCache.getDirectory());
+			}
+		}
+
 		try {
 			network.setTiledView(input);
 			Future<List<RandomAccessibleInterval<T>>> resultFuture = pool.submit(network);
@@ -126,9 +183,9 @@ public class DefaultModelExecutor<T extends RealType<T>> extends DefaultTask
 			throw e;
 		}
 		catch (final ExecutionException | IllegalStateException exc) {
-			if(exc.getMessage() != null && exc.getMessage().contains("OOM")) {
+			if(MemoryHelper.isOutOfMemory(exc)) {
 				setIdle();
-				throw new OutOfMemoryError();
+				throw new OutOfMemoryError(exc.getMessage());
 			}
 			exc.printStackTrace();
 			setFailed();
@@ -138,6 +195,59 @@ public class DefaultModelExecutor<T extends RealType<T>> extends DefaultTask
 		return input;
 	}
 
+	/**
+	 * Writes the cached results of the tiles of a view into its merger and
+	 * registers a listener which adds the computed results to the cache.
+	 *
+	 * @return the number of tiles taken from the cache
+	 */
+	private int useTileCache(final AdvancedTiledView<T> view,
+		final TileMerger<T> merger)
+	{
+		final List<RandomAccessibleInterval<T>> tiles = new ArrayList<>();
+		final Cursor<RandomAccessibleInterval<T>> cursor = Views.iterable(view)
+			.cursor();
+		while (cursor.hasNext()) {
+			tiles.add(cursor.next());
+		}
+		final String[] keys = new String[tiles.size()];
+		IntStream.range(0, tiles.size()).parallel().forEach(i -> {
+			if (!merger.isWritten(i)) keys[i] = TileCache.key(tileCacheContext,
+				tiles.get(i));
+		});
+		int cached = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] == null) continue;
+			final Img<FloatType> result = tileCache.get(keys[i]);
+			if (result == null) continue;
+			try {
+				merger.write(i, toTileType(result, Util.getTypeFromInterval(tiles
+					.get(i))));
+				cached++;
+			}
+			catch (final IllegalArgumentException e) {
+				// result does not fit this tiling, compute it again
+			}
+			keys[i] = null;
+		}
+		final TileCache cache = tileCache;
+		merger.addListener((tileIndex, tile) -> {
+			final String key = keys[(int) tileIndex];
+			if (key != null) cache.put(key, tile);
+		});
+		return cached;
+	}
+
+	/**
+	 * @return the cached float result, converted to the pixel type of the tiles
+	 */
+	private RandomAccessibleInterval<T> toTileType(final Img<FloatType> result,
+		final T type)
+	{
+		return Converters.convert((RandomAccessibleInterval<FloatType>) result, (
+			in, out) -> out.setReal(in.getRealFloat()), type.createVariable());
+	}
+
 	@Override
 	public boolean isCanceled() {
 		return canceled;
@@ -37,6 +37,7 @@ import org.scijava.Cancelable;
 import de.csbdresden.csbdeep.network.model.Network;
 import de.csbdresden.csbdeep.task.Task;
 import de.csbdresden.csbdeep.tiling.AdvancedTiledView;
+import de.csbdresden.csbdeep.tiling.TileCache;
 import net.imglib2.type.numeric.RealType;
 
 public interface ModelExecutor<T extends RealType<T>> extends Task, Cancelable {
@@ -44,4 +45,14 @@ public interface ModelExecutor<T extends RealType<T>> extends Task, Cancelable {
 	List<AdvancedTiledView<T>> run(List<AdvancedTiledView<T>> input,
 		Network network) throws ExecutionException;
 
+	/**
+	 * Set a cache which is checked for the results of tiles before they are
+	 * computed and which receives the computed results.
+	 *
+	 * @param cache the cache or null to disable caching
+	 * @param context the model and parameters the tile results depend on, see
+	 *          {@link TileCache#key}
+	 */
+	default void setTileCache(TileCache cache, String context) {}
+
 }
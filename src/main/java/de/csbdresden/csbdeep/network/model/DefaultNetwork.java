@@ -31,21 +31,38 @@ package de.csbdresden.csbdeep.network.model;
 
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.stream.IntStream;
 
 import org.scijava.io.location.Location;
 
 import de.csbdresden.csbdeep.imglib2.TiledView;
 import de.csbdresden.csbdeep.task.Task;
+import de.csbdresden.csbdeep.tiling.AdvancedTiledView;
+import de.csbdresden.csbdeep.tiling.BackgroundFilter;
+import de.csbdresden.csbdeep.tiling.TileMerger;
 import de.csbdresden.csbdeep.util.IOHelper;
+import de.csbdresden.csbdeep.util.MemoryMonitor;
 import net.imagej.Dataset;
 import net.imglib2.Cursor;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.ConstantUtils;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 
 public abstract class DefaultNetwork<T extends RealType<T>> implements
@@ -59,7 +76,23 @@ public abstract class DefaultNetwork<T extends RealType<T>> implements
 	protected Integer doneTileCount;
 	protected boolean dropSingletonDims = false;
 	protected NetworkSettings networkSettings;
-	ExecutorService pool;
+	protected int tilesPerBatch = 1;
+	protected int pipelineDepth = 3;
+	protected int concurrentRuns = 1;
+	protected MemoryMonitor memoryMonitor;
+	protected BackgroundFilter backgroundFilter;
+	protected boolean warmUp = false;
+	protected int microBatchTiles = 1;
+	protected long microBatchDelay = 0;
+	private final Set<List<Long>> warmShapes = ConcurrentHashMap.newKeySet();
+	protected ExecutionProfile executionProfile = new ExecutionProfile();
+	// executors of all runs in progress, a network can be called for several
+	// images at the same time
+	private final Set<ExecutorService> stages = ConcurrentHashMap.newKeySet();
+
+	// Number of voxels per network call when the batch size is chosen
+	// automatically
+	public static final long AUTO_BATCH_ELEMENTS = 1 << 22;
 
 	public DefaultNetwork(Task associatedTask) {
 		this.status = associatedTask;
@@ -85,61 +118,360 @@ public abstract class DefaultNetwork<T extends RealType<T>> implements
 		throws IllegalArgumentException, ExecutionException, OutOfMemoryError
 	{
 
-		pool = Executors.newSingleThreadExecutor();
+		// everything specific to this run is kept in local variables and in the
+		// batches, so that the network can process several images at once
+		final TiledView<T> view = tiledView;
+		final ExecutorService pool = concurrentRuns > 1 ? Executors
+			.newWorkStealingPool(concurrentRuns) : Executors
+				.newSingleThreadExecutor();
+		final ExecutorService prepareStage = Executors.newSingleThreadExecutor();
+		final ExecutorService finishStage = Executors.newSingleThreadExecutor();
+		final List<ExecutorService> runStages = Arrays.asList(prepareStage, pool,
+			finishStage);
+		stages.addAll(runStages);
+
+		final List<RandomAccessibleInterval<T>> tiles = new ArrayList<>();
+		final Cursor<RandomAccessibleInterval<T>> cursor = Views.iterable(view)
+			.cursor();
+		while (cursor.hasNext()) {
+			tiles.add(cursor.next());
+		}
 
-		final boolean multithreading = false;
+		skipBackgroundTiles(view, tiles);
+		final int batchSize = getTilesPerBatch(tiles);
+
+		// Batches pass through three stages: the input of the next batch is
+		// prepared and the result of the previous one is converted while the
+		// network processes the current batch. With concurrent runs, several
+		// batches are processed by the network at once. At most pipelineDepth
+		// batches are waiting for or leaving the network at the same time.
+		final Semaphore inFlight = new Semaphore(Math.max(1, pipelineDepth) + Math
+			.max(1, concurrentRuns) - 1);
+		final List<CompletableFuture<TileBatch<T>>> futures = new ArrayList<>();
+		final List<TileBatch<T>> batches = new ArrayList<>();
+		if (memoryMonitor != null) memoryMonitor.reset();
+
+		try {
+			if (warmUp) warmUp(view, tiles, batchSize);
+			int i = 0;
+			while (i < tiles.size()) {
+				if (isWritten(view, i)) {
+					// restored from a checkpoint or finished before
+					upTileCount();
+					i++;
+					continue;
+				}
+				if (memoryMonitor != null && memoryMonitor.isUnderPressure()) {
+					// the batches in flight still complete in release, so that
+					// their results are kept
+					throw new OutOfMemoryError("Memory is running low after " + i +
+						" of " + tiles.size() + " tiles.");
+				}
+				final TileBatch<T> batch = new TileBatch<>(nextBatch(view, tiles, i,
+					batchSize), i, view);
+				batches.add(batch);
+				inFlight.acquire();
+				if (futures.stream().anyMatch(
+					CompletableFuture::isCompletedExceptionally)) break;
+				futures.add(CompletableFuture.completedFuture(batch)
+					.thenApplyAsync(stage(this::prepareBatch), prepareStage)
+					.thenApplyAsync(stage(this::runBatch), pool)
+					.thenApplyAsync(stage(this::finishBatch), finishStage)
+					.whenComplete((b, exc) -> {
+						batch.close();
+						inFlight.release();
+					}));
+				i += batch.size();
+			}
 
-		final Cursor<RandomAccessibleInterval<T>> cursor = Views.iterable(tiledView)
-			.cursor();
+			// Collect the results in the order of the tiles
+			final List<RandomAccessibleInterval<T>> results = new ArrayList<>();
+			for (final CompletableFuture<TileBatch<T>> future : futures) {
+				final List<RandomAccessibleInterval<T>> res = getResults(future);
+				if (res == null || res.contains(null)) return null;
+				results.addAll(res);
+			}
+			return results;
+		}
+		catch (final InterruptedException exc) {
+			return null;
+		}
+		finally {
+			release(futures, batches, runStages);
+			stages.removeAll(runStages);
+		}
+	}
 
-		// Loop over the tiles and execute the prediction
-		final List<RandomAccessibleInterval<T>> results = new ArrayList<>();
-		final List<Future<RandomAccessibleInterval<T>>> futures = new ArrayList<>();
+	private List<RandomAccessibleInterval<T>> getResults(
+		final CompletableFuture<TileBatch<T>> future)
+		throws ExecutionException, InterruptedException
+	{
+		try {
+			return future.get().getResults();
+		}
+		catch (final ExecutionException exc) {
+			if (exc.getCause() instanceof Error) throw (Error) exc.getCause();
+			if (exc.getCause() instanceof IllegalArgumentException) fail();
+			throw exc;
+		}
+	}
 
-		while (cursor.hasNext()) {
-			final RandomAccessibleInterval<T> tile = cursor.next();
+	/**
+	 * Lets the batches in flight leave the pipeline, stops the stages and
+	 * closes the data of all batches, also of batches that were never
+	 * submitted or whose stages were dropped by {@link #cancel(String)}.
+	 */
+	private static void release(final List<? extends CompletableFuture<?>> futures,
+		final List<? extends TileBatch<?>> batches,
+		final List<ExecutorService> runStages)
+	{
+		final CompletableFuture<Void> all = CompletableFuture.allOf(futures
+			.toArray(new CompletableFuture[0]));
+		boolean interrupted = false;
+		// stages dropped by a shut down executor never complete
+		while (!all.isDone() && runStages.stream().noneMatch(
+			ExecutorService::isShutdown))
+		{
+			try {
+				all.get(100, TimeUnit.MILLISECONDS);
+			}
+			catch (final TimeoutException | ExecutionException exc) {
+				// check again
+			}
+			catch (final InterruptedException exc) {
+				interrupted = true;
+				break;
+			}
+		}
+		runStages.forEach(ExecutorService::shutdownNow);
+		try {
+			for (final ExecutorService stage : runStages) {
+				// closing data still used by a running stage could crash
+				if (!stage.awaitTermination(1, TimeUnit.MINUTES)) return;
+			}
+			batches.forEach(TileBatch::close);
+		}
+		catch (final InterruptedException exc) {
+			interrupted = true;
+		}
+		finally {
+			if (interrupted) Thread.currentThread().interrupt();
+		}
+	}
 
-			final Future<RandomAccessibleInterval<T>> future = pool.submit(() -> execute(tile));
+	private Function<TileBatch<T>, TileBatch<T>> stage(
+		final BatchStage<T> stage)
+	{
+		return batch -> {
+			try {
+				stage.process(batch);
+				return batch;
+			}
+			catch (final Exception exc) {
+				throw new CompletionException(exc);
+			}
+		};
+	}
 
-			log("Processing tile " + (doneTileCount + 1) + "..");
+	private interface BatchStage<T extends RealType<T>> {
 
-			futures.add(future);
+		void process(TileBatch<T> batch) throws Exception;
+	}
 
-			if (!multithreading) {
-				try {
-					final RandomAccessibleInterval<T> res = future.get();
-					if (res == null) return null;
-					results.add(res);
-					upTileCount();
-				}
-				catch (final IllegalArgumentException exc) {
-					pool.shutdownNow();
-					fail();
-					throw  exc;
-				}
-				catch (final InterruptedException exc) {
-					pool.shutdownNow();
-//					fail();
-					return null;
-				}
-			}
+	/**
+	 * Converts the tiles of a batch into the input of the network. Runs on its
+	 * own thread while the network processes the previous batch.
+	 */
+	protected void prepareBatch(final TileBatch<T> batch) throws Exception {
+		if (batch.getFirstTile() < 0) return;
+		if (batch.size() > 1) {
+			log("Processing tiles " + (batch.getFirstTile() + 1) + "-" + (batch
+				.getFirstTile() + batch.size()) + "..");
 		}
-		if (multithreading) {
-			for (final Future<RandomAccessibleInterval<T>> future : futures) {
-				try {
-					final RandomAccessibleInterval<T> res = future.get();
-					if (res == null) return null;
-					results.add(res);
-					upTileCount();
-				}
-				catch (final InterruptedException exc) {
-					pool.shutdownNow();
-					fail();
-					return null;
-				}
+		else {
+			log("Processing tile " + (batch.getFirstTile() + 1) + "..");
+		}
+	}
+
+	/**
+	 * Runs the network on a prepared batch. The default implementation does all
+	 * the work here by calling {@link #executeBatch(List)}.
+	 */
+	protected void runBatch(final TileBatch<T> batch) throws Exception {
+		batch.setResults(executeBatch(batch.getTiles()));
+	}
+
+	/**
+	 * Converts the network output of a batch into result tiles. If the tiled
+	 * view has a {@link TileMerger}, the tiles are written into the output right
+	 * away and not kept in the results of the batch.
+	 */
+	protected void finishBatch(final TileBatch<T> batch) throws Exception {
+		final List<RandomAccessibleInterval<T>> results = batch.getResults();
+		if (results == null) return;
+		final TileMerger<T> merger = getMerger(batch.getSource());
+		if (merger != null && batch.getFirstTile() >= 0 && !results.contains(
+			null))
+		{
+			for (int j = 0; j < results.size(); j++) {
+				merger.write(batch.getFirstTile() + j, results.get(j));
 			}
+			batch.setResults(Collections.emptyList());
+		}
+		for (int j = 0; j < results.size(); j++) {
+			upTileCount();
+		}
+	}
+
+	/**
+	 * Runs a batch of zeros with the dimensions of the first batch of tiles
+	 * through the network, unless this shape has been warmed up before.
+	 */
+	private void warmUp(final TiledView<T> view,
+		final List<RandomAccessibleInterval<T>> tiles, final int batchSize)
+		throws ExecutionException
+	{
+		int first = 0;
+		while (first < tiles.size() && isWritten(view, first)) {
+			first++;
+		}
+		if (first == tiles.size()) return;
+		final RandomAccessibleInterval<T> tile = tiles.get(first);
+		final int count = Math.min(batchSize, tiles.size() - first);
+		final long[] dims = Intervals.dimensionsAsLongArray(tile);
+		final long[] shape = Arrays.copyOf(dims, dims.length + 1);
+		shape[dims.length] = count;
+		if (isWarm(shape)) return;
+		final T zero = Util.getTypeFromInterval(tile).createVariable();
+		zero.setZero();
+		final RandomAccessibleInterval<T> dummy = ConstantUtils
+			.constantRandomAccessibleInterval(zero, tile.numDimensions(), tile);
+		final long start = System.currentTimeMillis();
+		try (TileBatch<T> batch = new TileBatch<>(Collections.nCopies(count,
+			dummy), -1))
+		{
+			prepareBatch(batch);
+			runBatch(batch);
 		}
+		catch (final Exception exc) {
+			throw new ExecutionException(exc);
+		}
+		setWarm(shape);
+		log("Warm-up with " + count + " tile(s) of size " + Arrays.toString(
+			dims) + " took " + (System.currentTimeMillis() - start) +
+			" milliseconds");
+	}
 
+	/**
+	 * @param shape the tile dimensions followed by the number of tiles per batch
+	 * @return true if a batch of this shape has been run through the network
+	 */
+	protected boolean isWarm(final long[] shape) {
+		return warmShapes.contains(toList(shape));
+	}
+
+	protected void setWarm(final long[] shape) {
+		warmShapes.add(toList(shape));
+	}
+
+	protected static List<Long> toList(final long[] shape) {
+		final List<Long> list = new ArrayList<>();
+		for (final long dim : shape) {
+			list.add(dim);
+		}
+		return list;
+	}
+
+	/**
+	 * Fills the output of the tiles the background filter considers empty, so
+	 * that they are skipped like finished tiles.
+	 */
+	private void skipBackgroundTiles(final TiledView<T> view,
+		final List<RandomAccessibleInterval<T>> tiles)
+	{
+		final TileMerger<T> merger = getMerger(view);
+		if (backgroundFilter == null || merger == null) return;
+		final boolean[] background = new boolean[tiles.size()];
+		IntStream.range(0, tiles.size()).parallel().forEach(i -> background[i] =
+			!merger.isWritten(i) && backgroundFilter.isBackground(tiles.get(i)));
+		int first = -1;
+		int skipped = 0;
+		for (int i = 0; i < background.length; i++) {
+			if (!background[i]) continue;
+			if (first < 0) first = i;
+			skipped++;
+		}
+		// the output size is only known after the network ran once
+		if (skipped > 0 && merger.getResult() == null && skipped == tiles
+			.size() - merger.getWrittenTiles())
+		{
+			background[first] = false;
+			skipped--;
+		}
+		for (int i = 0; i < background.length; i++) {
+			if (background[i]) merger.fill(i, backgroundFilter.getFillValue());
+		}
+		if (skipped > 0) {
+			log("Skipping " + skipped + " of " + tiles.size() +
+				" tile(s) containing only background (" + backgroundFilter + ")");
+		}
+	}
+
+	private TileMerger<T> getMerger(final TiledView<T> view) {
+		return view instanceof AdvancedTiledView ? ((AdvancedTiledView<T>) view)
+			.getMerger() : null;
+	}
+
+	private boolean isWritten(final TiledView<T> view, final int tileIndex) {
+		final TileMerger<T> merger = getMerger(view);
+		return merger != null && merger.isWritten(tileIndex);
+	}
+
+	/**
+	 * Collects up to {@code batchSize} tiles starting at {@code start}. Only
+	 * tiles with the same dimensions as the first one are combined. A batch
+	 * ends before a tile which has already been written to the merger.
+	 */
+	private List<RandomAccessibleInterval<T>> nextBatch(final TiledView<T> view,
+		final List<RandomAccessibleInterval<T>> tiles, final int start,
+		final int batchSize)
+	{
+		final List<RandomAccessibleInterval<T>> batch = new ArrayList<>();
+		final RandomAccessibleInterval<T> first = tiles.get(start);
+		batch.add(first);
+		for (int i = start + 1; i < tiles.size() && batch.size() < batchSize; i++) {
+			if (!Intervals.equalDimensions(first, tiles.get(i))) break;
+			if (isWritten(view, i)) break;
+			batch.add(tiles.get(i));
+		}
+		return batch;
+	}
+
+	protected int getTilesPerBatch(final List<RandomAccessibleInterval<T>> tiles) {
+		if (!keepsBatchDimension()) return 1;
+		if (tilesPerBatch > 0) return tilesPerBatch;
+		if (tiles.isEmpty()) return 1;
+		final long tileSize = Intervals.numElements(tiles.get(0));
+		return (int) Math.max(1, Math.min(tiles.size(), AUTO_BATCH_ELEMENTS /
+			Math.max(1, tileSize)));
+	}
+
+	/**
+	 * @return true if the network output has one entry per tile along its first
+	 *         (batch) dimension, so that several tiles can be run in one call
+	 */
+	protected boolean keepsBatchDimension() {
+		return true;
+	}
+
+	@Override
+	public List<RandomAccessibleInterval<T>> executeBatch(
+		final List<RandomAccessibleInterval<T>> tiles) throws Exception
+	{
+		final List<RandomAccessibleInterval<T>> results = new ArrayList<>();
+		for (final RandomAccessibleInterval<T> tile : tiles) {
+			results.add(execute(tile));
+		}
 		return results;
 	}
 
@@ -184,12 +516,12 @@ public abstract class DefaultNetwork<T extends RealType<T>> implements
 	public abstract boolean isInitialized();
 
 	@Override
-	public void resetTileCount() {
+	public synchronized void resetTileCount() {
 		doneTileCount = 0;
 		status.setCurrentStep(doneTileCount);
 	}
 
-	protected void upTileCount() {
+	protected synchronized void upTileCount() {
 		doneTileCount++;
 		status.setCurrentStep(doneTileCount);
 	}
@@ -199,6 +531,47 @@ public abstract class DefaultNetwork<T extends RealType<T>> implements
 		this.tiledView = tiledView;
 	}
 
+	@Override
+	public void setTilesPerBatch(final int tilesPerBatch) {
+		this.tilesPerBatch = tilesPerBatch;
+	}
+
+	@Override
+	public void setPipelineDepth(final int pipelineDepth) {
+		this.pipelineDepth = pipelineDepth;
+	}
+
+	@Override
+	public void setConcurrentRuns(final int concurrentRuns) {
+		this.concurrentRuns = Math.max(1, concurrentRuns);
+	}
+
+	@Override
+	public void setMemoryMonitor(final MemoryMonitor monitor) {
+		this.memoryMonitor = monitor;
+	}
+
+	@Override
+	public void setBackgroundFilter(final BackgroundFilter filter) {
+		this.backgroundFilter = filter;
+	}
+
+	@Override
+	public void setWarmUp(final boolean warmUp) {
+		this.warmUp = warmUp;
+	}
+
+	@Override
+	public void setMicroBatching(final int maxTiles, final long delay) {
+		this.microBatchTiles = Math.max(1, maxTiles);
+		this.microBatchDelay = Math.max(0, delay);
+	}
+
+	@Override
+	public void setExecutionProfile(final ExecutionProfile profile) {
+		this.executionProfile = profile;
+	}
+
 	protected void log(final String text) {
 		if (status != null) {
 			status.log(text);
@@ -207,6 +580,14 @@ public abstract class DefaultNetwork<T extends RealType<T>> implements
 		}
 	}
 
+	protected void logWarning(final String text) {
+		if (status != null) {
+			status.logWarning(text);
+		}else {
+			System.out.println("[WARNING] " + text);
+		}
+	}
+
 	protected void logError(final String text) {
 		if (status != null) {
 			status.logError(text);
@@ -221,7 +602,7 @@ public abstract class DefaultNetwork<T extends RealType<T>> implements
 
 	@Override
 	public void cancel(String reason) {
-		pool.shutdownNow();
+		stages.forEach(ExecutorService::shutdownNow);
 	}
 
 	@Override
@@ -259,10 +640,7 @@ public abstract class DefaultNetwork<T extends RealType<T>> implements
 
 	@Override
 	public void dispose() {
-		if (pool != null) {
-			pool.shutdown();
-		}
-		pool = null;
+		stages.forEach(ExecutorService::shutdown);
 	}
 
 	@Override
@@ -0,0 +1,147 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.csbdresden.csbdeep.network.model;
+
+import java.util.Objects;
+
+import org.scijava.prefs.PrefService;
+
+/**
+ * Settings for the session a model is executed in: the number of threads used
+ * by a single operation and by independent operations, whether the graph gets
+ * optimized before it is run and whether it gets compiled just in time. They
+ * are applied when the model is loaded. Thread counts of zero keep the
+ * defaults of the backend.
+ */
+public class ExecutionProfile {
+
+	private int intraOpThreads = 0;
+	private int interOpThreads = 0;
+	private boolean graphOptimizations = true;
+	private boolean jitCompilation = false;
+
+	public ExecutionProfile() {}
+
+	public ExecutionProfile(final int intraOpThreads, final int interOpThreads,
+		final boolean graphOptimizations, final boolean jitCompilation)
+	{
+		this.intraOpThreads = Math.max(0, intraOpThreads);
+		this.interOpThreads = Math.max(0, interOpThreads);
+		this.graphOptimizations = graphOptimizations;
+		this.jitCompilation = jitCompilation;
+	}
+
+	public int getIntraOpThreads() {
+		return intraOpThreads;
+	}
+
+	public int getInterOpThreads() {
+		return interOpThreads;
+	}
+
+	public boolean isGraphOptimizations() {
+		return graphOptimizations;
+	}
+
+	public boolean isJitCompilation() {
+		return jitCompilation;
+	}
+
+	/**
+	 * @return true if the profile does not change any backend default
+	 */
+	public boolean isDefault() {
+		return equals(new ExecutionProfile());
+	}
+
+	/**
+	 * Loads the profile stored for a model, see
+	 * {@link #save(PrefService, Class, String)}.
+	 *
+	 * @return the stored profile or null if there is none
+	 */
+	public static ExecutionProfile load(final PrefService prefService,
+		final Class<?> commandClass, final String modelKey)
+	{
+		final String prefix = getPrefix(modelKey);
+		if (prefService.get(commandClass, prefix + "intraOpThreads") == null) {
+			return null;
+		}
+		return new ExecutionProfile( //
+			prefService.getInt(commandClass, prefix + "intraOpThreads", 0), //
+			prefService.getInt(commandClass, prefix + "interOpThreads", 0), //
+			prefService.getBoolean(commandClass, prefix + "graphOptimizations",
+				true), //
+			prefService.getBoolean(commandClass, prefix + "jitCompilation", false));
+	}
+
+	/**
+	 * Stores this profile for the model identified by {@code modelKey}.
+	 */
+	public void save(final PrefService prefService, final Class<?> commandClass,
+		final String modelKey)
+	{
+		final String prefix = getPrefix(modelKey);
+		prefService.put(commandClass, prefix + "intraOpThreads", intraOpThreads);
+		prefService.put(commandClass, prefix + "interOpThreads", interOpThreads);
+		prefService.put(commandClass, prefix + "graphOptimizations",
+			graphOptimizations);
+		prefService.put(commandClass, prefix + "jitCompilation", jitCompilation);
+	}
+
+	private static String getPrefix(final String modelKey) {
+		return modelKey + "_profile_";
+	}
+
+	@Override
+	public boolean equals(final Object o) {
+		if (this == o) return true;
+		if (!(o instanceof ExecutionProfile)) return false;
+		final ExecutionProfile that = (ExecutionProfile) o;
+		return intraOpThreads == that.intraOpThreads &&
+			interOpThreads == that.interOpThreads &&
+			graphOptimizations == that.graphOptimizations &&
+			jitCompilation == that.jitCompilation;
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(intraOpThreads, interOpThreads, graphOptimizations,
+			jitCompilation);
+	}
+
+	@Override
+	public String toString() {
+		return "intra-op threads: " + intraOpThreads + ", inter-op threads: " +
+			interOpThreads + ", graph optimizations: " + graphOptimizations +
+			", JIT compilation: " + jitCompilation;
+	}
+
+}
@@ -0,0 +1,179 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.csbdeep.network.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Combines the inputs of concurrent network calls into one call. The first
+ * caller with an input of a given shape waits up to {@code delay}
+ * milliseconds for other callers with inputs of the same shape, e.g. tiles of
+ * other images, then runs all collected inputs at once. Each caller gets the
+ * part of the output belonging to its input.
+ *
+ * @param <I> the input of a network call
+ * @param <O> the output of a network call
+ */
+public class MicroBatcher<I, O> {
+
+	/**
+	 * Runs collected inputs through the network.
+	 */
+	public interface Backend<I, O> {
+
+		/**
+		 * @return an object which is equal for inputs which can be run together
+		 */
+		Object key(I input);
+
+		/**
+		 * @return the number of tiles of the input
+		 */
+		int size(I input);
+
+		/**
+		 * Runs several inputs in one network call.
+		 *
+		 * @return the output of each input, in the order of the inputs
+		 */
+		List<O> run(List<I> inputs) throws Exception;
+	}
+
+	private class Group {
+
+		private final List<I> inputs = new ArrayList<>();
+		private final CompletableFuture<List<O>> outputs = new CompletableFuture<>();
+		private int tiles = 0;
+	}
+
+	private final Backend<I, O> backend;
+	private final Map<Object, Group> open = new HashMap<>();
+	private volatile int maxTiles;
+	private volatile long delay;
+
+	/**
+	 * @param maxTiles the largest number of tiles run in one call
+	 * @param delay the time in milliseconds the first input of a call waits for
+	 *          others
+	 */
+	public MicroBatcher(final Backend<I, O> backend, final int maxTiles,
+		final long delay)
+	{
+		this.backend = backend;
+		setLimits(maxTiles, delay);
+	}
+
+	public void setLimits(final int maxTiles, final long delay) {
+		this.maxTiles = Math.max(1, maxTiles);
+		this.delay = Math.max(0, delay);
+	}
+
+	/**
+	 * Runs the input together with inputs of the same shape which arrive
+	 * within the delay.
+	 *
+	 * @return the output of this input
+	 */
+	public O run(final I input) throws Exception {
+		final Object key = backend.key(input);
+		final int size = backend.size(input);
+		final Group group;
+		final int index;
+		final boolean leader;
+		synchronized (this) {
+			Group current = open.get(key);
+			if (current != null && current.tiles + size > maxTiles) {
+				// full, the waiting leader runs it right away
+				open.remove(key);
+				notifyAll();
+				current = null;
+			}
+			leader = current == null;
+			if (leader) {
+				current = new Group();
+				open.put(key, current);
+			}
+			group = current;
+			index = group.inputs.size();
+			group.inputs.add(input);
+			group.tiles += size;
+			if (group.tiles >= maxTiles && open.get(key) == group) {
+				open.remove(key);
+				notifyAll();
+			}
+		}
+		if (leader) runGroup(key, group);
+		try {
+			return group.outputs.get().get(index);
+		}
+		catch (final ExecutionException e) {
+			if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+			if (e.getCause() instanceof Error) throw (Error) e.getCause();
+			throw e;
+		}
+	}
+
+	private void runGroup(final Object key, final Group group) {
+		final List<I> inputs;
+		synchronized (this) {
+			final long end = System.currentTimeMillis() + delay;
+			long remaining = delay;
+			while (open.get(key) == group && remaining > 0) {
+				try {
+					wait(remaining);
+				}
+				catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				remaining = end - System.currentTimeMillis();
+			}
+			// no other input can join from here on
+			if (open.get(key) == group) open.remove(key);
+			inputs = new ArrayList<>(group.inputs);
+		}
+		try {
+			final List<O> outputs = backend.run(inputs);
+			if (outputs == null || outputs.size() != inputs.size()) {
+				throw new IllegalStateException("Expected " + inputs.size() +
+					" outputs, got " + (outputs == null ? 0 : outputs.size()));
+			}
+			group.outputs.complete(outputs);
+		}
+		catch (final Throwable e) {
+			group.outputs.completeExceptionally(e);
+		}
+	}
+
+}
@@ -38,6 +38,8 @@ import org.scijava.Disposable;
 
 import de.csbdresden.csbdeep.imglib2.TiledView;
 import de.csbdresden.csbdeep.task.Task;
+import de.csbdresden.csbdeep.tiling.BackgroundFilter;
+import de.csbdresden.csbdeep.util.MemoryMonitor;
 import net.imagej.Dataset;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.numeric.RealType;
@@ -54,6 +56,14 @@ public interface Network<T extends RealType<T>> extends
 	RandomAccessibleInterval<T> execute(RandomAccessibleInterval<T> tile)
 		throws Exception;
 
+	/**
+	 * Executes the network once for several tiles of the same shape by stacking
+	 * them along the batch dimension of the input tensor. The results are
+	 * returned in the order of the given tiles.
+	 */
+	List<RandomAccessibleInterval<T>> executeBatch(
+		List<RandomAccessibleInterval<T>> tiles) throws Exception;
+
 	Task getStatus();
 
 	ImageTensor getInputNode();
@@ -72,6 +82,67 @@ public interface Network<T extends RealType<T>> extends
 
 	void setTiledView(TiledView<T> tiledView);
 
+	/**
+	 * Set how many tiles are passed to the network in one call. If the value is
+	 * smaller than one, the number is chosen automatically based on the tile
+	 * size. Default value is 1.
+	 */
+	void setTilesPerBatch(int tilesPerBatch);
+
+	/**
+	 * Set how many batches of tiles can be in flight at the same time. While the
+	 * network processes one batch, the input of the next batch is prepared and
+	 * the output of the previous batch is converted. Default value is 3.
+	 */
+	void setPipelineDepth(int pipelineDepth);
+
+	/**
+	 * Set how many batches of tiles the network processes at the same time.
+	 * Batches are distributed among the concurrent runs by work stealing.
+	 * Default value is 1.
+	 */
+	void setConcurrentRuns(int concurrentRuns);
+
+	/**
+	 * Set a monitor which is checked before each batch of tiles. Under memory
+	 * pressure, no further batches are started; the batches in flight are
+	 * finished and an {@link OutOfMemoryError} is thrown, so that the remaining
+	 * tiles can be processed in smaller parts.
+	 */
+	void setMemoryMonitor(MemoryMonitor monitor);
+
+	/**
+	 * Set a filter which detects tiles containing only background. Such tiles
+	 * are not run through the network, their output is filled with a constant.
+	 * Only applies to tiled views with a merger. Default value is null, which
+	 * runs all tiles.
+	 */
+	void setBackgroundFilter(BackgroundFilter filter);
+
+	/**
+	 * Set if a batch of zeros with the shape of the first batch is run through
+	 * the network before the first tile, so that the time the backend needs to
+	 * allocate memory and select kernels is not spent on real tiles. Each shape
+	 * is only warmed up once per loaded model. Default value is false.
+	 */
+	void setWarmUp(boolean warmUp);
+
+	/**
+	 * Set if batches of tiles are combined with batches of the same shape from
+	 * other images processed at the same time, see {@link MicroBatcher}. The
+	 * first batch waits up to {@code delay} milliseconds for others, at most
+	 * {@code maxTiles} tiles are run in one call. Default delay is 0, which
+	 * runs each batch on its own.
+	 */
+	void setMicroBatching(int maxTiles, long delay);
+
+	/**
+	 * Set the session settings the model is loaded with. Changing the profile of
+	 * a loaded model unloads it, so that it gets loaded again with the new
+	 * settings.
+	 */
+	void setExecutionProfile(ExecutionProfile profile);
+
 	default void loadLibrary(){}
 
 	/**
@@ -0,0 +1,148 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.csbdresden.csbdeep.network.model;
+
+import java.util.List;
+
+import de.csbdresden.csbdeep.imglib2.TiledView;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * A group of tiles which is passed through the network in one call, together
+ * with the native input and output data of the call while the batch is in
+ * flight.
+ */
+public class TileBatch<T extends RealType<T>> implements AutoCloseable {
+
+	private final List<RandomAccessibleInterval<T>> tiles;
+	private final int firstTile;
+	private final TiledView<T> source;
+	private AutoCloseable input;
+	private AutoCloseable output;
+	private List<RandomAccessibleInterval<T>> results;
+
+	public TileBatch(final List<RandomAccessibleInterval<T>> tiles,
+		final int firstTile)
+	{
+		this(tiles, firstTile, null);
+	}
+
+	public TileBatch(final List<RandomAccessibleInterval<T>> tiles,
+		final int firstTile, final TiledView<T> source)
+	{
+		this.tiles = tiles;
+		this.firstTile = firstTile;
+		this.source = source;
+	}
+
+	public List<RandomAccessibleInterval<T>> getTiles() {
+		return tiles;
+	}
+
+	public int size() {
+		return tiles.size();
+	}
+
+	/**
+	 * @return the index of the first tile of this batch in the tiled view or -1
+	 *         if the tiles are not taken from the tiled view
+	 */
+	public int getFirstTile() {
+		return firstTile;
+	}
+
+	/**
+	 * @return the tiled view the tiles are taken from or null if they are not
+	 *         taken from a tiled view
+	 */
+	public TiledView<T> getSource() {
+		return source;
+	}
+
+	/**
+	 * @return the object identifying the image this batch belongs to when
+	 *         batches of several images compete for the network
+	 */
+	public Object getClient() {
+		return source != null ? source : this;
+	}
+
+	public AutoCloseable getInput() {
+		return input;
+	}
+
+	public void setInput(final AutoCloseable input) {
+		this.input = input;
+	}
+
+	public AutoCloseable getOutput() {
+		return output;
+	}
+
+	public void setOutput(final AutoCloseable output) {
+		this.output = output;
+	}
+
+	public List<RandomAccessibleInterval<T>> getResults() {
+		return results;
+	}
+
+	public void setResults(final List<RandomAccessibleInterval<T>> results) {
+		this.results = results;
+	}
+
+	public void closeInput() {
+		close(input);
+		input = null;
+	}
+
+	public void closeOutput() {
+		close(output);
+		output = null;
+	}
+
+	@Override
+	public void close() {
+		closeInput();
+		closeOutput();
+	}
+
+	private static void close(final AutoCloseable data) {
+		if (data == null) return;
+		try {
+			data.close();
+		}
+		catch (final Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
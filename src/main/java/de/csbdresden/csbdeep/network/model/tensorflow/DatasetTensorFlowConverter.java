@@ -29,8 +29,15 @@
 
 package de.csbdresden.csbdeep.network.model.tensorflow;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import org.tensorflow.DataType;
 import org.tensorflow.Tensor;
+import org.tensorflow.types.UInt8;
 
 import de.csbdresden.csbdeep.converter.*;
 import net.imagej.tensorflow.Tensors;
@@ -130,4 +137,88 @@ public class DatasetTensorFlowConverter {
 		return tensor;
 	}
 
+	/**
+	 * Concatenates tensors of the same type and shape along their first (batch)
+	 * dimension. Since tensors are stored in row-major order, this is a plain
+	 * concatenation of the tensor buffers.
+	 */
+	public static Tensor stackTensors(final List<Tensor> tensors) {
+		final Tensor first = tensors.get(0);
+		final long[] shape = first.shape();
+		long batch = 0;
+		long numBytes = 0;
+		for (final Tensor tensor : tensors) {
+			final long[] tensorShape = tensor.shape();
+			if (!tensor.dataType().equals(first.dataType()) ||
+				tensorShape.length == 0 || !Arrays.equals(Arrays.copyOfRange(
+					tensorShape, 1, tensorShape.length), Arrays.copyOfRange(shape, 1,
+						shape.length)))
+			{
+				throw new IllegalArgumentException(
+					"Cannot stack tensors of different type or shape");
+			}
+			batch += tensorShape[0];
+			numBytes += tensor.numBytes();
+		}
+		if (numBytes > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Cannot stack " + tensors.size() +
+				" tensors of " + numBytes + " bytes in total, more than the " +
+				Integer.MAX_VALUE + " bytes of a buffer");
+		}
+		final ByteBuffer buffer = ByteBuffer.allocateDirect((int) numBytes).order(
+			ByteOrder.nativeOrder());
+		for (final Tensor tensor : tensors) {
+			tensor.writeTo(buffer);
+		}
+		buffer.rewind();
+		shape[0] = batch;
+		return Tensor.create(typeClass(first.dataType()), shape, buffer);
+	}
+
+	/**
+	 * Splits a tensor into {@code parts} tensors of equal size along its first
+	 * (batch) dimension.
+	 *
+	 * @return the parts or null if the batch dimension cannot be divided into
+	 *         {@code parts} parts
+	 */
+	public static List<Tensor> splitTensor(final Tensor tensor,
+		final int parts)
+	{
+		final long[] shape = tensor.shape();
+		if (shape.length == 0 || shape[0] % parts != 0) return null;
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(tensor.numBytes())
+			.order(ByteOrder.nativeOrder());
+		tensor.writeTo(buffer);
+		final int partBytes = tensor.numBytes() / parts;
+		final long[] partShape = shape.clone();
+		partShape[0] /= parts;
+		final List<Tensor> res = new ArrayList<>();
+		for (int i = 0; i < parts; i++) {
+			buffer.position(i * partBytes);
+			buffer.limit((i + 1) * partBytes);
+			res.add(Tensor.create(typeClass(tensor.dataType()), partShape, buffer
+				.slice().order(ByteOrder.nativeOrder())));
+		}
+		return res;
+	}
+
+	private static Class typeClass(final DataType dataType) {
+		switch (dataType) {
+			case FLOAT:
+				return Float.class;
+			case DOUBLE:
+				return Double.class;
+			case INT32:
+				return Integer.class;
+			case INT64:
+				return Long.class;
+			case UINT8:
+				return UInt8.class;
+			default:
+				throw new IllegalArgumentException("Unsupported tensor type: " +
+					dataType);
+		}
+	}
+
 }
@@ -0,0 +1,174 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.csbdresden.csbdeep.network.model.tensorflow;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.scijava.io.location.FileLocation;
+import org.scijava.io.location.Location;
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.prefs.PrefService;
+import org.scijava.service.AbstractService;
+import org.scijava.service.Service;
+import org.scijava.thread.ThreadService;
+
+import de.csbdresden.csbdeep.commands.GenericCoreNetwork;
+import de.csbdresden.csbdeep.commands.GenericNetwork;
+import de.csbdresden.csbdeep.network.model.ExecutionProfile;
+import de.csbdresden.csbdeep.util.IOHelper;
+import de.csbdresden.csbdeep.util.ModelSourceResolver;
+import net.imagej.tensorflow.TensorFlowService;
+
+@Plugin(type = Service.class)
+public class DefaultModelPreloadService extends AbstractService implements
+	ModelPreloadService
+{
+
+	private static final String STARTUP_MODELS = "startupModels";
+
+	@Parameter
+	private TensorFlowService tensorFlowService;
+
+	@Parameter
+	private ModelRegistryService modelRegistry;
+
+	@Parameter
+	private PrefService prefService;
+
+	@Parameter
+	private ThreadService threadService;
+
+	@Parameter(required = false)
+	private LogService logService;
+
+	@Override
+	public void initialize() {
+		final List<String> models = getStartupModels();
+		if (models.isEmpty()) return;
+		threadService.run(() -> {
+			for (final String model : models) {
+				preloadNow(model, GenericNetwork.class);
+			}
+		});
+	}
+
+	@Override
+	public Future<?> preload(final String pathOrURL,
+		final Class<?> commandClass)
+	{
+		return threadService.run(() -> preloadNow(pathOrURL, commandClass));
+	}
+
+	@Override
+	public List<String> getStartupModels() {
+		final String models = prefService.get(getClass(), STARTUP_MODELS, "");
+		final List<String> list = new ArrayList<>();
+		for (final String model : models.split("\n")) {
+			if (!model.trim().isEmpty()) list.add(model.trim());
+		}
+		return list;
+	}
+
+	@Override
+	public void setStartupModels(final List<String> pathsOrURLs) {
+		prefService.put(getClass(), STARTUP_MODELS, String.join("\n",
+			pathsOrURLs));
+	}
+
+	private void preloadNow(final String pathOrURL, final Class<?> commandClass) {
+		final long start = System.currentTimeMillis();
+		tensorFlowService.loadLibrary();
+		if (!tensorFlowService.getStatus().isLoaded()) {
+			warn("Could not preload " + pathOrURL +
+				", the TensorFlow library is not loaded.");
+			return;
+		}
+		try {
+			final Class<? extends GenericCoreNetwork> networkClass = getNetworkClass(
+				commandClass);
+			final Location source;
+			final String name;
+			if (IOHelper.isUrl(pathOrURL)) {
+				// load the local copy the command will use as well
+				final ModelSourceResolver.Resolution local = ModelSourceResolver
+					.getInstance().resolve(pathOrURL, true);
+				if (local == null) {
+					warn("Could not preload " + pathOrURL +
+						", the model could not be downloaded.");
+					return;
+				}
+				source = new FileLocation(local.getFile());
+				name = IOHelper.getUrlCacheName(networkClass, pathOrURL, local
+					.getLastModified());
+			}
+			else {
+				source = IOHelper.loadFileOrURL(pathOrURL);
+				name = IOHelper.getFileCacheName(networkClass, new File(pathOrURL));
+			}
+			// the profile the command applies when it is not given one, stored
+			// under the class of the command which saved it
+			ExecutionProfile profile = ExecutionProfile.load(prefService,
+				networkClass, name);
+			if (profile == null) profile = new ExecutionProfile();
+			final RegisteredModel model = modelRegistry.acquire(name, profile,
+				() -> RegisteredModel.getDirectory(tensorFlowService,
+					source, name));
+			// released models stay loaded until they are evicted
+			modelRegistry.release(model);
+			if (logService != null) {
+				logService.info("Preloaded TensorFlow model " + pathOrURL + " in " +
+					(System.currentTimeMillis() - start) + " milliseconds");
+			}
+		}
+		catch (final IOException e) {
+			warn("Could not preload " + pathOrURL + ": " + e.getMessage());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Class<? extends GenericCoreNetwork> getNetworkClass(
+		final Class<?> commandClass)
+	{
+		return GenericCoreNetwork.class.isAssignableFrom(commandClass)
+			? (Class<? extends GenericCoreNetwork>) commandClass
+			: GenericNetwork.class;
+	}
+
+	private void warn(final String message) {
+		if (logService != null) logService.warn(message);
+	}
+
+}
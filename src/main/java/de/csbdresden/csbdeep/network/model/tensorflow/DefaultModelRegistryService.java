@@ -0,0 +1,252 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.csbdresden.csbdeep.network.model.tensorflow;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import org.scijava.log.LogService;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.service.AbstractService;
+import org.scijava.service.Service;
+
+import de.csbdresden.csbdeep.network.model.ExecutionProfile;
+
+@Plugin(type = Service.class)
+public class DefaultModelRegistryService extends AbstractService implements
+	ModelRegistryService
+{
+
+	@Parameter(required = false)
+	private LogService logService;
+
+	private static class Key {
+
+		private final String name;
+		private final ExecutionProfile profile;
+
+		Key(final String name, final ExecutionProfile profile) {
+			this.name = name;
+			this.profile = profile;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof Key)) return false;
+			final Key other = (Key) obj;
+			return name.equals(other.name) && profile.equals(other.profile);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(name, profile);
+		}
+	}
+
+	// access order, the least recently used model comes first
+	private final LinkedHashMap<Key, RegisteredModel> models =
+		new LinkedHashMap<>(16, 0.75f, true);
+	// models being loaded
+	private final Map<Key, CompletableFuture<RegisteredModel>> loading =
+		new HashMap<>();
+	private int maxModels = 4;
+	private long maxBytes = 2L * 1024 * 1024 * 1024;
+
+	/**
+	 * Models are loaded outside of the lock of the registry, so that loading a
+	 * model does not block the models already loaded. Callers asking for a
+	 * model which is being loaded wait for it.
+	 */
+	@Override
+	public RegisteredModel acquire(final String name,
+		final ExecutionProfile profile, final Callable<File> directory)
+		throws IOException
+	{
+		final Key key = new Key(name, profile);
+		while (true) {
+			final CompletableFuture<RegisteredModel> pending;
+			final boolean load;
+			synchronized (this) {
+				final RegisteredModel model = models.get(key);
+				if (model != null) return reference(model);
+				load = !loading.containsKey(key);
+				if (load) loading.put(key, new CompletableFuture<>());
+				pending = loading.get(key);
+			}
+			if (load) return load(key, directory, pending);
+			final RegisteredModel model;
+			try {
+				model = pending.get();
+			}
+			catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for " +
+					"model " + name + " to load");
+			}
+			catch (final ExecutionException e) {
+				throw e.getCause() instanceof IOException ? (IOException) e
+					.getCause() : new IOException(e.getCause());
+			}
+			synchronized (this) {
+				// otherwise it was unloaded again in the meantime
+				if (models.get(key) == model) return reference(model);
+			}
+		}
+	}
+
+	private RegisteredModel load(final Key key, final Callable<File> directory,
+		final CompletableFuture<RegisteredModel> pending) throws IOException
+	{
+		final RegisteredModel model;
+		try {
+			model = load(key.name, key.profile, directory.call());
+		}
+		catch (final Exception e) {
+			synchronized (this) {
+				loading.remove(key);
+			}
+			pending.completeExceptionally(e);
+			if (e instanceof IOException) throw (IOException) e;
+			throw new IOException(e);
+		}
+		synchronized (this) {
+			loading.remove(key);
+			models.put(key, model);
+			log("Loaded TensorFlow model " + model + " into the model registry");
+			reference(model);
+		}
+		pending.complete(model);
+		return model;
+	}
+
+	/**
+	 * Loads a model, called without holding the lock of the registry.
+	 */
+	protected RegisteredModel load(final String name,
+		final ExecutionProfile profile, final File directory) throws IOException
+	{
+		return new RegisteredModel(name, profile, directory);
+	}
+
+	private RegisteredModel reference(final RegisteredModel model) {
+		model.references++;
+		model.unloadRequested = false;
+		evict();
+		return model;
+	}
+
+	@Override
+	public synchronized void release(final RegisteredModel model) {
+		if (model.references > 0) model.references--;
+		if (model.references == 0 && model.unloadRequested) {
+			remove(model);
+		}
+		evict();
+	}
+
+	@Override
+	public synchronized boolean unload(final String name) {
+		boolean found = false;
+		for (final RegisteredModel model : new ArrayList<>(models.values())) {
+			if (!model.getName().equals(name)) continue;
+			found = true;
+			if (model.references == 0) remove(model);
+			else model.unloadRequested = true;
+		}
+		return found;
+	}
+
+	@Override
+	public synchronized void unloadAll() {
+		for (final RegisteredModel model : new ArrayList<>(models.values())) {
+			unload(model.getName());
+		}
+	}
+
+	@Override
+	public synchronized void setLimits(final int maxModels, final long maxBytes) {
+		this.maxModels = maxModels;
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	@Override
+	public synchronized List<String> getLoadedModels() {
+		final List<String> names = new ArrayList<>();
+		models.values().forEach(model -> names.add(model.getName()));
+		return names;
+	}
+
+	@Override
+	public synchronized void dispose() {
+		models.values().forEach(RegisteredModel::close);
+		models.clear();
+	}
+
+	private void evict() {
+		long bytes = models.values().stream().mapToLong(RegisteredModel::getBytes)
+			.sum();
+		int count = models.size();
+		final Iterator<Map.Entry<Key, RegisteredModel>> it = models.entrySet()
+			.iterator();
+		while ((count > maxModels || bytes > maxBytes) && it.hasNext()) {
+			final RegisteredModel model = it.next().getValue();
+			if (model.references > 0) continue;
+			it.remove();
+			model.close();
+			count--;
+			bytes -= model.getBytes();
+			log("Unloaded TensorFlow model " + model + " from the model registry");
+		}
+	}
+
+	private void remove(final RegisteredModel model) {
+		models.values().remove(model);
+		model.close();
+		log("Unloaded TensorFlow model " + model + " from the model registry");
+	}
+
+	private void log(final String message) {
+		if (logService != null) logService.info(message);
+	}
+
+}
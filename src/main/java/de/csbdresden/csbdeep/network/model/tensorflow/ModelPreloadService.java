@@ -0,0 +1,61 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.csbdresden.csbdeep.network.model.tensorflow;
+
+import java.util.List;
+import java.util.concurrent.Future;
+
+import net.imagej.ImageJService;
+
+/**
+ * Loads TensorFlow models into the {@link ModelRegistryService} before a
+ * command needs them. The models configured with
+ * {@link #setStartupModels(List)} are loaded in the background when the
+ * context starts.
+ */
+public interface ModelPreloadService extends ImageJService {
+
+	/**
+	 * Loads a model in the background, together with the TensorFlow library.
+	 * The model is registered under the name the command of the given class
+	 * uses for it, with the execution profile stored for it.
+	 *
+	 * @param pathOrURL the model file or URL as given to the command
+	 */
+	Future<?> preload(String pathOrURL, Class<?> commandClass);
+
+	/**
+	 * @return the model files or URLs preloaded when the context starts
+	 */
+	List<String> getStartupModels();
+
+	void setStartupModels(List<String> pathsOrURLs);
+
+}
@@ -0,0 +1,86 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.csbdresden.csbdeep.network.model.tensorflow;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import net.imagej.ImageJService;
+
+import de.csbdresden.csbdeep.network.model.ExecutionProfile;
+
+/**
+ * Keeps TensorFlow models loaded across command runs. Models are identified by
+ * their cache name and the execution profile their sessions were created
+ * with. A network acquires a model before using it and releases it when it is
+ * done. Released models stay loaded until they are unloaded explicitly or
+ * evicted, least recently used first, to stay within the configured number
+ * of models and bytes.
+ */
+public interface ModelRegistryService extends ImageJService {
+
+	/**
+	 * Returns the registered model and increases its reference count. If the
+	 * model is not loaded yet, it is loaded from the directory returned by
+	 * {@code directory}, which is only called in this case.
+	 */
+	RegisteredModel acquire(String name, ExecutionProfile profile,
+		Callable<File> directory) throws IOException;
+
+	/**
+	 * Decreases the reference count of a model acquired with
+	 * {@link #acquire(String, ExecutionProfile, Callable)}.
+	 */
+	void release(RegisteredModel model);
+
+	/**
+	 * Unloads all versions of a model. Models still in use are unloaded as soon
+	 * as they are released.
+	 *
+	 * @return false if no model with this name is registered
+	 */
+	boolean unload(String name);
+
+	void unloadAll();
+
+	/**
+	 * Set how many models and how many bytes of model files are kept loaded
+	 * when they are not in use.
+	 */
+	void setLimits(int maxModels, long maxBytes);
+
+	/**
+	 * @return the names of the loaded models, least recently used first
+	 */
+	List<String> getLoadedModels();
+
+}
@@ -0,0 +1,333 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.csbdresden.csbdeep.network.model.tensorflow;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import org.scijava.io.location.FileLocation;
+import org.scijava.io.location.Location;
+import org.tensorflow.SavedModelBundle;
+import org.tensorflow.Tensor;
+import org.tensorflow.TensorFlowException;
+import org.tensorflow.framework.ConfigProto;
+import org.tensorflow.framework.GraphOptions;
+import org.tensorflow.framework.MetaGraphDef;
+import org.tensorflow.framework.OptimizerOptions;
+import org.tensorflow.framework.RewriterConfig;
+import org.tensorflow.framework.SignatureDef;
+import org.tensorflow.framework.TensorInfo;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import de.csbdresden.csbdeep.network.model.ExecutionProfile;
+import de.csbdresden.csbdeep.network.model.MicroBatcher;
+import de.csbdresden.csbdeep.util.IOHelper;
+import net.imagej.tensorflow.TensorFlowService;
+
+/**
+ * A model loaded by the {@link ModelRegistryService}. It owns the sessions of
+ * the model and the parsed signature of the graph.
+ */
+public class RegisteredModel {
+
+	static final String MODEL_TAG = "serve";
+	// Same as
+	// tf.saved_model.signature_constants.DEFAULT_SERVING_SIGNATURE_DEF_KEY
+	// in Python.
+	private static final String DEFAULT_SERVING_SIGNATURE_DEF_KEY =
+		"serving_default";
+
+	private final String name;
+	private final ExecutionProfile profile;
+	private final File directory;
+	private final List<SavedModelBundle> sessions = new ArrayList<>();
+	private final SignatureDef signature;
+	private final long bytes;
+	private final Set<List<Long>> warmShapes = ConcurrentHashMap.newKeySet();
+	private TensorFlowSessionPool sessionPool;
+	private MicroBatcher<Tensor, Tensor> microBatcher;
+	int references = 0;
+	boolean unloadRequested = false;
+	private boolean closed = false;
+
+	RegisteredModel(final String name, final ExecutionProfile profile,
+		final File directory) throws IOException
+	{
+		this.name = name;
+		this.profile = profile;
+		this.directory = directory;
+		try {
+			sessions.add(loadSession());
+		}
+		catch (final TensorFlowException e) {
+			throw new IOException(e);
+		}
+		signature = parseSignature(sessions.get(0));
+		bytes = size(directory);
+	}
+
+	/**
+	 * Creates an entry of the given size without loading a session, e.g. to
+	 * test the bookkeeping of the registry.
+	 */
+	RegisteredModel(final String name, final ExecutionProfile profile,
+		final long bytes)
+	{
+		this.name = name;
+		this.profile = profile;
+		directory = null;
+		signature = null;
+		this.bytes = bytes;
+	}
+
+	/**
+	 * @return the directory of an unpacked model given as source or the
+	 *         directory the model archive is extracted to
+	 */
+	public static File getDirectory(final TensorFlowService tensorFlowService,
+		final Location source, final String modelName) throws IOException
+	{
+		if (source instanceof FileLocation) {
+			final File directory = IOHelper.getSavedModelDirectory(
+				((FileLocation) source).getFile());
+			if (directory != null) return directory;
+		}
+		return tensorFlowService.loadFile(source, modelName,
+			IOHelper.SAVED_MODEL_FILE).getParentFile();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public ExecutionProfile getProfile() {
+		return profile;
+	}
+
+	/**
+	 * @return the serving signature of the model or null if it cannot be read
+	 */
+	public SignatureDef getSignature() {
+		return signature;
+	}
+
+	/**
+	 * @return the size of the model files
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return true if a batch of the given shape has been run through this
+	 *         model, see {@link #setWarm(List)}
+	 */
+	public boolean isWarm(final List<Long> shape) {
+		return warmShapes.contains(shape);
+	}
+
+	public void setWarm(final List<Long> shape) {
+		warmShapes.add(shape);
+	}
+
+	public synchronized SavedModelBundle getSession() {
+		return sessions.get(0);
+	}
+
+	/**
+	 * Returns the pool all network runs of this model share, with room for at
+	 * least {@code runs} concurrent runs. With the default profile all entries
+	 * are the same session. Otherwise each entry is its own session with the
+	 * thread budget of the profile, missing sessions are loaded. The pool only
+	 * grows, so concurrent runs of several images are limited by the largest
+	 * number of runs any of them asked for and take turns on these entries.
+	 */
+	public synchronized TensorFlowSessionPool getSessionPool(final int runs) {
+		if (sessionPool == null) {
+			sessionPool = new TensorFlowSessionPool(sessions.subList(0, 1));
+		}
+		while (sessionPool.size() < runs) {
+			if (profile.isDefault()) {
+				sessionPool.add(sessions.get(0));
+			}
+			else {
+				final SavedModelBundle session = loadSession();
+				sessions.add(session);
+				sessionPool.add(session);
+			}
+		}
+		return sessionPool;
+	}
+
+	/**
+	 * Returns the batcher which combines the input tensors of concurrent
+	 * network runs of this model into one session call. The limits are updated
+	 * with each call.
+	 */
+	public synchronized MicroBatcher<Tensor, Tensor> getMicroBatcher(
+		final TensorInfo inputInfo, final TensorInfo outputInfo,
+		final int maxTiles, final long delay)
+	{
+		if (microBatcher == null) {
+			microBatcher = new MicroBatcher<>(new SessionBackend(inputInfo,
+				outputInfo), maxTiles, delay);
+		}
+		else {
+			microBatcher.setLimits(maxTiles, delay);
+		}
+		return microBatcher;
+	}
+
+	/**
+	 * Stacks the collected input tensors, runs them on a session of the pool and
+	 * splits the output into one tensor per input.
+	 */
+	private class SessionBackend implements MicroBatcher.Backend<Tensor, Tensor> {
+
+		private final TensorInfo inputInfo;
+		private final TensorInfo outputInfo;
+
+		SessionBackend(final TensorInfo inputInfo, final TensorInfo outputInfo) {
+			this.inputInfo = inputInfo;
+			this.outputInfo = outputInfo;
+		}
+
+		@Override
+		public Object key(final Tensor input) {
+			return Arrays.asList(input.dataType(), Arrays.toString(input.shape()));
+		}
+
+		@Override
+		public int size(final Tensor input) {
+			final long[] shape = input.shape();
+			return shape.length == 0 ? 1 : (int) shape[0];
+		}
+
+		@Override
+		public List<Tensor> run(final List<Tensor> inputs) throws Exception {
+			if (inputs.size() == 1) {
+				return Collections.singletonList(execute(inputs.get(0)));
+			}
+			final List<Tensor> outputs;
+			try (Tensor stacked = DatasetTensorFlowConverter.stackTensors(inputs);
+				Tensor output = execute(stacked))
+			{
+				outputs = output == null ? null : DatasetTensorFlowConverter
+					.splitTensor(output, inputs.size());
+			}
+			if (outputs != null) return outputs;
+			// the network does not keep the batch dimension
+			final List<Tensor> separate = new ArrayList<>();
+			for (final Tensor input : inputs) {
+				separate.add(execute(input));
+			}
+			return separate;
+		}
+
+		private Tensor execute(final Tensor input) throws Exception {
+			final TensorFlowSessionPool sessions = getSessionPool(1);
+			final SavedModelBundle session = sessions.borrow(this);
+			try {
+				return TensorFlowRunner.executeGraph(session, input, inputInfo,
+					outputInfo);
+			}
+			finally {
+				sessions.release(session);
+			}
+		}
+	}
+
+	synchronized void close() {
+		if (closed) return;
+		sessions.forEach(SavedModelBundle::close);
+		sessions.clear();
+		sessionPool = null;
+		microBatcher = null;
+		closed = true;
+	}
+
+	private SavedModelBundle loadSession() {
+		return SavedModelBundle.loader(directory.getAbsolutePath()) //
+			.withTags(MODEL_TAG) //
+			.withConfigProto(getConfigProto(profile).toByteArray()) //
+			.load();
+	}
+
+	private static SignatureDef parseSignature(final SavedModelBundle session) {
+		try {
+			return MetaGraphDef.parseFrom(session.metaGraphDef())
+				.getSignatureDefOrThrow(DEFAULT_SERVING_SIGNATURE_DEF_KEY);
+		}
+		catch (final InvalidProtocolBufferException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private static ConfigProto getConfigProto(final ExecutionProfile profile) {
+		final OptimizerOptions.GlobalJitLevel jitLevel = profile
+			.isJitCompilation() ? OptimizerOptions.GlobalJitLevel.ON_1
+				: OptimizerOptions.GlobalJitLevel.OFF;
+		final GraphOptions graphOptions = GraphOptions.newBuilder() //
+			.setOptimizerOptions(OptimizerOptions.newBuilder() //
+				.setGlobalJitLevel(jitLevel)) //
+			.setRewriteOptions(RewriterConfig.newBuilder() //
+				.setDisableMetaOptimizer(!profile.isGraphOptimizations())) //
+			.build();
+		return ConfigProto.newBuilder() //
+			.setIntraOpParallelismThreads(profile.getIntraOpThreads()) //
+			.setInterOpParallelismThreads(profile.getInterOpThreads()) //
+			.setGraphOptions(graphOptions) //
+			.build();
+	}
+
+	private static long size(final File directory) throws IOException {
+		try (Stream<Path> files = Files.walk(directory.toPath())) {
+			return files.filter(Files::isRegularFile).mapToLong(file -> file.toFile()
+				.length()).sum();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return name + " (" + profile + ")";
+	}
+
+}
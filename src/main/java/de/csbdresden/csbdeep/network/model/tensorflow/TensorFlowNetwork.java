@@ -43,27 +43,27 @@ import org.scijava.command.CommandService;
 import org.scijava.io.location.Location;
 import org.scijava.log.LogService;
 import org.scijava.plugin.Parameter;
+import org.tensorflow.SavedModelBundle;
 import org.tensorflow.Tensor;
 import org.tensorflow.TensorFlow;
-import org.tensorflow.TensorFlowException;
-import org.tensorflow.framework.MetaGraphDef;
 import org.tensorflow.framework.SignatureDef;
 import org.tensorflow.framework.TensorInfo;
 import org.tensorflow.framework.TensorShapeProto;
 
 import com.google.gson.stream.JsonReader;
 import com.google.gson.stream.JsonToken;
-import com.google.protobuf.InvalidProtocolBufferException;
 
 import de.csbdresden.csbdeep.network.DefaultInputMapper;
 import de.csbdresden.csbdeep.network.model.DefaultNetwork;
+import de.csbdresden.csbdeep.network.model.ExecutionProfile;
 import de.csbdresden.csbdeep.network.model.NetworkSettings;
+import de.csbdresden.csbdeep.network.model.TileBatch;
 import de.csbdresden.csbdeep.task.Task;
+import de.csbdresden.csbdeep.tiling.AdvancedTiledView;
 import net.imagej.Dataset;
 import net.imagej.DatasetService;
 import net.imagej.axis.Axes;
 import net.imagej.axis.AxisType;
-import net.imagej.tensorflow.CachedModelBundle;
 import net.imagej.tensorflow.TensorFlowService;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.numeric.RealType;
@@ -86,19 +86,16 @@ public class TensorFlowNetwork<T extends RealType<T>> extends
 	@Parameter
 	private LogService logService;
 
-	private CachedModelBundle model;
+	@Parameter
+	private ModelRegistryService modelRegistry;
+
+	private RegisteredModel model;
+	private final TileGatherer gatherer = new TileGatherer();
 	private SignatureDef sig;
 	private Map meta;
 	private boolean tensorFlowLoaded = false;
 	private TensorInfo inputTensorInfo, outputTensorInfo;
 	private AxisType axisToRemove;
-	// Same as
-	// tf.saved_model.signature_constants.DEFAULT_SERVING_SIGNATURE_DEF_KEY
-	// in Python. Perhaps this should be an exported constant in TensorFlow's Java
-	// API.
-	private static final String MODEL_TAG = "serve";
-	private static final String DEFAULT_SERVING_SIGNATURE_DEF_KEY =
-		"serving_default";
 
 	public TensorFlowNetwork(Task associatedTask)
 	{
@@ -156,27 +153,25 @@ public class TensorFlowNetwork<T extends RealType<T>> extends
 	protected boolean loadModel(final Location source, final String modelName) {
 		if(!tensorFlowLoaded) return false;
 		log("Loading TensorFlow model " + modelName + " from source file " + source.getURI());
+		if (!executionProfile.isDefault()) {
+			log("Execution profile: " + executionProfile);
+		}
 		try {
-			if (model != null) {
-				model.close();
-			}
-			model = tensorFlowService.loadCachedModel(source, modelName, MODEL_TAG);
+			releaseModel();
+			// the registry only unpacks the model if it is not loaded yet
+			model = modelRegistry.acquire(modelName, executionProfile,
+				() -> RegisteredModel.getDirectory(tensorFlowService,
+					source, modelName));
 //			loadNetworkSettingsFromJson(tensorFlowService.loadFile(source, modelName, "meta.json"));
 		}
-		catch (TensorFlowException | IOException e) {
+		catch (IOException e) {
 			e.printStackTrace();
 			return false;
 		}
-		// Extract names from the model signature.
+		// Names are taken from the model signature.
 		// The strings "input", "probabilities" and "patches" are meant to be
 		// in sync with the model exporter (export_saved_model()) in Python.
-		try {
-			sig = MetaGraphDef.parseFrom(model.model().metaGraphDef()).getSignatureDefOrThrow(
-				DEFAULT_SERVING_SIGNATURE_DEF_KEY);
-		}
-		catch (final InvalidProtocolBufferException e) {
-			 e.printStackTrace();
-		}
+		sig = model.getSignature();
 		return true;
 	}
 
@@ -352,7 +347,7 @@ public class TensorFlowNetwork<T extends RealType<T>> extends
 			convertNodeMappingToImgMapping(getInputNode().getMappingIndices()));
 		if (inputTensor != null) {
 			RandomAccessibleInterval<T> output = null;
-			Tensor outputTensor = TensorFlowRunner.executeGraph(model.model(), inputTensor,
+			Tensor outputTensor = TensorFlowRunner.executeGraph(getSession(), inputTensor,
 				getInputTensorInfo(), getOutputTensorInfo());
 
 			if (outputTensor != null) {
@@ -367,6 +362,176 @@ public class TensorFlowNetwork<T extends RealType<T>> extends
 		return null;
 	}
 
+	@Override
+	public List<RandomAccessibleInterval<T>> executeBatch(
+		final List<RandomAccessibleInterval<T>> tiles) throws Exception
+	{
+		if (tiles.size() < 2 || !keepsBatchDimension()) return super.executeBatch(
+			tiles);
+		try (final TileBatch<T> batch = new TileBatch<>(tiles, -1)) {
+			createInput(batch);
+			runBatch(batch);
+			createResults(batch);
+			return batch.getResults();
+		}
+	}
+
+	@Override
+	protected void prepareBatch(final TileBatch<T> batch) throws Exception {
+		super.prepareBatch(batch);
+		createInput(batch);
+	}
+
+	@Override
+	protected void runBatch(final TileBatch<T> batch) throws Exception {
+		final Tensor inputTensor = (Tensor) batch.getInput();
+		if (inputTensor == null) return;
+		if (microBatchDelay > 0 && batch.getFirstTile() >= 0 &&
+			keepsBatchDimension())
+		{
+			// combined with same-shaped batches of other images run at this time
+			batch.setOutput(model.getMicroBatcher(getInputTensorInfo(),
+				getOutputTensorInfo(), microBatchTiles, microBatchDelay).run(
+					inputTensor));
+			batch.closeInput();
+			return;
+		}
+		final TensorFlowSessionPool sessions = getSessionPool();
+		// batches of concurrent images take turns on the sessions of the model
+		final SavedModelBundle session = sessions.borrow(batch.getClient());
+		try {
+			batch.setOutput(TensorFlowRunner.executeGraph(session, inputTensor,
+				getInputTensorInfo(), getOutputTensorInfo()));
+		}
+		finally {
+			sessions.release(session);
+		}
+		batch.closeInput();
+	}
+
+	/**
+	 * Checks the output signature of the model: only an output with a variable
+	 * first dimension holds one entry per tile of a batch.
+	 */
+	@Override
+	protected boolean keepsBatchDimension() {
+		final TensorInfo outputInfo = getOutputTensorInfo();
+		if (outputInfo == null) return true;
+		final TensorShapeProto shape = outputInfo.getTensorShape();
+		return !shape.getUnknownRank() && shape.getDimCount() > 0 && shape.getDim(
+			0).getSize() < 0;
+	}
+
+	private synchronized TensorFlowSessionPool getSessionPool() {
+		return model.getSessionPool(concurrentRuns);
+	}
+
+	private SavedModelBundle getSession() {
+		return model.getSession();
+	}
+
+	/**
+	 * Hands the model back to the registry, which keeps it loaded for the next
+	 * run.
+	 */
+	private synchronized void releaseModel() {
+		if (model != null) {
+			modelRegistry.release(model);
+		}
+		model = null;
+	}
+
+	@Override
+	public void setExecutionProfile(final ExecutionProfile profile) {
+		if (!profile.equals(executionProfile) && isInitialized()) {
+			log("Execution profile changed, the model will be loaded again.");
+			clear();
+		}
+		super.setExecutionProfile(profile);
+	}
+
+	@Override
+	protected boolean isWarm(final long[] shape) {
+		// the warm-up lasts as long as the model stays in the registry
+		return model != null && model.isWarm(toList(shape));
+	}
+
+	@Override
+	protected void setWarm(final long[] shape) {
+		if (model != null) model.setWarm(toList(shape));
+	}
+
+	@Override
+	protected void finishBatch(final TileBatch<T> batch) throws Exception {
+		createResults(batch);
+		super.finishBatch(batch);
+	}
+
+	private void createInput(final TileBatch<T> batch) {
+		final int[] inputMapping = convertNodeMappingToImgMapping(getInputNode()
+			.getMappingIndices());
+		if (batch.getFirstTile() >= 0 && TileGatherer.canGather(batch
+			.getSource()))
+		{
+			batch.setInput(gatherer.gather((AdvancedTiledView<?>) batch.getSource(), batch
+				.getFirstTile(), batch.size(), inputMapping));
+			return;
+		}
+		final List<Tensor> inputTensors = new ArrayList<>();
+		try {
+			for (final RandomAccessibleInterval<T> tile : batch.getTiles()) {
+				final Tensor tensor = DatasetTensorFlowConverter.datasetToTensor(tile,
+					inputMapping);
+				if (tensor == null) return;
+				inputTensors.add(tensor);
+			}
+			if (inputTensors.size() == 1) {
+				batch.setInput(inputTensors.remove(0));
+			}
+			else {
+				batch.setInput(DatasetTensorFlowConverter.stackTensors(inputTensors));
+			}
+		}
+		finally {
+			inputTensors.forEach(Tensor::close);
+		}
+	}
+
+	private void createResults(final TileBatch<T> batch) throws Exception {
+		final Tensor outputTensor = (Tensor) batch.getOutput();
+		if (outputTensor == null) return;
+		final List<RandomAccessibleInterval<T>> tiles = batch.getTiles();
+		final int[] outputMapping = convertNodeMappingToImgMapping(getOutputNode()
+			.getMappingIndices());
+		final List<RandomAccessibleInterval<T>> results = new ArrayList<>();
+		if (tiles.size() == 1) {
+			results.add(DatasetTensorFlowConverter.tensorToDataset(outputTensor,
+				tiles.get(0).randomAccess().get(), outputMapping, dropSingletonDims));
+		}
+		else {
+			final List<Tensor> outputTensors = DatasetTensorFlowConverter
+				.splitTensor(outputTensor, tiles.size());
+			if (outputTensors == null) {
+				// batches of several tiles are only built if keepsBatchDimension()
+				throw new IllegalStateException("Cannot split output tensor of shape " +
+					Arrays.toString(outputTensor.shape()) + " into " + tiles.size() +
+					" tiles.");
+			}
+			try {
+				for (int i = 0; i < tiles.size(); i++) {
+					results.add(DatasetTensorFlowConverter.tensorToDataset(
+						outputTensors.get(i), tiles.get(i).randomAccess().get(),
+						outputMapping, dropSingletonDims));
+				}
+			}
+			finally {
+				outputTensors.forEach(Tensor::close);
+			}
+		}
+		batch.closeOutput();
+		batch.setResults(results);
+	}
+
 	private static int[] convertNodeMappingToImgMapping(int[] nodeMapping) {
 		int[] res = new int[nodeMapping.length];
 		for (int i = 0; i < nodeMapping.length; i++) {
@@ -415,7 +580,7 @@ public class TensorFlowNetwork<T extends RealType<T>> extends
 	public void clear() {
 		super.clear();
 		sig = null;
-		model = null;
+		releaseModel();
 		inputTensorInfo = null;
 		outputTensorInfo = null;
 		axisToRemove = null;
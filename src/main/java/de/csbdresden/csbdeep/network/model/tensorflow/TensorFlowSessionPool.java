@@ -0,0 +1,74 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.csbdresden.csbdeep.network.model.tensorflow;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.tensorflow.SavedModelBundle;
+
+import de.csbdresden.csbdeep.util.FairPool;
+
+/**
+ * Hands out TensorFlow models to concurrent network runs. Each entry of the
+ * pool is used by at most one run at a time. Entries can be distinct sessions
+ * of the same model or the same session several times, since running a
+ * session is thread safe. Runs of different images share the pool and take
+ * turns, see {@link FairPool}.
+ */
+public class TensorFlowSessionPool extends FairPool<SavedModelBundle> {
+
+	public TensorFlowSessionPool(final List<SavedModelBundle> sessions) {
+		super(sessions);
+	}
+
+	/**
+	 * Creates a pool of {@code runs} concurrent runners on one session.
+	 */
+	public static TensorFlowSessionPool shared(final SavedModelBundle session,
+		final int runs)
+	{
+		return new TensorFlowSessionPool(Collections.nCopies(Math.max(1, runs),
+			session));
+	}
+
+	/**
+	 * Waits until an entry of the pool is idle and returns it. It has to be
+	 * handed back with {@link #release(Object)}.
+	 */
+	public SavedModelBundle borrow() throws InterruptedException {
+		return borrow(this);
+	}
+
+	public List<SavedModelBundle> getSessions() {
+		return getEntries();
+	}
+
+}
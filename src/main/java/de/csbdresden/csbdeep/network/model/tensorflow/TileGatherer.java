@@ -0,0 +1,472 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.csbdresden.csbdeep.network.model.tensorflow;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.tensorflow.Tensor;
+
+import de.csbdresden.csbdeep.normalize.NormalizingConverter;
+import de.csbdresden.csbdeep.tiling.AdvancedTiledView;
+import net.imagej.ImgPlus;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.RealFloatConverter;
+import net.imglib2.converter.read.ConvertedRandomAccessibleInterval;
+import net.imglib2.img.ImgView;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.transform.integer.MixedTransform;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.IntervalView;
+import net.imglib2.view.MixedTransformView;
+
+/**
+ * Builds float input tensors for tiles of an {@link AdvancedTiledView} by
+ * reading the pixels directly from the input image. Mirror padding, the
+ * conversion to float and the reordering of the axes are done in one pass
+ * which writes the tensor buffer in its memory order. Images backed by an
+ * {@link ArrayImg} or {@link PlanarImg} of unsigned byte, unsigned short or
+ * float pixels are read from their primitive arrays, also if the input is
+ * normalized lazily by a {@link NormalizingConverter}, other images through
+ * a {@link RandomAccess}.
+ */
+public class TileGatherer {
+
+	private AdvancedTiledView<?> view;
+	private Source source;
+	private ByteBuffer buffer;
+
+	/**
+	 * @return true if the tiles of the given view can be gathered
+	 */
+	public static boolean canGather(final Object view) {
+		return view instanceof AdvancedTiledView &&
+			((AdvancedTiledView<?>) view).getUnexpandedSource() != null && Util
+				.getTypeFromInterval(((AdvancedTiledView<?>) view)
+					.getUnexpandedSource()) instanceof FloatType;
+	}
+
+	/**
+	 * Creates one tensor containing consecutive tiles of the view, stacked along
+	 * the first tensor dimension.
+	 *
+	 * @param view the tiled view
+	 * @param firstTile the index of the first tile in the iteration order of the
+	 *          view
+	 * @param numTiles the number of tiles, which need to have the same size
+	 * @param dimOrder image dimension {@code i} becomes tensor dimension
+	 *          {@code dimOrder[i]}
+	 */
+	public synchronized Tensor<Float> gather(final AdvancedTiledView<?> view,
+		final int firstTile, final int numTiles, final int[] dimOrder)
+	{
+		if (this.view != view) {
+			this.view = view;
+			source = createSource(view.getUnexpandedSource());
+		}
+
+		final int n = view.numDimensions();
+		final long[] grid = new long[n];
+		view.dimensions(grid);
+		final long[] gridPosition = new long[n];
+
+		// order[t] is the image dimension of tensor dimension t
+		final int[] order = new int[n];
+		for (int d = 0; d < n; d++) {
+			order[dimOrder[d]] = d;
+		}
+
+		IntervalIndexer.indexToPosition(firstTile, grid, gridPosition);
+		final long[] tileSize = new long[n];
+		view.getTileInterval(gridPosition).dimensions(tileSize);
+
+		final long[] shape = new long[n];
+		for (int d = 0; d < n; d++) {
+			shape[dimOrder[d]] = tileSize[d];
+		}
+		shape[0] *= numTiles;
+
+		final long numElements = numTiles * Intervals.numElements(
+			tileSize);
+		final FloatBuffer out = getBuffer(numElements);
+
+		final int inner = order[n - 1];
+		final float[] row = new float[(int) tileSize[inner]];
+		final int[] position = new int[n];
+
+		for (int tile = firstTile; tile < firstTile + numTiles; tile++) {
+			IntervalIndexer.indexToPosition(tile, grid, gridPosition);
+			source.setTile(mirrorTable(view, view.getTileInterval(gridPosition)));
+			Arrays.fill(position, 0);
+			boolean done = false;
+			while (!done) {
+				source.readRow(position, inner, row);
+				out.put(row);
+				// advance the outer tensor dimensions, the last one is the fastest
+				done = true;
+				for (int t = n - 2; t >= 0; t--) {
+					final int d = order[t];
+					if (++position[d] < tileSize[d]) {
+						done = false;
+						break;
+					}
+					position[d] = 0;
+				}
+			}
+		}
+
+		out.flip();
+		return Tensor.create(shape, out);
+	}
+
+	private FloatBuffer getBuffer(final long numElements) {
+		final long numBytes = numElements * Float.BYTES;
+		if (numBytes > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Tile batch of " + numElements +
+				" elements needs " + numBytes + " bytes, more than the " +
+				Integer.MAX_VALUE + " bytes of a buffer. Use smaller tiles or fewer" +
+				" tiles per batch.");
+		}
+		if (buffer == null || buffer.capacity() < numBytes) {
+			buffer = ByteBuffer.allocateDirect((int) numBytes).order(ByteOrder
+				.nativeOrder());
+		}
+		buffer.clear();
+		final FloatBuffer res = buffer.asFloatBuffer();
+		res.limit((int) numElements);
+		return res;
+	}
+
+	/**
+	 * For each dimension, computes the coordinate in the unexpanded source for
+	 * each coordinate of the tile by undoing the mirror expansion steps in
+	 * reverse order.
+	 */
+	private static long[][] mirrorTable(final AdvancedTiledView<?> view,
+		final Interval tile)
+	{
+		final int n = tile.numDimensions();
+		final List<Interval> mirrored = view.getMirrorIntervals();
+		final Interval source = view.getUnexpandedSource();
+		final long[][] table = new long[n][];
+		for (int d = 0; d < n; d++) {
+			table[d] = new long[(int) tile.dimension(d)];
+			for (int i = 0; i < table[d].length; i++) {
+				long x = tile.min(d) + i;
+				for (int level = mirrored.size() - 1; level >= 0; level--) {
+					x = mirror(x, mirrored.get(level).min(d), mirrored.get(level).max(
+						d));
+				}
+				table[d][i] = mirror(x, source.min(d), source.max(d));
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * Same as the double boundary of
+	 * {@link net.imglib2.outofbounds.OutOfBoundsMirrorFactory}.
+	 */
+	static long mirror(final long x, final long min, final long max) {
+		if (x >= min && x <= max) return x;
+		final long size = max - min + 1;
+		final long period = 2 * size;
+		final long m = Math.floorMod(x - min, period);
+		return min + (m < size ? m : period - 1 - m);
+	}
+
+	private static Source createSource(final RandomAccessibleInterval<?> image) {
+		final int n = image.numDimensions();
+		// dimensions added by Views.addDimension
+		RandomAccessibleInterval<?> rai = image;
+		while (rai instanceof IntervalView) {
+			final RandomAccessible<?> viewSource = ((IntervalView<?>) rai)
+				.getSource();
+			if (!(viewSource instanceof MixedTransformView) ||
+				!isAddDimension(((MixedTransformView<?>) viewSource)
+					.getTransformToSource())) break;
+			final RandomAccessible<?> inner = ((MixedTransformView<?>) viewSource)
+				.getSource();
+			if (!(inner instanceof RandomAccessibleInterval)) break;
+			rai = (RandomAccessibleInterval<?>) inner;
+		}
+		if (rai instanceof ConvertedRandomAccessibleInterval &&
+			((ConvertedRandomAccessibleInterval<?, ?>) rai)
+				.getConverter() instanceof RealFloatConverter)
+		{
+			Object img = unwrap(((ConvertedRandomAccessibleInterval<?, ?>) rai)
+				.getSource());
+			// input normalized lazily, see PercentileNormalizer#normalizeLazily
+			NormalizingConverter<?> normalization = null;
+			if (img instanceof ImgView && ((ImgView<?>) img)
+				.getSource() instanceof ConvertedRandomAccessibleInterval)
+			{
+				final ConvertedRandomAccessibleInterval<?, ?> normalized =
+					(ConvertedRandomAccessibleInterval<?, ?>) ((ImgView<?>) img)
+						.getSource();
+				if (normalized.getConverter() instanceof NormalizingConverter) {
+					normalization = (NormalizingConverter<?>) normalized.getConverter();
+					img = unwrap(normalized.getSource());
+				}
+			}
+			final Source source = PlanarSource.create(img, n);
+			if (source != null) return normalization == null ? source
+				: new NormalizedSource(source, normalization);
+		}
+		return new GenericSource(image);
+	}
+
+	private static Object unwrap(Object img) {
+		while (img instanceof ImgPlus) {
+			img = ((ImgPlus<?>) img).getImg();
+		}
+		return img;
+	}
+
+	private static boolean isAddDimension(final MixedTransform t) {
+		final int m = t.numTargetDimensions();
+		if (t.numSourceDimensions() != m + 1) return false;
+		for (int d = 0; d < m; d++) {
+			if (t.getComponentZero(d) || t.getComponentMapping(d) != d || t
+				.getComponentInversion(d) || t.getTranslation(d) != 0) return false;
+		}
+		return true;
+	}
+
+	private abstract static class Source {
+
+		protected long[][] table;
+
+		void setTile(final long[][] table) {
+			this.table = table;
+		}
+
+		/**
+		 * Reads the pixels along the tile dimension {@code inner} at the given
+		 * tile position into {@code row}.
+		 */
+		abstract void readRow(int[] position, int inner, float[] row);
+	}
+
+	private static class GenericSource extends Source {
+
+		private final RandomAccess<? extends RealType<?>> access;
+
+		GenericSource(final RandomAccessibleInterval<?> image) {
+			access = ((RandomAccessibleInterval<? extends RealType<?>>) image)
+				.randomAccess();
+		}
+
+		@Override
+		void readRow(final int[] position, final int inner, final float[] row) {
+			for (int d = 0; d < position.length; d++) {
+				if (d != inner) access.setPosition(table[d][position[d]], d);
+			}
+			final long[] innerTable = table[inner];
+			for (int i = 0; i < row.length; i++) {
+				access.setPosition(innerTable[i], inner);
+				row[i] = access.get().getRealFloat();
+			}
+		}
+	}
+
+	/**
+	 * Normalizes the rows of another source while they are read, so that the
+	 * normalized input never exists as a whole.
+	 */
+	private static class NormalizedSource extends Source {
+
+		private final Source source;
+		private final NormalizingConverter<?> normalization;
+
+		NormalizedSource(final Source source,
+			final NormalizingConverter<?> normalization)
+		{
+			this.source = source;
+			this.normalization = normalization;
+		}
+
+		@Override
+		void setTile(final long[][] table) {
+			super.setTile(table);
+			source.setTile(table);
+		}
+
+		@Override
+		void readRow(final int[] position, final int inner, final float[] row) {
+			source.readRow(position, inner, row);
+			for (int i = 0; i < row.length; i++) {
+				row[i] = normalization.normalize(row[i]);
+			}
+		}
+	}
+
+	/**
+	 * Reads from primitive arrays. An {@link ArrayImg} is treated as a planar
+	 * image with a single plane.
+	 */
+	private static class PlanarSource extends Source {
+
+		private final byte[][] bytePlanes;
+		private final short[][] shortPlanes;
+		private final float[][] floatPlanes;
+		private final long[] pixelStride;
+		private final long[] planeStride;
+		private int[][] pixelOffsets;
+		private int[][] planeOffsets;
+
+		private PlanarSource(final Object[] planes, final long[] pixelStride,
+			final long[] planeStride)
+		{
+			bytePlanes = planes instanceof byte[][] ? (byte[][]) planes : null;
+			shortPlanes = planes instanceof short[][] ? (short[][]) planes : null;
+			floatPlanes = planes instanceof float[][] ? (float[][]) planes : null;
+			this.pixelStride = pixelStride;
+			this.planeStride = planeStride;
+		}
+
+		/**
+		 * @param numDimensions the number of tile dimensions; dimensions beyond
+		 *          the image dimensions have size one
+		 * @return the source or null if the image is not supported
+		 */
+		static Source create(final Object img, final int numDimensions) {
+			if (!(img instanceof ArrayImg) && !(img instanceof PlanarImg)) {
+				return null;
+			}
+			final RandomAccessibleInterval<?> rai = (RandomAccessibleInterval<?>) img;
+			final Object type = Util.getTypeFromInterval(rai);
+			if (!(type instanceof UnsignedByteType) &&
+				!(type instanceof UnsignedShortType) && !(type instanceof FloatType))
+			{
+				return null;
+			}
+			final int m = rai.numDimensions();
+			if (m > numDimensions) return null;
+
+			final long[] pixelStride = new long[numDimensions];
+			final long[] planeStride = new long[numDimensions];
+			final Object[] storage;
+			if (img instanceof ArrayImg) {
+				storage = new Object[] { ((ArrayDataAccess<?>) ((ArrayImg<?, ?>) img)
+					.update(null)).getCurrentStorageArray() };
+				long stride = 1;
+				for (int d = 0; d < m; d++) {
+					pixelStride[d] = stride;
+					stride *= rai.dimension(d);
+				}
+			}
+			else {
+				final PlanarImg<?, ?> planar = (PlanarImg<?, ?>) img;
+				if (m < 2) return null;
+				storage = new Object[planar.numSlices()];
+				for (int i = 0; i < storage.length; i++) {
+					storage[i] = ((ArrayDataAccess<?>) planar.getPlane(i))
+						.getCurrentStorageArray();
+				}
+				pixelStride[0] = 1;
+				pixelStride[1] = rai.dimension(0);
+				long stride = 1;
+				for (int d = 2; d < m; d++) {
+					planeStride[d] = stride;
+					stride *= rai.dimension(d);
+				}
+			}
+
+			final Object[] planes;
+			if (type instanceof UnsignedByteType) planes = new byte[storage.length][];
+			else if (type instanceof UnsignedShortType) planes =
+				new short[storage.length][];
+			else planes = new float[storage.length][];
+			System.arraycopy(storage, 0, planes, 0, storage.length);
+			return new PlanarSource(planes, pixelStride, planeStride);
+		}
+
+		@Override
+		void setTile(final long[][] table) {
+			super.setTile(table);
+			pixelOffsets = new int[table.length][];
+			planeOffsets = new int[table.length][];
+			for (int d = 0; d < table.length; d++) {
+				pixelOffsets[d] = new int[table[d].length];
+				planeOffsets[d] = new int[table[d].length];
+				for (int i = 0; i < table[d].length; i++) {
+					pixelOffsets[d][i] = (int) (table[d][i] * pixelStride[d]);
+					planeOffsets[d][i] = (int) (table[d][i] * planeStride[d]);
+				}
+			}
+		}
+
+		@Override
+		void readRow(final int[] position, final int inner, final float[] row) {
+			int pixel = 0;
+			int plane = 0;
+			for (int d = 0; d < position.length; d++) {
+				if (d == inner) continue;
+				pixel += pixelOffsets[d][position[d]];
+				plane += planeOffsets[d][position[d]];
+			}
+			final int[] innerPixel = pixelOffsets[inner];
+			final int[] innerPlane = planeOffsets[inner];
+			if (bytePlanes != null) {
+				for (int i = 0; i < row.length; i++) {
+					row[i] = bytePlanes[plane + innerPlane[i]][pixel + innerPixel[i]] &
+						0xff;
+				}
+			}
+			else if (shortPlanes != null) {
+				for (int i = 0; i < row.length; i++) {
+					row[i] = shortPlanes[plane + innerPlane[i]][pixel + innerPixel[i]] &
+						0xffff;
+				}
+			}
+			else {
+				for (int i = 0; i < row.length; i++) {
+					row[i] = floatPlanes[plane + innerPlane[i]][pixel + innerPixel[i]];
+				}
+			}
+		}
+	}
+
+}
@@ -41,6 +41,7 @@ public class DefaultInputNormalizer<T extends RealType<T> & NativeType<T>>
 {
 
 	private Normalizer normalizer = new PercentileNormalizer<>();
+	private boolean lazy = false;
 
 	@Override
 	public Dataset run(Dataset input, OpService opService,
@@ -51,8 +52,8 @@ public class DefaultInputNormalizer<T extends RealType<T> & NativeType<T>>
 
 		log("Normalize .. ");
 
-		final Dataset output = normalizer.normalize(input, opService,
-			datasetService);
+		final Dataset output = lazy ? normalizer.normalizeLazily(input, opService,
+			datasetService) : normalizer.normalize(input, opService, datasetService);
 
 		setFinished();
 
@@ -64,4 +65,12 @@ public class DefaultInputNormalizer<T extends RealType<T> & NativeType<T>>
 		return normalizer;
 	}
 
+	/**
+	 * With lazy normalization, {@link #run} returns a view of the input that is
+	 * normalized while the tiles are gathered, no normalized copy is created.
+	 */
+	public void setLazy(final boolean lazy) {
+		this.lazy = lazy;
+	}
+
 }
@@ -30,6 +30,7 @@
 package de.csbdresden.csbdeep.normalize;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import net.imagej.ops.OpService;
@@ -38,12 +39,14 @@ import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.util.Pair;
-import net.imglib2.util.Util;
+import net.imglib2.view.Views;
 
 public class HistogramPercentile<T extends RealType<T>> implements
 	Percentile<T>
 {
 
+	private static final int BUCKETS = 1 << 16;
+
 	T min, max;
 
 //	public float[] computePercentiles2(RandomAccessibleInterval<T> src,
@@ -72,36 +75,136 @@ public class HistogramPercentile<T extends RealType<T>> implements
 //
 //	}
 
+	/**
+	 * Computes the exact percentiles without copying the voxels, in two
+	 * parallel passes over the sortable bits of the float values: the first
+	 * pass counts the upper 16 bits and finds the bucket holding each requested
+	 * rank, the second pass counts the lower 16 bits of the values in these
+	 * buckets only. The results are identical to sorting all values and
+	 * picking the value at rank {@code round((n - 1) * percentile / 100)}. NaN
+	 * values are ignored, -0 is counted as 0.
+	 */
 	public float[] computePercentiles(RandomAccessibleInterval<T> src, final float[] percentiles, OpService opService) {
-		final Cursor< T > cursor = ((IterableInterval)src).cursor();
-		int items = 1;
-		int i = 0;
-		for ( ; i < src.numDimensions(); i++ ) {
-			items *= src.dimension( i );
-		}
-		final float[] values = new float[ items ];
-		i = 0;
-		while ( cursor.hasNext() ) {
-			cursor.fwd();
-			values[ i ] = cursor.get().getRealFloat();
-			i++;
+		final IterableInterval<T> values = Views.iterable(src);
+
+		final UpperBits upper = new UpperBits();
+		ParallelValues.accumulate(values, 1, UpperBits::new).forEach(upper::merge);
+		long count = 0;
+		for (final long bucketCount : upper.counts) {
+			count += bucketCount;
+		}
+		final float[] res = new float[percentiles.length];
+		if (count == 0) {
+			Arrays.fill(res, Float.NaN);
+			return res;
 		}
 
-		Util.quicksort( values );
+		final int[] buckets = new int[percentiles.length];
+		final long[] ranks = new long[percentiles.length];
+		for (int i = 0; i < percentiles.length; i++) {
+			final long[] rank = { ParallelValues.rank(count, percentiles[i]) };
+			buckets[i] = find(upper.counts, rank);
+			ranks[i] = rank[0];
+		}
 
-		final float[] res = new float[ percentiles.length ];
-		for ( i = 0; i < percentiles.length; i++ ) {
-			res[ i ] = values[ Math.min(
-					values.length - 1,
-					Math.max( 0, Math.round( ( values.length - 1 ) * percentiles[ i ] / 100.f ) ) ) ];
+		final LowerBits lower = new LowerBits(buckets);
+		ParallelValues.accumulate(values, 1, () -> new LowerBits(buckets))
+			.forEach(lower::merge);
+		for (int i = 0; i < percentiles.length; i++) {
+			final long[] rank = { ranks[i] };
+			final int key = (buckets[i] - BUCKETS / 2) << 16 | find(lower.counts[i],
+				rank);
+			res[i] = Float.intBitsToFloat(key ^ ((key >> 31) & 0x7fffffff));
 		}
+		return res;
+	}
 
-//		float[] res2 = computePercentiles2(src, percentiles, opService);
-//		for(int j = 0; j < res2.length; j++) {
-//			System.out.println(res[j] + " " + res2[j]);
-//		}
+	/**
+	 * @return the bits of the value as int, ordered like the float values
+	 */
+	private static int key(final float value) {
+		final int bits = Float.floatToRawIntBits(value + 0f);
+		return bits ^ ((bits >> 31) & 0x7fffffff);
+	}
 
-		return res;
+	/**
+	 * @param rank the rank to find as first element, replaced by the rank
+	 *          within the returned bucket
+	 * @return the bucket holding the rank
+	 */
+	private static int find(final long[] counts, final long[] rank) {
+		for (int i = 0; i < counts.length; i++) {
+			if (rank[0] < counts[i]) return i;
+			rank[0] -= counts[i];
+		}
+		return counts.length - 1;
+	}
+
+	private static class UpperBits implements ParallelValues.Accumulator {
+
+		private final long[] counts = new long[BUCKETS];
+
+		@Override
+		public void add(final float value) {
+			if (Float.isNaN(value)) return;
+			counts[(key(value) >> 16) + BUCKETS / 2]++;
+		}
+
+		private void merge(final UpperBits other) {
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] += other.counts[i];
+			}
+		}
+	}
+
+	/**
+	 * Counts the lower bits of the values in the given upper bit buckets.
+	 */
+	private static class LowerBits implements ParallelValues.Accumulator {
+
+		private final int[] buckets;
+		private final long[][] counts;
+
+		LowerBits(final int[] buckets) {
+			this.buckets = buckets;
+			counts = new long[buckets.length][];
+			for (int i = 0; i < buckets.length; i++) {
+				// share the counts of percentiles in the same bucket
+				for (int j = 0; j < i && counts[i] == null; j++) {
+					if (buckets[j] == buckets[i]) counts[i] = counts[j];
+				}
+				if (counts[i] == null) counts[i] = new long[BUCKETS];
+			}
+		}
+
+		@Override
+		public void add(final float value) {
+			if (Float.isNaN(value)) return;
+			final int key = key(value);
+			final int bucket = (key >> 16) + BUCKETS / 2;
+			for (int i = 0; i < buckets.length; i++) {
+				if (buckets[i] == bucket) {
+					counts[i][key & 0xffff]++;
+					return;
+				}
+			}
+		}
+
+		private void merge(final LowerBits other) {
+			for (int i = 0; i < buckets.length; i++) {
+				if (isShared(i)) continue;
+				for (int j = 0; j < BUCKETS; j++) {
+					counts[i][j] += other.counts[i][j];
+				}
+			}
+		}
+
+		private boolean isShared(final int index) {
+			for (int i = 0; i < index; i++) {
+				if (counts[i] == counts[index]) return true;
+			}
+			return false;
+		}
 	}
 
 	private void computeMinMax(OpService opService, IterableInterval<T> src) {
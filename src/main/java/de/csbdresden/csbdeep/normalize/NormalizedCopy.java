@@ -0,0 +1,176 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.csbdeep.normalize;
+
+import java.lang.reflect.Array;
+import java.util.stream.IntStream;
+
+import net.imglib2.Cursor;
+import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+
+/**
+ * Writes the normalized values of an image into another image of the same
+ * size in parallel chunks. Images with the same iteration order are copied
+ * with cursors, or directly between their primitive arrays if both are an
+ * {@link ArrayImg} or {@link PlanarImg} with the same planes and the input
+ * has unsigned byte, unsigned short or float pixels. Other images are copied
+ * with a multi-threaded {@link LoopBuilder}.
+ */
+final class NormalizedCopy {
+
+	// pixels per chunk
+	private static final int CHUNK_SIZE = 1 << 20;
+
+	private NormalizedCopy() {}
+
+	static <T extends RealType<T>> void copy(final RandomAccessibleInterval<T> in,
+		final RandomAccessibleInterval<FloatType> out,
+		final NormalizingConverter<T> converter)
+	{
+		if (in instanceof IterableInterval && out instanceof IterableInterval &&
+			((IterableInterval<T>) in).iterationOrder().equals(
+				((IterableInterval<FloatType>) out).iterationOrder()))
+		{
+			if (copyArrays(in, out, converter)) return;
+			copyCursors((IterableInterval<T>) in, (IterableInterval<FloatType>) out,
+				converter);
+			return;
+		}
+		LoopBuilder.setImages(in, out).multiThreaded().forEachPixel(
+			converter::convert);
+	}
+
+	private static <T extends RealType<T>> boolean copyArrays(
+		final RandomAccessibleInterval<T> in,
+		final RandomAccessibleInterval<FloatType> out,
+		final NormalizingConverter<T> converter)
+	{
+		final Object type = Util.getTypeFromInterval(in);
+		if (!(type instanceof UnsignedByteType) &&
+			!(type instanceof UnsignedShortType) && !(type instanceof FloatType))
+		{
+			return false;
+		}
+		final Object[] inPlanes = planes(in);
+		final Object[] outPlanes = planes(out);
+		if (inPlanes == null || outPlanes == null ||
+			inPlanes.length != outPlanes.length) return false;
+		// an image without planes has nothing to copy
+		if (outPlanes.length == 0) return true;
+		final int planeSize = ((float[]) outPlanes[0]).length;
+		for (int i = 0; i < inPlanes.length; i++) {
+			if (((float[]) outPlanes[i]).length != planeSize || Array.getLength(
+				inPlanes[i]) != planeSize) return false;
+		}
+
+		final int chunksPerPlane = Math.max(1, (planeSize + CHUNK_SIZE - 1) /
+			CHUNK_SIZE);
+		IntStream.range(0, inPlanes.length * chunksPerPlane).parallel().forEach(
+			chunk -> {
+				final Object src = inPlanes[chunk / chunksPerPlane];
+				final float[] dst = (float[]) outPlanes[chunk / chunksPerPlane];
+				final int start = chunk % chunksPerPlane * CHUNK_SIZE;
+				final int end = Math.min(planeSize, start + CHUNK_SIZE);
+				if (src instanceof byte[]) {
+					final byte[] bytes = (byte[]) src;
+					for (int i = start; i < end; i++) {
+						dst[i] = converter.normalize(bytes[i] & 0xff);
+					}
+				}
+				else if (src instanceof short[]) {
+					final short[] shorts = (short[]) src;
+					for (int i = start; i < end; i++) {
+						dst[i] = converter.normalize(shorts[i] & 0xffff);
+					}
+				}
+				else {
+					final float[] floats = (float[]) src;
+					for (int i = start; i < end; i++) {
+						dst[i] = converter.normalize(floats[i]);
+					}
+				}
+			});
+		return true;
+	}
+
+	/**
+	 * @return the primitive arrays of an {@link ArrayImg} or the planes of a
+	 *         {@link PlanarImg}, or null for other images
+	 */
+	private static Object[] planes(final RandomAccessibleInterval<?> img) {
+		if (img instanceof ArrayImg) {
+			final Object data = ((ArrayImg<?, ?>) img).update(null);
+			if (!(data instanceof ArrayDataAccess)) return null;
+			return new Object[] { ((ArrayDataAccess<?>) data)
+				.getCurrentStorageArray() };
+		}
+		if (img instanceof PlanarImg) {
+			final PlanarImg<?, ?> planar = (PlanarImg<?, ?>) img;
+			final Object[] planes = new Object[planar.numSlices()];
+			for (int i = 0; i < planes.length; i++) {
+				final Object plane = planar.getPlane(i);
+				if (!(plane instanceof ArrayDataAccess)) return null;
+				planes[i] = ((ArrayDataAccess<?>) plane).getCurrentStorageArray();
+			}
+			return planes;
+		}
+		return null;
+	}
+
+	private static <T extends RealType<T>> void copyCursors(
+		final IterableInterval<T> in, final IterableInterval<FloatType> out,
+		final NormalizingConverter<T> converter)
+	{
+		final long size = Intervals.numElements(in);
+		final int chunks = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+		IntStream.range(0, chunks).parallel().forEach(chunk -> {
+			final long start = (long) chunk * CHUNK_SIZE;
+			final long end = Math.min(size, start + CHUNK_SIZE);
+			final Cursor<T> src = in.cursor();
+			final Cursor<FloatType> dst = out.cursor();
+			src.jumpFwd(start);
+			dst.jumpFwd(start);
+			for (long i = start; i < end; i++) {
+				converter.convert(src.next(), dst.next());
+			}
+		});
+	}
+
+}
@@ -38,5 +38,15 @@ public interface Normalizer {
 	Dataset normalize(Dataset im, OpService opService,
 		DatasetService datasetService);
 
+	/**
+	 * Computes the normalization statistics of the image, but returns a view
+	 * normalizing each value when it is read instead of a normalized copy.
+	 */
+	default Dataset normalizeLazily(Dataset im, OpService opService,
+		DatasetService datasetService)
+	{
+		return normalize(im, opService, datasetService);
+	}
+
 	void setup(float[] percentiles, float[] destValues, boolean clip);
 }
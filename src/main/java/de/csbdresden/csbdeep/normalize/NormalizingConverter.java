@@ -0,0 +1,72 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.csbdeep.normalize;
+
+import net.imglib2.converter.Converter;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Maps values affinely from the range between two percentile values to the
+ * destination range, as done by {@link PercentileNormalizer}. Used to
+ * normalize the input lazily while its tiles are read.
+ */
+public class NormalizingConverter<T extends RealType<T>> implements
+	Converter<T, FloatType>
+{
+
+	private final float offset;
+	private final float factor;
+	private final float min;
+	private final float max;
+	private final boolean clip;
+
+	public NormalizingConverter(final float offset, final float factor,
+		final float min, final float max, final boolean clip)
+	{
+		this.offset = offset;
+		this.factor = factor;
+		this.min = min;
+		this.max = max;
+		this.clip = clip;
+	}
+
+	public float normalize(final float value) {
+		if ( clip ) { return Math.max(
+				min,
+				Math.min( max, ( value - offset ) * factor + min ) ); }
+		return Math.max( 0, ( value - offset ) * factor + min );
+	}
+
+	@Override
+	public void convert(final T input, final FloatType output) {
+		output.set(normalize(input.getRealFloat()));
+	}
+
+}
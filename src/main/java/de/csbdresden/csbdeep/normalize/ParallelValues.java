@@ -0,0 +1,96 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.csbdeep.normalize;
+
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import net.imglib2.Cursor;
+import net.imglib2.IterableInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+
+/**
+ * Visits the values of an image in parallel chunks of its iteration order.
+ * Each worker adds the values of its chunks to its own accumulator, the
+ * caller merges the accumulators.
+ */
+final class ParallelValues {
+
+	// voxels per chunk
+	private static final long CHUNK_SIZE = 1 << 22;
+
+	interface Accumulator {
+
+		void add(float value);
+	}
+
+	private ParallelValues() {}
+
+	/**
+	 * @param step add every {@code step}-th value only
+	 * @return one accumulator per worker
+	 */
+	static <A extends Accumulator> List<A> accumulate(
+		final IterableInterval<? extends RealType<?>> src, final int step,
+		final Supplier<A> accumulator)
+	{
+		final long size = Intervals.numElements(src);
+		final long chunkSize = Math.max(step, CHUNK_SIZE / step * step);
+		final long chunks = (size + chunkSize - 1) / chunkSize;
+		final int workers = (int) Math.max(1, Math.min(chunks, Runtime
+			.getRuntime().availableProcessors()));
+		return IntStream.range(0, workers).parallel().mapToObj(worker -> {
+			final A part = accumulator.get();
+			for (long chunk = worker; chunk < chunks; chunk += workers) {
+				final long start = chunk * chunkSize;
+				final long end = Math.min(size, start + chunkSize);
+				final Cursor<? extends RealType<?>> cursor = src.cursor();
+				cursor.jumpFwd(start + 1);
+				for (long i = start; i < end; i += step) {
+					part.add(cursor.get().getRealFloat());
+					if (i + step < end) cursor.jumpFwd(step);
+				}
+			}
+			return part;
+		}).collect(Collectors.toList());
+	}
+
+	/**
+	 * @return the index of the sorted value at the given percentile, computed
+	 *         like the percentiles always were in {@link HistogramPercentile}
+	 */
+	static long rank(final long count, final float percentile) {
+		final float position = (count - 1) * percentile / 100.f;
+		return Math.min(count - 1, Math.max(0, Math.round((double) position)));
+	}
+
+}
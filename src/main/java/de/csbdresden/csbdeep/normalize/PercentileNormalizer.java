@@ -31,14 +31,17 @@ package de.csbdresden.csbdeep.normalize;
 
 import net.imagej.Dataset;
 import net.imagej.DatasetService;
+import net.imagej.ImgPlus;
 import net.imagej.axis.AxisType;
 import net.imagej.ops.OpService;
-import net.imglib2.Cursor;
-import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.ImgView;
 import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
 
 public class PercentileNormalizer<T extends RealType<T> & NativeType<T>>
 	implements Normalizer
@@ -47,51 +50,73 @@ public class PercentileNormalizer<T extends RealType<T> & NativeType<T>>
 	private float[] percentiles = new float[] { 3, 99.7f };
 	private float[] destValues = new float[] { 0, 1 };
 	private float[] resValues;
+	private float[] fixedValues;
+	private Percentile<T> percentile = new HistogramPercentile<>();
 	private boolean clip = false;
 
 	protected float min;
 	protected float max;
 	protected float factor;
+	private NormalizingConverter<T> converter;
 
 	public float normalize( final T val ) {
-		if ( clip ) { return Math.max(
-				min,
-				Math.min( max, ( val.getRealFloat() - resValues[0] ) * factor + min ) ); }
-		return Math.max( 0, ( val.getRealFloat() - resValues[0] ) * factor + min );
+		return converter.normalize(val.getRealFloat());
 	}
 
 	@Override
 	public Dataset normalize(final Dataset im, OpService opService,
 		DatasetService datasetService)
 	{
-		HistogramPercentile<T> percentile = new HistogramPercentile<>();
-		resValues = percentile.computePercentiles((RandomAccessibleInterval<T>) im
-			.getImgPlus(), percentiles, opService);
+		computeFactor(im, opService);
+
+		final Dataset output = datasetService.create(new FloatType(),
+			Intervals.dimensionsAsLongArray(im), "normalized input", getAxes(im));
+
+		NormalizedCopy.copy((RandomAccessibleInterval<T>) im.getImgPlus().getImg(),
+			(RandomAccessibleInterval<FloatType>) output.getImgPlus().getImg(),
+			converter);
+
+		return output;
+	}
+
+	@Override
+	public Dataset normalizeLazily(final Dataset im, final OpService opService,
+		final DatasetService datasetService)
+	{
+		computeFactor(im, opService);
+
+		// the converter keeps the values of this image if the normalizer is reused
+		final RandomAccessibleInterval<FloatType> normalized = Converters.convert(
+			(RandomAccessibleInterval<T>) im.getImgPlus(), converter,
+			new FloatType());
+		// copies of the view need a cell image above 2^31 pixels
+		return datasetService.create(new ImgPlus<>(ImgView.wrap(normalized, Util
+			.getArrayOrCellImgFactory(normalized, new FloatType())),
+			"normalized input", getAxes(im)));
+	}
+
+	private void computeFactor(final Dataset im, final OpService opService) {
+		if (fixedValues != null) {
+			resValues = fixedValues;
+		}
+		else {
+			resValues = percentile.computePercentiles(
+				(RandomAccessibleInterval<T>) im.getImgPlus(), percentiles, opService);
+		}
 		min = destValues[0];
 		max = destValues[1];
 		if(resValues[1] - resValues[0] < 0.0000001) factor = 1;
 		else factor = (destValues[1] - destValues[0]) / (resValues[1] - resValues[0]);
+		converter = new NormalizingConverter<>(resValues[0], factor, min, max,
+			clip);
+	}
 
-		long[] dims = new long[im.numDimensions()];
-		im.dimensions(dims);
+	private static AxisType[] getAxes(final Dataset im) {
 		AxisType[] axes = new AxisType[im.numDimensions()];
 		for (int i = 0; i < axes.length; i++) {
 			axes[i] = im.axis(i).type();
 		}
-
-		final Dataset output = datasetService.create(new FloatType(), dims,
-			"normalized input", axes);
-
-		final RandomAccess<T> in = (RandomAccess<T>) im.getImgPlus().randomAccess();
-		final Cursor<FloatType> out = (Cursor<FloatType>) output.getImgPlus()
-			.localizingCursor();
-		while (out.hasNext()) {
-			out.fwd();
-			in.setPosition(out);
-			out.get().set(normalize(in.get()));
-		}
-
-		return output;
+		return axes;
 	}
 
 	@Override
@@ -105,6 +130,24 @@ public class PercentileNormalizer<T extends RealType<T> & NativeType<T>>
 		this.clip = clip;
 	}
 
+	/**
+	 * Uses the given percentile values for the following images instead of
+	 * computing them from each image, e.g. to normalize all frames of a
+	 * time-lapse with the statistics of the whole series. With null, the values
+	 * are computed from each image again.
+	 */
+	public void setPercentileValues(final float[] values) {
+		fixedValues = values;
+	}
+
+	/**
+	 * Sets how the percentile values are computed from each image, e.g. with a
+	 * {@link SketchPercentile} to approximate them faster on large images.
+	 */
+	public void setPercentileMethod(final Percentile<T> percentile) {
+		this.percentile = percentile;
+	}
+
 	public float[] getResValues() {
 		return resValues;
 	}
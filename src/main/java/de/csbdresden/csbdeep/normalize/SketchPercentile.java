@@ -0,0 +1,367 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.csbdeep.normalize;
+
+import net.imagej.ops.OpService;
+import net.imglib2.IterableInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Approximates percentiles in one pass with a mergeable histogram sketch,
+ * without copying the voxels. Chunks of the image are counted in parallel,
+ * each worker into its own sketch, and the sketches are merged.
+ * <p>
+ * Images of integer types with up to 2^16 values are counted per value, their
+ * percentiles are exact. Other values are counted in buckets of their float
+ * representation: a bucket holds all values with the same sign, exponent and
+ * leading mantissa bits, so the width of a bucket is at most
+ * {@code relativeError} times its values. Within the bucket holding the
+ * requested rank, the value is interpolated linearly. The counters only
+ * cover the range of buckets between the smallest and the largest magnitude
+ * seen, at most 64 octaves per sign; magnitudes more than 2^64 times smaller
+ * than the largest finite one are counted in the lowest bucket kept.
+ * </p>
+ * <p>
+ * Optionally only every n-th voxel is counted, which speeds up huge images
+ * further at the cost of sampling error.
+ * </p>
+ */
+public class SketchPercentile<T extends RealType<T>> implements Percentile<T> {
+
+	private static final int MAX_INTEGER_VALUES = 1 << 16;
+	private static final int MAX_MANTISSA_BITS = 10;
+	// at most 2 * 2^(6 + 10) counters per sketch, 1 MB
+	private static final int MAX_OCTAVES = 64;
+
+	private final int mantissaBits;
+	private final int sampleStep;
+
+	/**
+	 * Counts all voxels with a relative error of 0.1%.
+	 */
+	public SketchPercentile() {
+		this(0.001, 1);
+	}
+
+	/**
+	 * @param relativeError the largest error of a percentile relative to its
+	 *          value, between 2^-10 and 1
+	 * @param sampleStep count every {@code sampleStep}-th voxel only
+	 */
+	public SketchPercentile(final double relativeError, final int sampleStep) {
+		final double error = Math.min(relativeError, 1);
+		mantissaBits = Math.min(MAX_MANTISSA_BITS, (int) Math.ceil(-Math.log(
+			error) / Math.log(2)));
+		this.sampleStep = Math.max(1, sampleStep);
+	}
+
+	@Override
+	public float[] computePercentiles(final RandomAccessibleInterval<T> src,
+		final float[] percentiles, final OpService opService)
+	{
+		final Sketch sketch = createSketch(src);
+		count(Views.iterable(src), sketch);
+		final float[] res = new float[percentiles.length];
+		for (int i = 0; i < percentiles.length; i++) {
+			res[i] = sketch.getPercentile(percentiles[i]);
+		}
+		return res;
+	}
+
+	private Sketch createSketch(final RandomAccessibleInterval<T> src) {
+		final T type = Util.getTypeFromInterval(src);
+		if (type instanceof IntegerType && type.getMaxValue() - type
+			.getMinValue() < MAX_INTEGER_VALUES)
+		{
+			return new IntegerSketch((int) type.getMinValue(), (int) (type
+				.getMaxValue() - type.getMinValue() + 1));
+		}
+		return new FloatSketch(mantissaBits);
+	}
+
+	/**
+	 * Counts the sampled voxels in parallel, each worker into its own copy of
+	 * the sketch, and merges the copies.
+	 */
+	private void count(final IterableInterval<T> src, final Sketch sketch) {
+		ParallelValues.accumulate(src, sampleStep, sketch::createEmpty).forEach(
+			sketch::merge);
+	}
+
+	private interface Sketch extends ParallelValues.Accumulator {
+
+		Sketch createEmpty();
+
+		void merge(Sketch other);
+
+		/**
+		 * @return the value at rank {@code round((n - 1) * percentile / 100)} of
+		 *         the sorted values, like {@link HistogramPercentile}
+		 */
+		float getPercentile(float percentile);
+	}
+
+	/**
+	 * Exact counts of integer values.
+	 */
+	private static class IntegerSketch implements Sketch {
+
+		private final int offset;
+		private final long[] counts;
+
+		IntegerSketch(final int offset, final int values) {
+			this.offset = offset;
+			counts = new long[values];
+		}
+
+		@Override
+		public Sketch createEmpty() {
+			return new IntegerSketch(offset, counts.length);
+		}
+
+		@Override
+		public void add(final float value) {
+			counts[(int) value - offset]++;
+		}
+
+		@Override
+		public void merge(final Sketch other) {
+			final long[] otherCounts = ((IntegerSketch) other).counts;
+			for (int i = 0; i < counts.length; i++) {
+				counts[i] += otherCounts[i];
+			}
+		}
+
+		@Override
+		public float getPercentile(final float percentile) {
+			long total = 0;
+			for (final long count : counts) {
+				total += count;
+			}
+			if (total == 0) return Float.NaN;
+			final long rank = ParallelValues.rank(total, percentile);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen > rank) return i + offset;
+			}
+			return counts.length - 1 + offset;
+		}
+	}
+
+	/**
+	 * Counts of float values in buckets of equal sign, exponent and leading
+	 * mantissa bits. Negative values are counted by their magnitude, zeros and
+	 * infinities on their own.
+	 */
+	private static class FloatSketch implements Sketch {
+
+		private final int shift;
+		private final BucketStore positive;
+		private final BucketStore negative;
+		private long zeros;
+		private long negativeInfinities;
+		private long positiveInfinities;
+		private float min = Float.POSITIVE_INFINITY;
+		private float max = Float.NEGATIVE_INFINITY;
+
+		FloatSketch(final int mantissaBits) {
+			shift = 23 - mantissaBits;
+			positive = new BucketStore(MAX_OCTAVES << mantissaBits);
+			negative = new BucketStore(MAX_OCTAVES << mantissaBits);
+		}
+
+		@Override
+		public Sketch createEmpty() {
+			return new FloatSketch(23 - shift);
+		}
+
+		@Override
+		public void add(final float value) {
+			if (Float.isNaN(value)) return;
+			if (value < min) min = value;
+			if (value > max) max = value;
+			if (value == 0) zeros++;
+			else if (value == Float.NEGATIVE_INFINITY) negativeInfinities++;
+			else if (value == Float.POSITIVE_INFINITY) positiveInfinities++;
+			// the bits of positive floats grow with their value
+			else if (value < 0) negative.add(bucket(-value), 1);
+			else positive.add(bucket(value), 1);
+		}
+
+		private int bucket(final float magnitude) {
+			return Float.floatToRawIntBits(magnitude) >>> shift;
+		}
+
+		@Override
+		public void merge(final Sketch other) {
+			final FloatSketch sketch = (FloatSketch) other;
+			positive.merge(sketch.positive);
+			negative.merge(sketch.negative);
+			zeros += sketch.zeros;
+			negativeInfinities += sketch.negativeInfinities;
+			positiveInfinities += sketch.positiveInfinities;
+			min = Math.min(min, sketch.min);
+			max = Math.max(max, sketch.max);
+		}
+
+		@Override
+		public float getPercentile(final float percentile) {
+			final long total = negativeInfinities + negative.total() + zeros +
+				positive.total() + positiveInfinities;
+			if (total == 0) return Float.NaN;
+			final long rank = ParallelValues.rank(total, percentile);
+			if (rank == 0) return min;
+			if (rank == total - 1) return max;
+			long seen = negativeInfinities;
+			if (seen > rank) return Float.NEGATIVE_INFINITY;
+			// negative values from the largest magnitude to the smallest
+			for (int i = negative.last(); i >= negative.first(); i--) {
+				final long count = negative.get(i);
+				if (seen + count > rank) {
+					final double position = (rank - seen + 0.5) / count;
+					return clamp((float) -interpolate(i, 1 - position));
+				}
+				seen += count;
+			}
+			seen += zeros;
+			if (seen > rank) return 0;
+			for (int i = positive.first(); i <= positive.last(); i++) {
+				final long count = positive.get(i);
+				if (seen + count > rank) {
+					final double position = (rank - seen + 0.5) / count;
+					return clamp((float) interpolate(i, position));
+				}
+				seen += count;
+			}
+			return Float.POSITIVE_INFINITY;
+		}
+
+		/**
+		 * @return the value at the given fraction of the range of the bucket
+		 */
+		private double interpolate(final int bucket, final double position) {
+			final double lower = Float.intBitsToFloat(bucket << shift);
+			final double upper = bucket + 1 < 1 << (31 - shift) ? Float
+				.intBitsToFloat((bucket + 1) << shift) : Float.MAX_VALUE;
+			return lower + (upper - lower) * position;
+		}
+
+		private float clamp(final float value) {
+			return Math.max(min, Math.min(max, value));
+		}
+	}
+
+	/**
+	 * Dense counts of the bucket indices between the smallest and the largest
+	 * index seen so far. The array grows with that range, up to
+	 * {@code maxBuckets}; beyond, the lowest buckets are collapsed into the
+	 * lowest one kept.
+	 */
+	private static class BucketStore {
+
+		private static final int MIN_SIZE = 64;
+
+		private final int maxBuckets;
+		private long[] counts = new long[0];
+		private int offset;
+		private int floor = Integer.MIN_VALUE;
+
+		BucketStore(final int maxBuckets) {
+			this.maxBuckets = maxBuckets;
+		}
+
+		void add(final int bucket, final long count) {
+			final int index = Math.max(floor, bucket);
+			if (index < offset || index >= offset + counts.length) grow(index);
+			counts[Math.max(floor, index) - offset] += count;
+		}
+
+		void merge(final BucketStore other) {
+			for (int i = 0; i < other.counts.length; i++) {
+				if (other.counts[i] != 0) add(other.offset + i, other.counts[i]);
+			}
+		}
+
+		long get(final int bucket) {
+			return counts[bucket - offset];
+		}
+
+		/**
+		 * @return the lowest bucket that can be non-empty
+		 */
+		int first() {
+			return offset;
+		}
+
+		/**
+		 * @return the highest bucket that can be non-empty
+		 */
+		int last() {
+			return offset + counts.length - 1;
+		}
+
+		long total() {
+			long total = 0;
+			for (final long count : counts) {
+				total += count;
+			}
+			return total;
+		}
+
+		private void grow(final int bucket) {
+			int lower = bucket;
+			int upper = bucket;
+			for (int i = 0; i < counts.length; i++) {
+				if (counts[i] == 0) continue;
+				lower = Math.min(lower, offset + i);
+				upper = Math.max(upper, offset + i);
+			}
+			if (upper - lower >= maxBuckets) {
+				lower = upper - maxBuckets + 1;
+				floor = lower;
+			}
+			final int used = upper - lower + 1;
+			final int size = Math.min(maxBuckets, Math.max(MIN_SIZE, 2 * used));
+			final int newOffset = lower - (size - used) / 2;
+			final long[] newCounts = new long[size];
+			for (int i = 0; i < counts.length; i++) {
+				if (counts[i] == 0) continue;
+				newCounts[Math.max(floor, offset + i) - newOffset] += counts[i];
+			}
+			counts = newCounts;
+			offset = newOffset;
+		}
+	}
+
+}
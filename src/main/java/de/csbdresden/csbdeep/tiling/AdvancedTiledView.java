@@ -36,6 +36,7 @@ import java.util.Map;
 
 import de.csbdresden.csbdeep.imglib2.TiledView;
 import net.imagej.axis.AxisType;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.numeric.RealType;
 
@@ -44,6 +45,9 @@ public class AdvancedTiledView<T extends RealType<T>> extends TiledView<T> {
 	private final Map<AxisType, Long> originalDims;
 	private final AxisType[] originalAxes;
 	private List<RandomAccessibleInterval<T>> processedTiles;
+	private RandomAccessibleInterval<T> unexpandedSource;
+	private List<Interval> mirrorIntervals;
+	private TileMerger<T> merger;
 	// protected int blockMultiple;
 	// protected long blockWidth;
 
@@ -76,6 +80,46 @@ public class AdvancedTiledView<T extends RealType<T>> extends TiledView<T> {
 		return originalAxes;
 	}
 
+	/**
+	 * Records how the source of this view was expanded from the input image.
+	 * Each expansion step mirrors (double boundary) the interval of the
+	 * previous step, starting with the interval of {@code unexpandedSource}.
+	 * This allows reading tiles directly from the input image.
+	 */
+	public void setExpansion(final RandomAccessibleInterval<T> unexpandedSource,
+		final List<Interval> mirrorIntervals)
+	{
+		this.unexpandedSource = unexpandedSource;
+		this.mirrorIntervals = mirrorIntervals;
+	}
+
+	/**
+	 * @return the input image before expansion or null if unknown
+	 */
+	public RandomAccessibleInterval<T> getUnexpandedSource() {
+		return unexpandedSource;
+	}
+
+	/**
+	 * @return the intervals mirrored by the expansion steps, in the order they
+	 *         were applied
+	 */
+	public List<Interval> getMirrorIntervals() {
+		return mirrorIntervals;
+	}
+
+	/**
+	 * Set a merger which receives the tile results as soon as they are computed
+	 * instead of collecting them in {@link #getProcessedTiles()}.
+	 */
+	public void setMerger(final TileMerger<T> merger) {
+		this.merger = merger;
+	}
+
+	public TileMerger<T> getMerger() {
+		return merger;
+	}
+
 	public void dispose() {
 		// if(originalDims != null) {
 		// originalDims.clear();
@@ -0,0 +1,161 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.csbdresden.csbdeep.tiling;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Decides from a cheap statistic of the input of a tile whether the tile only
+ * contains background. Such tiles do not need to be run through the network,
+ * their output is filled with a constant instead. The statistic is computed
+ * on the whole tile including its overlap, so tiles with structures close to
+ * their border are still processed.
+ */
+public class BackgroundFilter {
+
+	public enum Statistic {
+			/** largest value of the tile */
+			MAXIMUM,
+			/** standard deviation of the values of the tile */
+			STANDARD_DEVIATION,
+			/** fraction of values above the foreground level */
+			FOREGROUND_FRACTION
+	}
+
+	private final Statistic statistic;
+	private final double threshold;
+	private final double foregroundLevel;
+	private final double fillValue;
+
+	/**
+	 * @param statistic the statistic computed for each tile
+	 * @param threshold tiles with a statistic below this value are background
+	 * @param foregroundLevel value above which a voxel counts as foreground,
+	 *          only used for {@link Statistic#FOREGROUND_FRACTION}
+	 * @param fillValue the output value of background tiles
+	 */
+	public BackgroundFilter(final Statistic statistic, final double threshold,
+		final double foregroundLevel, final double fillValue)
+	{
+		this.statistic = statistic;
+		this.threshold = threshold;
+		this.foregroundLevel = foregroundLevel;
+		this.fillValue = fillValue;
+	}
+
+	public Statistic getStatistic() {
+		return statistic;
+	}
+
+	public double getThreshold() {
+		return threshold;
+	}
+
+	public double getFillValue() {
+		return fillValue;
+	}
+
+	public boolean isBackground(
+		final RandomAccessibleInterval<? extends RealType<?>> tile)
+	{
+		switch (statistic) {
+			case MAXIMUM:
+				// stop at the first voxel reaching the threshold
+				for (final RealType<?> value : Views.iterable(tile)) {
+					if (value.getRealDouble() >= threshold) return false;
+				}
+				return true;
+			case FOREGROUND_FRACTION:
+				final long maxForeground = (long) Math.ceil(threshold * Intervals
+					.numElements(tile));
+				long foreground = 0;
+				for (final RealType<?> value : Views.iterable(tile)) {
+					if (value.getRealDouble() > foregroundLevel && ++foreground >=
+						maxForeground) return false;
+				}
+				return true;
+			default:
+				return compute(tile) < threshold;
+		}
+	}
+
+	/**
+	 * @return the statistic of the tile
+	 */
+	public double compute(
+		final RandomAccessibleInterval<? extends RealType<?>> tile)
+	{
+		final Cursor<? extends RealType<?>> cursor = Views.iterable(tile)
+			.cursor();
+		switch (statistic) {
+			case MAXIMUM: {
+				double max = Double.NEGATIVE_INFINITY;
+				while (cursor.hasNext()) {
+					max = Math.max(max, cursor.next().getRealDouble());
+				}
+				return max;
+			}
+			case FOREGROUND_FRACTION: {
+				long foreground = 0;
+				while (cursor.hasNext()) {
+					if (cursor.next().getRealDouble() > foregroundLevel) foreground++;
+				}
+				return (double) foreground / Intervals.numElements(tile);
+			}
+			default: {
+				// Welford's algorithm
+				long count = 0;
+				double mean = 0;
+				double m2 = 0;
+				while (cursor.hasNext()) {
+					final double value = cursor.next().getRealDouble();
+					count++;
+					final double delta = value - mean;
+					mean += delta / count;
+					m2 += delta * (value - mean);
+				}
+				return count > 1 ? Math.sqrt(m2 / count) : 0;
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return statistic.name().toLowerCase().replace('_', ' ') + " below " +
+			threshold + (statistic == Statistic.FOREGROUND_FRACTION
+				? " (foreground above " + foregroundLevel + ")" : "") +
+			", filled with " + fillValue;
+	}
+
+}
@@ -29,18 +29,16 @@
 
 package de.csbdresden.csbdeep.tiling;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 
-import de.csbdresden.csbdeep.imglib2.GridView;
 import de.csbdresden.csbdeep.task.Task;
 import de.csbdresden.csbdeep.util.DatasetHelper;
-import net.imagej.axis.Axes;
 import net.imagej.axis.AxisType;
 import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.img.list.ListImg;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
@@ -53,6 +51,7 @@ public class DefaultTiling<T extends RealType<T>> implements Tiling<T> {
 	protected int overlap;
 	protected Task status;
 	protected TilingAction[] tilingActions;
+	private List<Interval> mirrorIntervals;
 
 	public DefaultTiling(final int tilesNum, final int batchSize,
 		final int blockMultiple, final int overlap)
@@ -84,6 +83,7 @@ public class DefaultTiling<T extends RealType<T>> implements Tiling<T> {
 			parent.log("Tiling actions: " + Arrays.toString(tilingActions));
 			parent.log("Dividing image into " + arrayProduct(tiling) + " tile(s)..");
 
+			mirrorIntervals = new ArrayList<>();
 			RandomAccessibleInterval<T> expandedInput = expandToFitBatchSize(input,
 				tiling);
 			expandedInput = expandToFitBlockSize(expandedInput, tiling);
@@ -92,6 +92,8 @@ public class DefaultTiling<T extends RealType<T>> implements Tiling<T> {
 			parent.log("Size of single image tile: " + Arrays.toString(tileSize));
 
 			final AdvancedTiledView<T> tiledView = createTiledView(expandedInput, tileSize, padding, axes);
+			tiledView.setExpansion(input, mirrorIntervals);
+			mirrorIntervals = null;
 			for (int i = 0; i < input.numDimensions(); i++) {
 				tiledView.getOriginalDims().put(axes[i], input.dimension(
 					i));
@@ -237,51 +239,41 @@ public class DefaultTiling<T extends RealType<T>> implements Tiling<T> {
 
 		parent.log("POSTPROCESSING");
 
+		final TileMerger<T> streamed = results.getMerger();
+		if (streamed != null && streamed.getWrittenTiles() > 0) {
+			// the tiles were merged while the network was running
+			if (streamed.getWrittenTiles() == Intervals.numElements(results)) {
+				DatasetHelper.debugDim(parent, "merged result dimensions", streamed
+					.getResult());
+				return streamed.getResult();
+			}
+			parent.logError("Only " + streamed.getWrittenTiles() + " of " + Intervals
+				.numElements(results) + " tiles were processed.");
+			parent.setFailed();
+			return null;
+		}
+
 		List<RandomAccessibleInterval<T>> resultData = results.getProcessedTiles();
 
 		if (resultData != null && resultData.size() > 0) {
 
-			RandomAccessibleInterval<T> firstResult = resultData.get(0);
-
 			parent.log("Output axes: " + Arrays.toString(axisTypes));
 
 			DatasetHelper.debugDim(parent, "result 0 before padding removement",
-				firstResult);
-
-			long[] grid = new long[axisTypes.length];
-			Arrays.fill(grid, 1);
-			for (int i = 0; i < grid.length; i++) {
-				for (int j = 0; j < results.getOriginalAxes().length; j++) {
-					if (results.getOriginalAxes()[j].equals(axisTypes[i])) {
-						grid[i] = results.numDimensions() > j ? results.dimension(j) : 1;
-						break;
-					}
-				}
-			}
-			for (int i = 0; i < resultData.size(); i++) {
-				resultData.set(i, removePadding(resultData.get(i), results.getOverlapComplete(),
-					results.getOriginalAxes(), axisTypes));
-			}
-
-			// TODO log padding / test padding
-			DatasetHelper.debugDim(parent, "result 0 after padding removement",
-				firstResult);
+				resultData.get(0));
 
 			parent.log("Merging tiles..");
 
-			final RandomAccessibleInterval<T> mergedResult = arrangeAndCombineTiles(
-				resultData, grid);
-
-			DatasetHelper.debugDim(parent, "merge", mergedResult);
-			parent.log("Crop to original size..");
-
-			RandomAccessibleInterval<T> fittedResult = undoExpansion(mergedResult,
-				results.getOriginalDims(), axisTypes);
+			final TileMerger<T> merger = new TileMerger<>(results, axisTypes);
+			for (int i = 0; i < resultData.size(); i++) {
+				merger.write(i, resultData.get(i));
+			}
+			final RandomAccessibleInterval<T> mergedResult = merger.getResult();
 
-			parent.log("Output axes: " + Arrays.toString(axisTypes));
-			DatasetHelper.debugDim(parent, "fittedResult dimensions", fittedResult);
+			DatasetHelper.debugDim(parent, "merged result dimensions",
+				mergedResult);
 
-			return fittedResult;
+			return mergedResult;
 		}
 
 		parent.setFailed();
@@ -293,51 +285,6 @@ public class DefaultTiling<T extends RealType<T>> implements Tiling<T> {
 		return tilesNum;
 	}
 
-	protected RandomAccessibleInterval<T> removePadding(
-		RandomAccessibleInterval<T> result, long[] padding, AxisType[] oldAxes,
-		AxisType[] newAxes)
-	{
-
-		final long[] negPadding = new long[result.numDimensions()];
-		for (int i = 0; i < oldAxes.length; i++) {
-			for (int j = 0; j < newAxes.length; j++) {
-				if (oldAxes[i] == newAxes[j]) {
-					negPadding[j] = -padding[i];
-				}
-			}
-		}
-		return Views.zeroMin(Views.expandZero(result, negPadding));
-
-	}
-
-	protected RandomAccessibleInterval<T> arrangeAndCombineTiles(
-		List<RandomAccessibleInterval<T>> results, long[] grid)
-	{
-		status.debug("grid: " + Arrays.toString(grid));
-		// Arrange and combine the tiles again
-		final RandomAccessibleInterval<T> result = new GridView<>(new ListImg<>(
-			results, grid));
-		return result;
-	}
-
-	protected RandomAccessibleInterval<T> undoExpansion(
-		RandomAccessibleInterval<T> result, Map<AxisType, Long> originalDims,
-		AxisType[] outputAxes)
-	{
-		RandomAccessibleInterval<T> fittedResult = null;
-		for (int i = 0; i < result.numDimensions(); i++) {
-			AxisType axis = outputAxes[i];
-			// TODO maybe implement this in a more dynamic way, use tilingActions
-			if (axis != Axes.CHANNEL) {
-				if(originalDims.get(axis) == null) continue;
-				long originalSize = originalDims.get(axis);
-				fittedResult = expandDimToSize(fittedResult == null ? result
-					: fittedResult, i, originalSize);
-			}
-		}
-		return fittedResult;
-	}
-
 	protected RandomAccessibleInterval<T> expandDimToSize(
 		final RandomAccessibleInterval<T> im, final int d, final long size)
 	{
@@ -347,6 +294,7 @@ public class DefaultTiling<T extends RealType<T>> implements Tiling<T> {
 		im.min(min);
 		im.max(max);
 		max[d] += (size - im.dimension(d));
+		if (mirrorIntervals != null) mirrorIntervals.add(new FinalInterval(im));
 		return Views.interval(Views.extendMirrorDouble(im), new FinalInterval(min,
 			max));
 	}
@@ -0,0 +1,151 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.csbdresden.csbdeep.tiling;
+
+import org.scijava.prefs.PrefService;
+
+/**
+ * What running a model costs per input voxel: the native memory the backend
+ * needs for the activations of one network run and the time it takes. The
+ * values start with conservative defaults and are refined with every run of
+ * the model, see {@link #recordRun(long, long)} and
+ * {@link #recordOutOfMemory()}.
+ */
+public class MemoryCalibration {
+
+	// a U-Net with 32 base filters keeps about this many bytes of activations
+	// per input voxel
+	public static final double DEFAULT_NATIVE_BYTES_PER_VOXEL = 1024;
+
+	// out of memory errors raise the estimate at most this far
+	public static final double MAX_NATIVE_BYTES_PER_VOXEL = 64 *
+		DEFAULT_NATIVE_BYTES_PER_VOXEL;
+
+	// each successful run lowers a raised estimate by this factor
+	private static final double DECAY = 0.8;
+
+	private double nativeBytesPerVoxel = DEFAULT_NATIVE_BYTES_PER_VOXEL;
+	private double millisPerMegavoxel = 0;
+
+	public MemoryCalibration() {}
+
+	public MemoryCalibration(final double nativeBytesPerVoxel,
+		final double millisPerMegavoxel)
+	{
+		this.nativeBytesPerVoxel = nativeBytesPerVoxel > 0 ? Math.min(
+			nativeBytesPerVoxel, MAX_NATIVE_BYTES_PER_VOXEL)
+			: DEFAULT_NATIVE_BYTES_PER_VOXEL;
+		this.millisPerMegavoxel = Math.max(0, millisPerMegavoxel);
+	}
+
+	public double getNativeBytesPerVoxel() {
+		return nativeBytesPerVoxel;
+	}
+
+	/**
+	 * @return the measured time per million processed voxels or 0 if the model
+	 *         has not been run yet
+	 */
+	public double getMillisPerMegavoxel() {
+		return millisPerMegavoxel;
+	}
+
+	public boolean hasTimeEstimate() {
+		return millisPerMegavoxel > 0;
+	}
+
+	/**
+	 * Updates the time estimate with a run which processed {@code voxels} input
+	 * voxels (including tile overlap) in {@code millis} milliseconds. A memory
+	 * estimate raised by out of memory errors decays towards the default, so
+	 * that errors with other causes do not make later runs split for good.
+	 */
+	public void recordRun(final long voxels, final long millis) {
+		if (nativeBytesPerVoxel > DEFAULT_NATIVE_BYTES_PER_VOXEL) {
+			nativeBytesPerVoxel = Math.max(DEFAULT_NATIVE_BYTES_PER_VOXEL,
+				nativeBytesPerVoxel * DECAY);
+		}
+		if (voxels <= 0 || millis <= 0) return;
+		final double measured = millis / (voxels / 1e6);
+		millisPerMegavoxel = hasTimeEstimate() ? (millisPerMegavoxel + measured) /
+			2 : measured;
+	}
+
+	/**
+	 * Called when a plan did not fit although it was estimated to fit: the
+	 * model needs more memory per voxel than assumed, up to
+	 * {@link #MAX_NATIVE_BYTES_PER_VOXEL}.
+	 */
+	public void recordOutOfMemory() {
+		nativeBytesPerVoxel = Math.min(MAX_NATIVE_BYTES_PER_VOXEL,
+			nativeBytesPerVoxel * 2);
+	}
+
+	/**
+	 * Loads the calibration stored for a model, see
+	 * {@link #save(PrefService, Class, String)}.
+	 *
+	 * @return the stored calibration or the default one if there is none
+	 */
+	public static MemoryCalibration load(final PrefService prefService,
+		final Class<?> commandClass, final String modelKey)
+	{
+		final String prefix = getPrefix(modelKey);
+		return new MemoryCalibration( //
+			prefService.getDouble(commandClass, prefix + "nativeBytesPerVoxel",
+				DEFAULT_NATIVE_BYTES_PER_VOXEL), //
+			prefService.getDouble(commandClass, prefix + "millisPerMegavoxel", 0));
+	}
+
+	/**
+	 * Stores this calibration for the model identified by {@code modelKey}.
+	 */
+	public void save(final PrefService prefService, final Class<?> commandClass,
+		final String modelKey)
+	{
+		final String prefix = getPrefix(modelKey);
+		prefService.put(commandClass, prefix + "nativeBytesPerVoxel",
+			nativeBytesPerVoxel);
+		prefService.put(commandClass, prefix + "millisPerMegavoxel",
+			millisPerMegavoxel);
+	}
+
+	private static String getPrefix(final String modelKey) {
+		return modelKey + "_calibration_";
+	}
+
+	@Override
+	public String toString() {
+		return "native bytes per voxel: " + nativeBytesPerVoxel +
+			", milliseconds per megavoxel: " + (hasTimeEstimate()
+				? millisPerMegavoxel : "unknown");
+	}
+
+}
@@ -0,0 +1,275 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.csbdresden.csbdeep.tiling;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Content addressed cache of tile results. A tile is identified by the hash
+ * of a context (model fingerprint and normalization parameters), its
+ * dimensions and its input values. The position of a tile in the image is
+ * not part of the key, so equal tiles share one result, also across images.
+ * <p>
+ * Results are kept in a directory, one file per tile, up to a maximum size.
+ * The most recently used results are additionally kept on the heap. Both
+ * levels evict the least recently used results first. Instances are shared
+ * per directory, so the heap level survives from one command run to the
+ * next.
+ * </p>
+ */
+public class TileCache {
+
+	private static final String SUFFIX = ".bin";
+	private static final Map<File, TileCache> instances = new HashMap<>();
+
+	private final File directory;
+	private long maxDiskBytes;
+	private long maxHeapBytes;
+	private long diskBytes = 0;
+	private long heapBytes = 0;
+	private final LinkedHashMap<String, Long> diskEntries = new LinkedHashMap<>(
+		16, 0.75f, true);
+	private final LinkedHashMap<String, Img<FloatType>> heapEntries =
+		new LinkedHashMap<>(16, 0.75f, true);
+	private final Set<String> pending = new HashSet<>();
+	private boolean failed = false;
+
+	private TileCache(final File directory) {
+		this.directory = directory;
+		final File[] files = directory.listFiles((dir, name) -> name.endsWith(
+			SUFFIX));
+		if (files == null) return;
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+		for (final File file : files) {
+			final String name = file.getName();
+			diskEntries.put(name.substring(0, name.length() - SUFFIX.length()), file
+				.length());
+			diskBytes += file.length();
+		}
+	}
+
+	/**
+	 * Returns the cache stored in the given directory, creating the directory
+	 * if needed. The size limits of an already opened cache are updated.
+	 */
+	public static TileCache open(final File directory, final long maxDiskBytes,
+		final long maxHeapBytes) throws IOException
+	{
+		final File dir = directory.getCanonicalFile();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create " + dir);
+		}
+		final TileCache cache;
+		synchronized (instances) {
+			cache = instances.computeIfAbsent(dir, TileCache::new);
+		}
+		cache.setLimits(maxDiskBytes, maxHeapBytes);
+		return cache;
+	}
+
+	/**
+	 * Computes the key of a tile.
+	 *
+	 * @param context identifies everything besides the tile input which
+	 *          determines the result, e.g. the model and the normalization
+	 */
+	public static String key(final String context,
+		final RandomAccessibleInterval<? extends RealType<?>> tile)
+	{
+		return TileFiles.hash(tile, context + "\n");
+	}
+
+	public synchronized void setLimits(final long maxDiskBytes,
+		final long maxHeapBytes)
+	{
+		this.maxDiskBytes = maxDiskBytes;
+		this.maxHeapBytes = maxHeapBytes;
+		evict();
+	}
+
+	/**
+	 * @return the cached result or null if the key is unknown
+	 */
+	public Img<FloatType> get(final String key) {
+		synchronized (this) {
+			final Img<FloatType> hot = heapEntries.get(key);
+			if (hot != null) {
+				diskEntries.get(key);
+				return hot;
+			}
+			if (!diskEntries.containsKey(key)) return null;
+		}
+		final File file = getFile(key);
+		final Img<FloatType> result;
+		try {
+			result = TileFiles.read(file);
+		}
+		catch (final IOException e) {
+			synchronized (this) {
+				removeDiskEntry(key);
+			}
+			return null;
+		}
+		file.setLastModified(System.currentTimeMillis());
+		synchronized (this) {
+			diskEntries.get(key);
+			putHeapEntry(key, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Stores a tile result. If writing to disk fails, the error is reported
+	 * once and the cache continues on the heap only.
+	 */
+	public void put(final String key,
+		final RandomAccessibleInterval<? extends RealType<?>> result)
+	{
+		final Img<FloatType> copy = ArrayImgs.floats(Intervals
+			.dimensionsAsLongArray(result));
+		LoopBuilder.setImages(Views.zeroMin(result), copy).forEachPixel((in, out) -> out.setReal(
+			in.getRealFloat()));
+		final boolean writeToDisk;
+		synchronized (this) {
+			putHeapEntry(key, copy);
+			writeToDisk = !failed && !diskEntries.containsKey(key) && pending.add(
+				key);
+		}
+		if (!writeToDisk) return;
+		final File file = getFile(key);
+		try {
+			TileFiles.write(file, copy);
+			synchronized (this) {
+				diskEntries.put(key, file.length());
+				diskBytes += file.length();
+				evict();
+			}
+		}
+		catch (final IOException e) {
+			synchronized (this) {
+				failed = true;
+			}
+			e.printStackTrace();
+		}
+		finally {
+			synchronized (this) {
+				pending.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Removes all results from disk and heap.
+	 */
+	public synchronized void clear() {
+		heapEntries.clear();
+		heapBytes = 0;
+		for (final String key : diskEntries.keySet()) {
+			getFile(key).delete();
+		}
+		diskEntries.clear();
+		diskBytes = 0;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public synchronized long getDiskBytes() {
+		return diskBytes;
+	}
+
+	public synchronized long getHeapBytes() {
+		return heapBytes;
+	}
+
+	public synchronized int size() {
+		return diskEntries.size();
+	}
+
+	private File getFile(final String key) {
+		return new File(directory, key + SUFFIX);
+	}
+
+	private void putHeapEntry(final String key, final Img<FloatType> result) {
+		final long bytes = bytes(result);
+		if (bytes > maxHeapBytes) return;
+		final Img<FloatType> previous = heapEntries.put(key, result);
+		if (previous != null) heapBytes -= bytes(previous);
+		heapBytes += bytes;
+		evict();
+	}
+
+	private void removeDiskEntry(final String key) {
+		final Long bytes = diskEntries.remove(key);
+		if (bytes != null) diskBytes -= bytes;
+		getFile(key).delete();
+	}
+
+	private void evict() {
+		final Iterator<Map.Entry<String, Img<FloatType>>> heap = heapEntries
+			.entrySet().iterator();
+		while (heapBytes > maxHeapBytes && heap.hasNext()) {
+			heapBytes -= bytes(heap.next().getValue());
+			heap.remove();
+		}
+		final Iterator<Map.Entry<String, Long>> disk = diskEntries.entrySet()
+			.iterator();
+		while (diskBytes > maxDiskBytes && disk.hasNext()) {
+			final Map.Entry<String, Long> entry = disk.next();
+			diskBytes -= entry.getValue();
+			getFile(entry.getKey()).delete();
+			disk.remove();
+		}
+	}
+
+	private static long bytes(final Img<FloatType> img) {
+		return Intervals.numElements(img) * Float.BYTES;
+	}
+
+}
@@ -0,0 +1,282 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.csbdresden.csbdeep.tiling;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+import de.csbdresden.csbdeep.imglib2.TiledView;
+import net.imagej.axis.AxisType;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+
+/**
+ * Keeps the results of finished tiles on disk, so that an interrupted network
+ * run can continue where it stopped. Each combination of model, input image
+ * and tiling gets its own directory below the checkpoint root, named after
+ * the hash of the three. The directory contains a {@code manifest.json} with
+ * the fingerprints of model and input and a description of the tiling, and
+ * one file per finished tile. Tile files are written under a temporary name
+ * and renamed when complete, so a crash never leaves a partial tile behind.
+ * <p>
+ * Tile results are stored as 32 bit floats, see {@link TileFiles}.
+ * </p>
+ */
+public class TileCheckpoint {
+
+	public static final String MANIFEST = "manifest.json";
+	private static final String TILE_PREFIX = "tile_";
+	private static final String TILE_SUFFIX = ".bin";
+	private static final int VERSION = 1;
+
+	private final File directory;
+	private boolean failed = false;
+
+	private static class Manifest {
+
+		int version = VERSION;
+		String model;
+		String input;
+		String tiling;
+
+		boolean matches(final Manifest other) {
+			return version == other.version && Objects.equals(model, other.model) &&
+				Objects.equals(input, other.input) && Objects.equals(tiling,
+					other.tiling);
+		}
+	}
+
+	private TileCheckpoint(final File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Opens the checkpoint of a tiled view, creating it if it does not exist
+	 * yet.
+	 *
+	 * @param root directory containing the checkpoints of all runs
+	 * @param modelFingerprint identifies the model, e.g. its cache name
+	 * @param inputFingerprint identifies the input, see
+	 *          {@link #fingerprint(RandomAccessibleInterval)}
+	 */
+	public static TileCheckpoint open(final File root,
+		final String modelFingerprint, final String inputFingerprint,
+		final TiledView<?> tiledView, final AxisType[] outputAxes)
+		throws IOException
+	{
+		final Manifest manifest = new Manifest();
+		manifest.model = modelFingerprint;
+		manifest.input = inputFingerprint;
+		manifest.tiling = describe(tiledView, outputAxes);
+		final File directory = new File(root, DigestUtils.md5Hex(
+			manifest.model + "\n" + manifest.input + "\n" + manifest.tiling));
+		final File manifestFile = new File(directory, MANIFEST);
+		final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+		if (manifestFile.exists()) {
+			try (Reader reader = Files.newBufferedReader(manifestFile.toPath(),
+				StandardCharsets.UTF_8))
+			{
+				final Manifest existing = gson.fromJson(reader, Manifest.class);
+				if (existing != null && existing.matches(manifest)) {
+					return new TileCheckpoint(directory);
+				}
+			}
+			catch (final JsonParseException ignored) {}
+			// not the checkpoint of this run, start from scratch
+			deleteTiles(directory);
+		}
+		Files.createDirectories(directory.toPath());
+		final File tmp = new File(directory, MANIFEST + ".tmp");
+		try (Writer writer = Files.newBufferedWriter(tmp.toPath(),
+			StandardCharsets.UTF_8))
+		{
+			gson.toJson(manifest, writer);
+		}
+		TileFiles.move(tmp, manifestFile);
+		return new TileCheckpoint(directory);
+	}
+
+	private static String describe(final TiledView<?> tiledView,
+		final AxisType[] outputAxes)
+	{
+		final RandomAccessibleInterval<?> source = tiledView.getSource();
+		return "grid " + Arrays.toString(Intervals.dimensionsAsLongArray(
+			tiledView)) + ", block " + Arrays.toString(tiledView.getBlockSize()) +
+			", overlap " + Arrays.toString(tiledView.getOverlap()) + ", source " +
+			Arrays.toString(Intervals.minAsLongArray(source)) + " - " + Arrays
+				.toString(Intervals.maxAsLongArray(source)) + ", output axes " + Arrays
+					.toString(Arrays.stream(outputAxes).map(AxisType::getLabel).toArray());
+	}
+
+	/**
+	 * Hashes dimensions and values of an image.
+	 */
+	public static String fingerprint(
+		final RandomAccessibleInterval<? extends RealType<?>> image)
+	{
+		return TileFiles.hash(image, null);
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @return the indices of the tiles stored in this checkpoint, sorted
+	 */
+	public List<Long> getFinishedTiles() {
+		final String[] names = directory.list();
+		if (names == null) return Collections.emptyList();
+		final List<Long> tiles = new ArrayList<>();
+		for (final String name : names) {
+			if (!name.startsWith(TILE_PREFIX) || !name.endsWith(TILE_SUFFIX)) continue;
+			try {
+				tiles.add(Long.parseLong(name.substring(TILE_PREFIX.length(), name
+					.length() - TILE_SUFFIX.length())));
+			}
+			catch (final NumberFormatException ignored) {}
+		}
+		Collections.sort(tiles);
+		return tiles;
+	}
+
+	/**
+	 * Stores the result of a tile. If writing fails, the error is reported
+	 * once and the checkpoint stops storing tiles, the network run continues.
+	 *
+	 * @return true if the tile was stored
+	 */
+	public boolean save(final long tileIndex,
+		final RandomAccessibleInterval<? extends RealType<?>> tile)
+	{
+		if (failed) return false;
+		try {
+			TileFiles.write(getTileFile(tileIndex), tile);
+		}
+		catch (final IOException e) {
+			failed = true;
+			e.printStackTrace();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the result of a tile stored with
+	 * {@link #save(long, RandomAccessibleInterval)}.
+	 */
+	public Img<FloatType> load(final long tileIndex) throws IOException {
+		return TileFiles.read(getTileFile(tileIndex));
+	}
+
+	/**
+	 * Removes a tile from the checkpoint, e.g. because it could not be read.
+	 */
+	public void remove(final long tileIndex) {
+		getTileFile(tileIndex).delete();
+	}
+
+	/**
+	 * Removes the checkpoint directory after the run is complete.
+	 */
+	public void delete() {
+		deleteTiles(directory);
+		new File(directory, MANIFEST).delete();
+		directory.delete();
+	}
+
+	/**
+	 * Removes the checkpoints of all tilings of an input and model, e.g. those
+	 * left behind when a run was retried with more tiles after running out of
+	 * memory.
+	 *
+	 * @return the number of removed checkpoints
+	 */
+	public static int deleteAll(final File root, final String modelFingerprint,
+		final String inputFingerprint)
+	{
+		final File[] directories = root.listFiles(File::isDirectory);
+		if (directories == null) return 0;
+		final Gson gson = new Gson();
+		int deleted = 0;
+		for (final File directory : directories) {
+			final File manifestFile = new File(directory, MANIFEST);
+			if (!manifestFile.exists()) continue;
+			final Manifest manifest;
+			try (Reader reader = Files.newBufferedReader(manifestFile.toPath(),
+				StandardCharsets.UTF_8))
+			{
+				manifest = gson.fromJson(reader, Manifest.class);
+			}
+			catch (final IOException | JsonParseException e) {
+				continue;
+			}
+			if (manifest == null || !Objects.equals(modelFingerprint,
+				manifest.model) || !Objects.equals(inputFingerprint, manifest.input))
+			{
+				continue;
+			}
+			new TileCheckpoint(directory).delete();
+			deleted++;
+		}
+		return deleted;
+	}
+
+	private File getTileFile(final long tileIndex) {
+		return new File(directory, TILE_PREFIX + tileIndex + TILE_SUFFIX);
+	}
+
+	private static void deleteTiles(final File directory) {
+		final File[] files = directory.listFiles();
+		if (files == null) return;
+		for (final File file : files) {
+			if (file.getName().startsWith(TILE_PREFIX)) file.delete();
+		}
+	}
+
+}
@@ -0,0 +1,171 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.csbdresden.csbdeep.tiling;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.codec.binary.Hex;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Reads and writes tile results as 32 bit floats: the number of dimensions,
+ * the dimensions and the values in flat iteration order. Files are written
+ * under a temporary name and renamed when complete, so readers never see a
+ * partial file.
+ */
+class TileFiles {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private TileFiles() {}
+
+	/**
+	 * Hashes dimensions and values of an image.
+	 */
+	static String hash(final RandomAccessibleInterval<? extends RealType<?>> image,
+		final String prefix)
+	{
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		}
+		catch (final NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		if (prefix != null) digest.update(prefix.getBytes());
+		final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		for (final long dim : Intervals.dimensionsAsLongArray(image)) {
+			buffer.putLong(dim);
+		}
+		final Cursor<? extends RealType<?>> cursor = Views.flatIterable(image)
+			.cursor();
+		while (cursor.hasNext()) {
+			if (buffer.remaining() < Float.BYTES) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+			buffer.putFloat(cursor.next().getRealFloat());
+		}
+		buffer.flip();
+		digest.update(buffer);
+		return Hex.encodeHexString(digest.digest());
+	}
+
+	static void write(final File file,
+		final RandomAccessibleInterval<? extends RealType<?>> tile)
+		throws IOException
+	{
+		final long[] dims = Intervals.dimensionsAsLongArray(tile);
+		final File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(tmp.toPath(),
+			StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+			StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			buffer.putInt(dims.length);
+			for (final long dim : dims) {
+				buffer.putLong(dim);
+			}
+			final Cursor<? extends RealType<?>> cursor = Views.flatIterable(tile)
+				.cursor();
+			while (cursor.hasNext()) {
+				if (buffer.remaining() < Float.BYTES) {
+					write(channel, buffer);
+				}
+				buffer.putFloat(cursor.next().getRealFloat());
+			}
+			write(channel, buffer);
+			channel.force(false);
+		}
+		move(tmp, file);
+	}
+
+	private static void write(final FileChannel channel, final ByteBuffer buffer)
+		throws IOException
+	{
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	static Img<FloatType> read(final File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(),
+			StandardOpenOption.READ))
+		{
+			final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+				0, channel.size());
+			final int n = buffer.getInt();
+			final long[] dims = new long[n];
+			for (int d = 0; d < n; d++) {
+				dims[d] = buffer.getLong();
+			}
+			final long size = Intervals.numElements(dims);
+			if (buffer.remaining() != size * Float.BYTES) {
+				throw new IOException(file + " is incomplete");
+			}
+			final float[] data = new float[(int) size];
+			buffer.asFloatBuffer().get(data);
+			return ArrayImgs.floats(data, dims);
+		}
+	}
+
+	static void move(final File from, final File to) throws IOException {
+		try {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (final AtomicMoveNotSupportedException e) {
+			Files.move(from.toPath(), to.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+}
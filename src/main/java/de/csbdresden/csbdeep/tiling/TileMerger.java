@@ -0,0 +1,319 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.csbdresden.csbdeep.tiling;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.img.Img;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+
+/**
+ * Assembles the network results of the tiles of an {@link AdvancedTiledView}
+ * into one image. The output image is allocated once, when the first tile is
+ * written, in the size of the original input. Only the core of each tile,
+ * without the overlap and without the parts covering the expanded border, is
+ * copied into it.
+ */
+public class TileMerger<T extends RealType<T>> {
+
+	/**
+	 * Receives each tile result written into a merger.
+	 */
+	public interface Listener<T> {
+
+		void tileWritten(long tileIndex, RandomAccessibleInterval<T> tile);
+	}
+
+	private final AdvancedTiledView<?> tiledView;
+	private final AxisType[] axes;
+	private final int n;
+	private final long[] tiledViewDims;
+	// tiled view dimension of each output dimension or -1
+	private final int[] inputDim;
+	private final long[] overlap;
+	private long[] coreSize;
+	private long[] outputSize;
+	private Img<T> output;
+	private final BitSet written = new BitSet();
+	private TileCheckpoint checkpoint;
+	private final List<Listener<T>> listeners = new CopyOnWriteArrayList<>();
+	private final Map<Long, Double> pendingFills = new HashMap<>();
+	private int filledTiles = 0;
+
+	public TileMerger(final AdvancedTiledView<?> tiledView,
+		final AxisType[] outputAxes)
+	{
+		this.tiledView = tiledView;
+		this.axes = outputAxes;
+		n = outputAxes.length;
+		tiledViewDims = new long[tiledView.numDimensions()];
+		tiledView.dimensions(tiledViewDims);
+		inputDim = new int[n];
+		overlap = new long[n];
+		final AxisType[] inputAxes = tiledView.getOriginalAxes();
+		final long[] inputOverlap = tiledView.getOverlapComplete();
+		for (int i = 0; i < n; i++) {
+			inputDim[i] = -1;
+			for (int j = 0; j < inputAxes.length; j++) {
+				if (inputAxes[j].equals(outputAxes[i])) {
+					if (j < tiledViewDims.length) inputDim[i] = j;
+					overlap[i] = inputOverlap[j];
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copies the core of a tile result into the output image.
+	 *
+	 * @param tileIndex the index of the tile in the iteration order of the tiled
+	 *          view
+	 * @param tile the network output for this tile
+	 */
+	public synchronized void write(final long tileIndex,
+		final RandomAccessibleInterval<T> tile)
+	{
+		copy(tileIndex, tile);
+		if (checkpoint != null) checkpoint.save(tileIndex, tile);
+		for (final Listener<T> listener : listeners) {
+			listener.tileWritten(tileIndex, tile);
+		}
+	}
+
+	private void copy(final long tileIndex,
+		final RandomAccessibleInterval<T> tile)
+	{
+		if (output == null) {
+			allocate(tile);
+		}
+		final long[] dstMin = new long[n];
+		final long[] size = new long[n];
+		// otherwise the tile only covers the expanded border
+		if (getCoreRegion(tileIndex, dstMin, size)) {
+			final long[] srcMin = new long[n];
+			for (int i = 0; i < n; i++) {
+				srcMin[i] = tile.min(i) + overlap[i];
+			}
+			final RandomAccessibleInterval<T> src = Views.zeroMin(Views.interval(
+				tile, FinalInterval.createMinSize(srcMin, size)));
+			final RandomAccessibleInterval<T> dst = Views.zeroMin(Views.interval(
+				output, FinalInterval.createMinSize(dstMin, size)));
+			LoopBuilder.setImages(src, dst).forEachPixel((s, d) -> d.set(s));
+		}
+		written.set((int) tileIndex);
+	}
+
+	/**
+	 * Fills the core of a tile with a constant instead of a network result,
+	 * e.g. for tiles containing only background. If no tile has been written
+	 * yet, the output size is unknown and the fill is applied as soon as the
+	 * output is allocated.
+	 */
+	public synchronized void fill(final long tileIndex, final double value) {
+		written.set((int) tileIndex);
+		filledTiles++;
+		if (output == null) {
+			pendingFills.put(tileIndex, value);
+			return;
+		}
+		applyFill(tileIndex, value);
+	}
+
+	private void applyFill(final long tileIndex, final double value) {
+		final long[] dstMin = new long[n];
+		final long[] size = new long[n];
+		if (!getCoreRegion(tileIndex, dstMin, size)) return;
+		Views.interval(output, FinalInterval.createMinSize(dstMin, size)).forEach(
+			pixel -> pixel.setReal(value));
+	}
+
+	/**
+	 * Computes the region of the output covered by the core of a tile.
+	 *
+	 * @return false if the tile only covers the expanded border of the input
+	 */
+	private boolean getCoreRegion(final long tileIndex, final long[] min,
+		final long[] size)
+	{
+		final long[] gridPosition = new long[tiledViewDims.length];
+		IntervalIndexer.indexToPosition(tileIndex, tiledViewDims, gridPosition);
+		for (int i = 0; i < n; i++) {
+			min[i] = inputDim[i] < 0 ? 0 : gridPosition[inputDim[i]] * coreSize[i];
+			size[i] = Math.min(coreSize[i], outputSize[i] - min[i]);
+			if (size[i] <= 0) return false;
+		}
+		return true;
+	}
+
+	private void allocate(final RandomAccessibleInterval<T> tile) {
+		if (tile.numDimensions() != n) {
+			throw new IllegalArgumentException("Tile has " + tile
+				.numDimensions() + " dimensions, expected " + n);
+		}
+		final Map<AxisType, Long> originalDims = tiledView.getOriginalDims();
+		coreSize = new long[n];
+		outputSize = new long[n];
+		for (int i = 0; i < n; i++) {
+			coreSize[i] = tile.dimension(i) - 2 * overlap[i];
+			final long grid = inputDim[i] < 0 ? 1 : tiledViewDims[inputDim[i]];
+			outputSize[i] = grid * coreSize[i];
+			// crop the expansion done while tiling
+			final Long originalSize = originalDims.get(axes[i]);
+			if (axes[i] != Axes.CHANNEL && originalSize != null) {
+				outputSize[i] = Math.min(outputSize[i], originalSize);
+			}
+		}
+		output = createImg(Util.getTypeFromInterval(tile), outputSize);
+		pendingFills.forEach(this::applyFill);
+		pendingFills.clear();
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private Img<T> createImg(final T type, final long[] dims) {
+		if (!(type instanceof NativeType)) {
+			throw new IllegalArgumentException("Cannot create output image of type " +
+				type.getClass().getSimpleName());
+		}
+		final NativeType nativeType = (NativeType) ((NativeType) type)
+			.createVariable();
+		return (Img<T>) Util.getArrayOrCellImgFactory(new FinalInterval(dims),
+			nativeType).create(dims);
+	}
+
+	/**
+	 * Set a checkpoint which receives a copy of each tile written from now on.
+	 */
+	public void setCheckpoint(final TileCheckpoint checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+
+	public TileCheckpoint getCheckpoint() {
+		return checkpoint;
+	}
+
+	/**
+	 * Adds a listener which is notified of each tile written from now on.
+	 * Tiles restored from a checkpoint or filled with a constant are not
+	 * reported.
+	 */
+	public void addListener(final Listener<T> listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(final Listener<T> listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Writes the tiles stored in the checkpoint into the output. Tiles which
+	 * cannot be read are removed from the checkpoint and computed again.
+	 * Checkpoints store 32 bit floats, they are converted to the pixel type of
+	 * the result.
+	 *
+	 * @return the number of restored tiles
+	 */
+	public synchronized int restoreCheckpoint() {
+		if (checkpoint == null) return 0;
+		final long numTiles = Intervals.numElements(tiledViewDims);
+		final T type = getType();
+		int restored = 0;
+		for (final long tileIndex : checkpoint.getFinishedTiles()) {
+			if (tileIndex >= numTiles || written.get((int) tileIndex)) continue;
+			try {
+				copy(tileIndex, Converters.convert(
+					(RandomAccessibleInterval<FloatType>) checkpoint.load(tileIndex), (in,
+						out) -> out.setReal(in.getRealFloat()), type));
+				restored++;
+			}
+			catch (final IOException | IllegalArgumentException e) {
+				checkpoint.remove(tileIndex);
+			}
+		}
+		return restored;
+	}
+
+	/**
+	 * @return the pixel type of the output or, before the output is allocated,
+	 *         of the tiles of the tiled view
+	 */
+	@SuppressWarnings("unchecked")
+	private T getType() {
+		if (output != null) return output.firstElement().createVariable();
+		final RandomAccessibleInterval<?> tile = Util.getTypeFromInterval(
+			tiledView);
+		return ((T) Util.getTypeFromInterval(tile)).createVariable();
+	}
+
+	/**
+	 * @return the merged image or null if no tile was written
+	 */
+	public Img<T> getResult() {
+		return output;
+	}
+
+	/**
+	 * @return the number of tiles filled with a constant, see
+	 *         {@link #fill(long, double)}
+	 */
+	public synchronized int getFilledTiles() {
+		return filledTiles;
+	}
+
+	public synchronized int getWrittenTiles() {
+		return written.cardinality();
+	}
+
+	/**
+	 * @return true if the result of the tile with the given index has been
+	 *         written into the output
+	 */
+	public synchronized boolean isWritten(final long tileIndex) {
+		return written.get((int) tileIndex);
+	}
+
+}
@@ -0,0 +1,184 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.csbdresden.csbdeep.tiling;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import de.csbdresden.csbdeep.network.ModelExecutor;
+import de.csbdresden.csbdeep.network.model.Network;
+import de.csbdresden.csbdeep.task.DefaultTask;
+import de.csbdresden.csbdeep.task.Task;
+import net.imagej.axis.AxisType;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Intervals;
+
+/**
+ * Continues a network run which ran out of memory. Only the tiles which have
+ * not been written to the {@link TileMerger} of their tiled view yet are
+ * processed again. Each of them is divided into sub-tiles, which are run
+ * through the network and merged into the result of the whole tile. This
+ * result is then written into the merger of the original view. The tiles keep
+ * their overlap, so the sub-tiles see the same image context as the original
+ * tile.
+ */
+public class TileResplitter<T extends RealType<T>> {
+
+	private static final int MAX_SUB_TILES = 1 << 12;
+
+	private final int blockMultiple;
+	private final int overlap;
+	private final int batchSize;
+	private final AxisType[] inputAxes;
+	private final Tiling.TilingAction[] tilingActions;
+	private final AxisType[] outputAxes;
+	private int subTiles = 1;
+	private long subTileVoxels = -1;
+	private boolean shrinking = true;
+
+	private final Task silent = new DefaultTask() {
+
+		@Override
+		public void log(final String msg) {}
+
+		@Override
+		public void debug(final String msg) {}
+	};
+
+	public TileResplitter(final int blockMultiple, final int overlap,
+		final int batchSize, final AxisType[] inputAxes,
+		final Tiling.TilingAction[] tilingActions, final AxisType[] outputAxes)
+	{
+		this.blockMultiple = blockMultiple;
+		this.overlap = overlap;
+		this.batchSize = batchSize;
+		this.inputAxes = inputAxes;
+		this.tilingActions = tilingActions;
+		this.outputAxes = outputAxes;
+	}
+
+	/**
+	 * @return true if all views stream their results into a merger, which is
+	 *         required to know which tiles are finished
+	 */
+	public static boolean canResume(final List<? extends AdvancedTiledView<?>> views) {
+		return views != null && !views.isEmpty() && views.stream().allMatch(
+			view -> view.getMerger() != null);
+	}
+
+	/**
+	 * Doubles the number of sub-tiles each unfinished tile is divided into.
+	 *
+	 * @return false if the sub-tiles did not get smaller during the last run or
+	 *         the maximum number of sub-tiles is reached
+	 */
+	public boolean splitFurther() {
+		if (!shrinking || subTiles >= MAX_SUB_TILES) return false;
+		subTiles *= 2;
+		return true;
+	}
+
+	public int getSubTiles() {
+		return subTiles;
+	}
+
+	public static long countUnfinished(
+		final List<? extends AdvancedTiledView<?>> views)
+	{
+		long unfinished = 0;
+		for (final AdvancedTiledView<?> view : views) {
+			unfinished += Intervals.numElements(view) - view.getMerger()
+				.getWrittenTiles();
+		}
+		return unfinished;
+	}
+
+	/**
+	 * Processes the unfinished tiles of {@code views}. Tiles whose sub-tiles are
+	 * all computed are written to their view, even if the network runs out of
+	 * memory again.
+	 *
+	 * @return {@code views} or null if the run was canceled
+	 */
+	public List<AdvancedTiledView<T>> run(final List<AdvancedTiledView<T>> views,
+		final ModelExecutor<T> executor, final Network network)
+		throws ExecutionException
+	{
+		final List<AdvancedTiledView<T>> subViews = new ArrayList<>();
+		final List<TileMerger<T>> targets = new ArrayList<>();
+		final List<Long> tileIndices = new ArrayList<>();
+		final int subBatchSize = Math.max(1, batchSize / subTiles);
+		for (final AdvancedTiledView<T> view : views) {
+			final long[] grid = Intervals.dimensionsAsLongArray(view);
+			final long[] position = new long[grid.length];
+			final RandomAccess<RandomAccessibleInterval<T>> access = view
+				.randomAccess();
+			final long numTiles = Intervals.numElements(view);
+			for (long i = 0; i < numTiles; i++) {
+				if (view.getMerger().isWritten(i)) continue;
+				IntervalIndexer.indexToPosition(i, grid, position);
+				access.setPosition(position);
+				final AdvancedTiledView<T> subView = new DefaultTiling<T>(subTiles,
+					subBatchSize, blockMultiple, overlap).preprocess(access.get(),
+						inputAxes, tilingActions, silent);
+				subView.setMerger(new TileMerger<>(subView, outputAxes));
+				subViews.add(subView);
+				targets.add(view.getMerger());
+				tileIndices.add(i);
+			}
+		}
+		if (subViews.isEmpty()) return views;
+
+		final long voxels = Intervals.numElements(subViews.get(0).getTileInterval(
+			new long[subViews.get(0).numDimensions()]));
+		shrinking = subTileVoxels < 0 || voxels < subTileVoxels;
+		subTileVoxels = voxels;
+
+		try {
+			if (executor.run(subViews, network) == null) return null;
+		}
+		finally {
+			for (int i = 0; i < subViews.size(); i++) {
+				final TileMerger<T> subMerger = subViews.get(i).getMerger();
+				if (subMerger.getWrittenTiles() == Intervals.numElements(subViews
+					.get(i)))
+				{
+					targets.get(i).write(tileIndices.get(i), subMerger.getResult());
+				}
+			}
+		}
+		return views;
+	}
+
+}
@@ -0,0 +1,333 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.csbdresden.csbdeep.tiling;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import de.csbdresden.csbdeep.network.model.DefaultNetwork;
+import de.csbdresden.csbdeep.task.DefaultTask;
+import de.csbdresden.csbdeep.task.Task;
+import de.csbdresden.csbdeep.util.MemoryHelper;
+import net.imagej.axis.AxisType;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.util.Intervals;
+
+/**
+ * Chooses the number of tiles and the batch size before the network is run.
+ * For each candidate tiling the memory needed at the same time is estimated
+ * from the tile sizes: the merged output and the result tiles waiting to be
+ * merged on the heap, the tensors of the tiles in flight and the activations
+ * of the running networks in native memory. The activations are estimated
+ * with the {@link MemoryCalibration} of the model.
+ */
+public class TilingPlanner {
+
+	private static final int BYTES_PER_VOXEL = 4;
+
+	// stop splitting the image beyond this number of tiles
+	private static final int MAX_TILES = 1 << 16;
+
+	// if no plan fits, a plan close to the lowest peak memory is only used
+	// instead of the requested one if it lowers the peak by this fraction
+	private static final double CLOSE_TO_LOWEST_PEAK = 0.1;
+	private static final double MIN_PEAK_REDUCTION = 0.25;
+
+	private final int blockMultiple;
+	private final int overlap;
+	private final MemoryCalibration calibration;
+	private double outputScale = 1;
+	private int tilesPerBatch = 1;
+	private int pipelineDepth = 3;
+	private int concurrentRuns = 1;
+
+	private final Task silent = new DefaultTask() {
+
+		@Override
+		public void log(final String msg) {}
+
+		@Override
+		public void debug(final String msg) {}
+	};
+
+	public TilingPlanner(final int blockMultiple, final int overlap,
+		final MemoryCalibration calibration)
+	{
+		this.blockMultiple = blockMultiple;
+		this.overlap = overlap;
+		this.calibration = calibration;
+	}
+
+	/**
+	 * @param outputScale number of output voxels per input voxel, e.g. the
+	 *          ratio of output and input channels
+	 */
+	public void setOutputScale(final double outputScale) {
+		this.outputScale = outputScale;
+	}
+
+	public void setTilesPerBatch(final int tilesPerBatch) {
+		this.tilesPerBatch = tilesPerBatch;
+	}
+
+	public void setPipelineDepth(final int pipelineDepth) {
+		this.pipelineDepth = pipelineDepth;
+	}
+
+	public void setConcurrentRuns(final int concurrentRuns) {
+		this.concurrentRuns = Math.max(1, concurrentRuns);
+	}
+
+	/**
+	 * Finds the plan with the fewest tiles and the largest batch size which
+	 * fits the budget. The number of tiles is doubled and the batch size halved
+	 * until the plan fits, starting with {@code minTiles} tiles and a batch size
+	 * of {@code maxBatchSize}.
+	 *
+	 * <p>
+	 * If no plan fits, splitting further does not help enough: the plan with
+	 * the fewest tiles whose peak memory is close to the lowest one is returned
+	 * if it clearly lowers the peak of the requested tiling, otherwise the
+	 * requested tiling is kept.
+	 * </p>
+	 *
+	 * @param heapBudget bytes available on the heap
+	 * @param totalBudget bytes available on the heap and in native memory
+	 * @return the first plan which fits, or the best plan if none does
+	 */
+	public Plan plan(final List<RandomAccessibleInterval> inputs,
+		final AxisType[] axes, final Tiling.TilingAction[] tilingActions,
+		final int minTiles, final int maxBatchSize, final long heapBudget,
+		final long totalBudget)
+	{
+		final List<Plan> candidates = new ArrayList<>();
+		long previousTileVoxels = -1;
+		for (int nTiles = Math.max(1, minTiles); nTiles <= MAX_TILES; nTiles *=
+			2)
+		{
+			Plan plan = null;
+			for (int batchSize = Math.max(1, maxBatchSize);; batchSize /= 2) {
+				plan = estimate(inputs, axes, tilingActions, nTiles, batchSize,
+					heapBudget, totalBudget);
+				if (plan.fits()) return plan;
+				candidates.add(plan);
+				if (batchSize <= 1) break;
+			}
+			// the tiles do not get any smaller by dividing the image further
+			if (plan.getTileVoxels() == previousTileVoxels) break;
+			previousTileVoxels = plan.getTileVoxels();
+		}
+		final Plan requested = candidates.get(0);
+		final long lowestPeak = candidates.stream().mapToLong(Plan::getPeakBytes)
+			.min().getAsLong();
+		for (final Plan plan : candidates) {
+			if (plan.getPeakBytes() > lowestPeak * (1 + CLOSE_TO_LOWEST_PEAK)) {
+				continue;
+			}
+			return plan.getPeakBytes() <= requested.getPeakBytes() * (1 -
+				MIN_PEAK_REDUCTION) ? plan : requested;
+		}
+		return requested;
+	}
+
+	/**
+	 * Estimates memory and time of processing {@code inputs} with the given
+	 * tiling parameters.
+	 */
+	public Plan estimate(final List<RandomAccessibleInterval> inputs,
+		final AxisType[] axes, final Tiling.TilingAction[] tilingActions,
+		final int nTiles, final int batchSize, final long heapBudget,
+		final long totalBudget)
+	{
+		final Plan plan = new Plan(nTiles, batchSize);
+		long heapPerRun = 0;
+		long nativePerRun = 0;
+		long outputBytes = 0;
+		long processedVoxels = 0;
+		for (final RandomAccessibleInterval input : inputs) {
+			final DefaultTiling tiling = new DefaultTiling(nTiles, batchSize,
+				blockMultiple, overlap);
+			final AdvancedTiledView view = tiling.preprocess(input, axes,
+				tilingActions, silent);
+			final Interval firstTile = view.getTileInterval(new long[view
+				.numDimensions()]);
+			final long tileVoxels = Intervals.numElements(firstTile);
+			final long tiles = Intervals.numElements(view);
+			view.dispose();
+
+			final long perRun = getTilesPerRun(tiles, tileVoxels);
+			final long inFlight = Math.min(tiles, perRun * (Math.max(1,
+				pipelineDepth) + concurrentRuns - 1));
+			final long runs = Math.min(concurrentRuns, (tiles + perRun - 1) /
+				perRun);
+			final long tileInputBytes = tileVoxels * BYTES_PER_VOXEL;
+			final long tileOutputBytes = (long) (tileVoxels * outputScale *
+				BYTES_PER_VOXEL);
+			// input and output tensors of the batches in flight
+			// and the activations of the running networks
+			nativePerRun = Math.max(nativePerRun, inFlight * (tileInputBytes +
+				tileOutputBytes) + (long) (runs * perRun * tileVoxels * calibration
+					.getNativeBytesPerVoxel()));
+			// result tiles waiting to be merged
+			heapPerRun = Math.max(heapPerRun, inFlight * tileOutputBytes);
+			// merged outputs are kept until all inputs are processed
+			outputBytes += (long) (Intervals.numElements(input) * outputScale *
+				BYTES_PER_VOXEL);
+			processedVoxels += tiles * tileVoxels;
+
+			plan.tilesNum = Math.max(plan.tilesNum, tiling.getTilesNum());
+			plan.tileCount += tiles;
+			if (tileVoxels > plan.tileVoxels) {
+				plan.tileVoxels = tileVoxels;
+				plan.tileSize = Intervals.dimensionsAsLongArray(firstTile);
+			}
+		}
+		plan.heapBytes = outputBytes + heapPerRun;
+		plan.nativeBytes = nativePerRun;
+		plan.processedVoxels = processedVoxels;
+		plan.estimatedMillis = calibration.hasTimeEstimate() ? (long) (processedVoxels /
+			1e6 * calibration.getMillisPerMegavoxel()) : -1;
+		plan.heapBudget = heapBudget;
+		plan.totalBudget = totalBudget;
+		return plan;
+	}
+
+	private long getTilesPerRun(final long tiles, final long tileVoxels) {
+		if (tilesPerBatch > 0) return Math.min(tiles, tilesPerBatch);
+		return Math.max(1, Math.min(tiles, DefaultNetwork.AUTO_BATCH_ELEMENTS /
+			Math.max(1, tileVoxels)));
+	}
+
+	public static class Plan {
+
+		private final int nTiles;
+		private final int batchSize;
+		private int tilesNum = 0;
+		private long tileCount = 0;
+		private long tileVoxels = 0;
+		private long[] tileSize = new long[0];
+		private long processedVoxels;
+		private long heapBytes;
+		private long nativeBytes;
+		private long estimatedMillis;
+		private long heapBudget;
+		private long totalBudget;
+
+		private Plan(final int nTiles, final int batchSize) {
+			this.nTiles = nTiles;
+			this.batchSize = batchSize;
+		}
+
+		/**
+		 * @return the number of tiles to request from the tiling
+		 */
+		public int getNTiles() {
+			return nTiles;
+		}
+
+		public int getBatchSize() {
+			return batchSize;
+		}
+
+		/**
+		 * @return the number of tiles the tiling actually divides the image into,
+		 *         not counting batches
+		 */
+		public int getTilesNum() {
+			return tilesNum;
+		}
+
+		/**
+		 * @return the number of network inputs of all images, including batches
+		 */
+		public long getTileCount() {
+			return tileCount;
+		}
+
+		public long getTileVoxels() {
+			return tileVoxels;
+		}
+
+		public long[] getTileSize() {
+			return tileSize.clone();
+		}
+
+		/**
+		 * @return the number of voxels processed by the network, including the
+		 *         overlap and padding of the tiles
+		 */
+		public long getProcessedVoxels() {
+			return processedVoxels;
+		}
+
+		public long getHeapBytes() {
+			return heapBytes;
+		}
+
+		public long getNativeBytes() {
+			return nativeBytes;
+		}
+
+		public long getPeakBytes() {
+			return heapBytes + nativeBytes;
+		}
+
+		/**
+		 * @return the estimated run time in milliseconds or -1 if the model has
+		 *         not been calibrated yet
+		 */
+		public long getEstimatedMillis() {
+			return estimatedMillis;
+		}
+
+		public boolean fits() {
+			return heapBytes <= heapBudget && getPeakBytes() <= totalBudget;
+		}
+
+		@Override
+		public String toString() {
+			return nTiles + " tile(s) requested, " + tilesNum +
+				" tile(s) used, batch size " + batchSize + ", " + tileCount +
+				" network input(s) of size " + Arrays.toString(tileSize) +
+				"\nEstimated peak memory: " + MemoryHelper.toMegabytes(getPeakBytes()) +
+				" (heap: " + MemoryHelper.toMegabytes(heapBytes) + " of " +
+				MemoryHelper.toMegabytes(heapBudget) + ", native: " + MemoryHelper
+					.toMegabytes(nativeBytes) + "), budget: " + MemoryHelper.toMegabytes(
+						totalBudget) + (fits() ? "" : " - exceeded") +
+				"\nEstimated time: " + (estimatedMillis < 0
+					? "unknown, the model has not been run yet" : estimatedMillis +
+						" milliseconds");
+		}
+
+	}
+
+}
@@ -0,0 +1,143 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.csbdeep.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A pool of entries which are borrowed by several clients at the same time.
+ * When all entries are busy, the clients waiting for one take turns: an entry
+ * which becomes idle goes to the client which has waited longest since it got
+ * its last entry, so a client queuing many requests cannot starve the others.
+ * Requests of the same client are served in the order they were made.
+ */
+public class FairPool<R> {
+
+	private final List<R> entries = new ArrayList<>();
+	private final Deque<R> idle = new ArrayDeque<>();
+	// clients with waiting requests in the order they are served
+	private final Map<Object, Deque<Request<R>>> waiting = new LinkedHashMap<>();
+
+	private static class Request<R> {
+
+		private R entry;
+	}
+
+	public FairPool(final Collection<R> entries) {
+		entries.forEach(this::add);
+	}
+
+	/**
+	 * Adds an entry to the pool, it is handed to the next waiting client right
+	 * away.
+	 */
+	public synchronized void add(final R entry) {
+		entries.add(entry);
+		idle.add(entry);
+		dispatch();
+	}
+
+	/**
+	 * Waits until an entry is idle and it is the turn of {@code client}. The
+	 * entry has to be handed back with {@link #release(Object)}.
+	 *
+	 * @param client any object identifying the caller, e.g. the request the
+	 *          entry is used for
+	 */
+	public synchronized R borrow(final Object client)
+		throws InterruptedException
+	{
+		final Request<R> request = new Request<>();
+		waiting.computeIfAbsent(client, c -> new ArrayDeque<>()).add(request);
+		dispatch();
+		try {
+			while (request.entry == null) {
+				wait();
+			}
+		}
+		catch (final InterruptedException e) {
+			if (request.entry != null) release(request.entry);
+			else remove(client, request);
+			throw e;
+		}
+		return request.entry;
+	}
+
+	public synchronized void release(final R entry) {
+		idle.add(entry);
+		dispatch();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return the number of requests waiting for an entry
+	 */
+	public synchronized int getWaiting() {
+		return waiting.values().stream().mapToInt(Deque::size).sum();
+	}
+
+	public synchronized List<R> getEntries() {
+		return Collections.unmodifiableList(new ArrayList<>(entries));
+	}
+
+	private void dispatch() {
+		boolean served = false;
+		while (!idle.isEmpty() && !waiting.isEmpty()) {
+			final Iterator<Map.Entry<Object, Deque<Request<R>>>> clients = waiting
+				.entrySet().iterator();
+			final Map.Entry<Object, Deque<Request<R>>> next = clients.next();
+			clients.remove();
+			next.getValue().poll().entry = idle.poll();
+			// the client moves to the end of the line
+			if (!next.getValue().isEmpty()) waiting.put(next.getKey(), next
+				.getValue());
+			served = true;
+		}
+		if (served) notifyAll();
+	}
+
+	private void remove(final Object client, final Request<R> request) {
+		final Deque<Request<R>> requests = waiting.get(client);
+		if (requests == null) return;
+		requests.remove(request);
+		if (requests.isEmpty()) waiting.remove(client);
+	}
+
+}
@@ -0,0 +1,212 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.csbdresden.csbdeep.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.codec.binary.Hex;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+/**
+ * Remembers the MD5 hashes of model files, so that a file is only hashed
+ * again when its size or time of last modification changes. Directories,
+ * e.g. unpacked SavedModels, are hashed over the relative paths and contents
+ * of all files they contain. The index is stored as JSON in
+ * {@code ~/.csbdeep/fingerprints.json} or in the file given by the system
+ * property {@value #INDEX_PROPERTY}.
+ */
+public class FingerprintIndex {
+
+	public static final String INDEX_PROPERTY = "csbdeep.fingerprints";
+
+	private static FingerprintIndex instance;
+
+	private final File indexFile;
+	private final Map<String, Entry> entries = new HashMap<>();
+	private final Gson gson = new Gson();
+
+	private static class Entry {
+
+		long size;
+		long modified;
+		String md5;
+	}
+
+	public FingerprintIndex(final File indexFile) {
+		this.indexFile = indexFile;
+		load();
+	}
+
+	public static synchronized FingerprintIndex getInstance() {
+		if (instance == null) {
+			final String path = System.getProperty(INDEX_PROPERTY);
+			instance = new FingerprintIndex(path != null ? new File(path) : new File(
+				System.getProperty("user.home"), ".csbdeep" + File.separator +
+					"fingerprints.json"));
+		}
+		return instance;
+	}
+
+	/**
+	 * @return the MD5 hash of the file or directory, from the index if the file
+	 *         did not change since it was hashed
+	 */
+	public synchronized String md5(final File file) throws IOException {
+		final String key = file.getCanonicalPath();
+		final Entry current = stat(file);
+		final Entry known = entries.get(key);
+		if (known != null && known.size == current.size &&
+			known.modified == current.modified)
+		{
+			return known.md5;
+		}
+		current.md5 = hash(file);
+		entries.put(key, current);
+		save();
+		return current.md5;
+	}
+
+	private static Entry stat(final File file) throws IOException {
+		final Entry entry = new Entry();
+		if (!file.isDirectory()) {
+			if (!file.exists()) throw new IOException(file + " does not exist");
+			entry.size = file.length();
+			entry.modified = file.lastModified();
+			return entry;
+		}
+		for (final Path path : listFiles(file)) {
+			entry.size += path.toFile().length();
+			entry.modified = Math.max(entry.modified, path.toFile().lastModified());
+		}
+		return entry;
+	}
+
+	private static String hash(final File file) throws IOException {
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		}
+		catch (final NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		if (!file.isDirectory()) {
+			update(digest, file.toPath());
+			return Hex.encodeHexString(digest.digest());
+		}
+		final Path root = file.toPath();
+		for (final Path path : listFiles(file)) {
+			digest.update(root.relativize(path).toString().replace(File.separatorChar,
+				'/').getBytes(StandardCharsets.UTF_8));
+			update(digest, path);
+		}
+		return Hex.encodeHexString(digest.digest());
+	}
+
+	private static void update(final MessageDigest digest, final Path path)
+		throws IOException
+	{
+		final byte[] buffer = new byte[1 << 16];
+		try (InputStream in = Files.newInputStream(path)) {
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				digest.update(buffer, 0, read);
+			}
+		}
+	}
+
+	private static List<Path> listFiles(final File directory) throws IOException {
+		try (Stream<Path> files = Files.walk(directory.toPath())) {
+			return files.filter(Files::isRegularFile).sorted().collect(Collectors
+				.toList());
+		}
+	}
+
+	private void load() {
+		if (!indexFile.exists()) return;
+		try (Reader reader = Files.newBufferedReader(indexFile.toPath(),
+			StandardCharsets.UTF_8))
+		{
+			final Type type = new TypeToken<Map<String, Entry>>() {}.getType();
+			final Map<String, Entry> stored = gson.fromJson(reader, type);
+			if (stored != null) entries.putAll(stored);
+		}
+		catch (final IOException | JsonParseException e) {
+			// the index only saves time, start over with an empty one
+			entries.clear();
+		}
+	}
+
+	private void save() {
+		// forget files which do not exist anymore
+		entries.keySet().removeIf(path -> !new File(path).exists());
+		final File tmp = new File(indexFile.getPath() + ".tmp");
+		try {
+			Files.createDirectories(indexFile.getAbsoluteFile().getParentFile()
+				.toPath());
+			try (Writer writer = Files.newBufferedWriter(tmp.toPath(),
+				StandardCharsets.UTF_8))
+			{
+				gson.toJson(entries, writer);
+			}
+			try {
+				Files.move(tmp.toPath(), indexFile.toPath(),
+					StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			}
+			catch (final AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), indexFile.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		catch (final IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
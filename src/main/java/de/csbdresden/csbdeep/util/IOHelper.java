@@ -30,7 +30,6 @@
 package de.csbdresden.csbdeep.util;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.HttpURLConnection;
@@ -46,10 +45,12 @@ import org.scijava.io.http.HTTPLocation;
 import org.scijava.io.location.FileLocation;
 import org.scijava.io.location.Location;
 
-import de.csbdresden.csbdeep.commands.GenericNetwork;
+import de.csbdresden.csbdeep.commands.GenericCoreNetwork;
 
 public class IOHelper {
 
+	public static final String SAVED_MODEL_FILE = "saved_model.pb";
+
 	public static Location loadFileOrURL(final String path)
 		throws FileNotFoundException
 	{
@@ -90,32 +91,84 @@ public class IOHelper {
 		return existingUrl;
 	}
 
-	public static String getFileCacheName(Class<? extends GenericNetwork> parentClass, File file) throws IOException {
-		FileInputStream fis = null;
-		try {
-			fis = new FileInputStream(file);
-			String md5 = org.apache.commons.codec.digest.DigestUtils.md5Hex(fis);
-			return parentClass.getSimpleName() + "_" + md5;
-		} catch (IOException e) {
-			throw e;
-		} finally {
-			if(fis != null) {
-				fis.close();
-			}
+	/**
+	 * Names a model file or unpacked model directory after its MD5 hash. The
+	 * hash is taken from the {@link FingerprintIndex} if the file did not
+	 * change since it was last hashed. For the {@code saved_model.pb} of an
+	 * unpacked model, the whole model directory including its variables is
+	 * hashed.
+	 */
+	public static String getFileCacheName(Class<? extends GenericCoreNetwork> parentClass, File file) throws IOException {
+		return getFileCacheName(parentClass, file, FingerprintIndex.getInstance());
+	}
+
+	static String getFileCacheName(
+		final Class<? extends GenericCoreNetwork> parentClass, final File file,
+		final FingerprintIndex index) throws IOException
+	{
+		final File directory = getSavedModelDirectory(file);
+		return parentClass.getSimpleName() + "_" + index.md5(directory != null
+			? directory : file);
+	}
+
+	/**
+	 * Returns the directory of an unpacked TensorFlow SavedModel, given the
+	 * directory itself or its {@code saved_model.pb}.
+	 *
+	 * @return the directory or null if the file is not part of an unpacked model
+	 */
+	public static File getSavedModelDirectory(final File file) {
+		if (file == null) return null;
+		if (file.isDirectory()) {
+			return new File(file, SAVED_MODEL_FILE).isFile() ? file : null;
+		}
+		if (file.getName().equals(SAVED_MODEL_FILE) && file.isFile()) {
+			return file.getAbsoluteFile().getParentFile();
 		}
+		return null;
 	}
 
-	public static String getUrlCacheName(Class<? extends GenericNetwork> parentClass, String modelUrl) throws IOException {
+	/**
+	 * Names a model URL after its path and the time of last modification. The
+	 * time is taken from the local copy of the {@link ModelSourceResolver} if
+	 * there is one, otherwise the server is asked.
+	 */
+	public static String getUrlCacheName(Class<? extends GenericCoreNetwork> parentClass, String modelUrl) throws IOException {
+		final ModelSourceResolver.Resolution cached = ModelSourceResolver
+			.getInstance().getCached(modelUrl);
+		if (cached != null && cached.getLastModified() > 0) {
+			return getUrlCacheName(parentClass, modelUrl, cached.getLastModified());
+		}
 		URL url = new URL(modelUrl);
 		HttpURLConnection connection = (HttpURLConnection) url.openConnection();
 		connection.setReadTimeout(1000*10*1);
 		connection.setConnectTimeout(1000*10*1);
 		Long dateTime = connection.getLastModified();
 		connection.disconnect();
-		ZonedDateTime urlLastModified = ZonedDateTime.ofInstant(Instant.ofEpochMilli(dateTime), ZoneId.of("GMT"));
+		return getUrlCacheName(parentClass, modelUrl, dateTime);
+	}
+
+	public static String getUrlCacheName(Class<? extends GenericCoreNetwork> parentClass, String modelUrl, long lastModified) throws MalformedURLException {
+		URL url = new URL(modelUrl);
+		ZonedDateTime urlLastModified = ZonedDateTime.ofInstant(Instant.ofEpochMilli(lastModified), ZoneId.of("GMT"));
 
 		return parentClass.getSimpleName()
 				+ "_" + url.getPath().replace(".zip", "").replace("/", "")
 				+ "_" + DateTimeFormatter.ofPattern("yyyy-MM-dd-hh-mm-ss").format(urlLastModified);
 	}
+
+	/**
+	 * @return true if the string is a syntactically valid http(s) URL, without
+	 *         contacting the server
+	 */
+	public static boolean isUrl(final String path) {
+		if (path == null) return false;
+		try {
+			final String protocol = new URL(path).getProtocol();
+			return protocol.equals("http") || protocol.equals("https");
+		}
+		catch (final MalformedURLException e) {
+			return false;
+		}
+	}
 }
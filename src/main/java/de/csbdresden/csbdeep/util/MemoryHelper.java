@@ -0,0 +1,131 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.csbdresden.csbdeep.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.file.Files;
+import java.util.regex.Pattern;
+
+public class MemoryHelper {
+
+	// TensorFlow reports exhausted device or host memory as
+	// "OOM when allocating tensor ..." or as a ResourceExhausted error
+	private static final Pattern OUT_OF_MEMORY_MESSAGE = Pattern.compile(
+		"\\bOOM\\b|[Rr]esource ?[Ee]xhausted");
+
+	/**
+	 * @return true if the throwable or one of its causes reports that the JVM
+	 *         or the network backend ran out of memory
+	 */
+	public static boolean isOutOfMemory(final Throwable throwable) {
+		Throwable t = throwable;
+		while (t != null) {
+			if (t instanceof OutOfMemoryError) return true;
+			if (t.getMessage() != null && OUT_OF_MEMORY_MESSAGE.matcher(t
+				.getMessage()).find()) return true;
+			if (t.getCause() == t) break;
+			t = t.getCause();
+		}
+		return false;
+	}
+
+	/**
+	 * @return the number of bytes which can still be allocated on the heap
+	 */
+	public static long availableHeap() {
+		final Runtime runtime = Runtime.getRuntime();
+		return runtime.maxMemory() - (runtime.totalMemory() - runtime
+			.freeMemory());
+	}
+
+	/**
+	 * Requests a garbage collection and returns the bytes of the heap which are
+	 * not used by the objects still alive after it, as reported by the heap
+	 * memory pools. Unlike {@link #availableHeap()}, this does not count
+	 * garbage which has not been collected yet.
+	 */
+	public static long availableHeapAfterCollection() {
+		System.gc();
+		long used = 0;
+		for (final MemoryPoolMXBean pool : ManagementFactory
+			.getMemoryPoolMXBeans())
+		{
+			if (pool.getType() != MemoryType.HEAP) continue;
+			final MemoryUsage usage = pool.getCollectionUsage();
+			used += usage != null ? usage.getUsed() : pool.getUsage().getUsed();
+		}
+		return Runtime.getRuntime().maxMemory() - used;
+	}
+
+	/**
+	 * @return the physical memory in bytes which can still be used without
+	 *         swapping, or the available heap if the system does not report it
+	 */
+	public static long availableNativeMemory() {
+		// the free memory reported by the JVM does not include the page cache
+		final long available = readMemInfo("MemAvailable:");
+		if (available >= 0) return available;
+		final OperatingSystemMXBean os = ManagementFactory
+			.getOperatingSystemMXBean();
+		if (os instanceof com.sun.management.OperatingSystemMXBean) {
+			return ((com.sun.management.OperatingSystemMXBean) os)
+				.getFreePhysicalMemorySize();
+		}
+		return availableHeap();
+	}
+
+	private static long readMemInfo(final String key) {
+		final File memInfo = new File("/proc/meminfo");
+		if (!memInfo.exists()) return -1;
+		try {
+			for (final String line : Files.readAllLines(memInfo.toPath())) {
+				if (!line.startsWith(key)) continue;
+				final String[] parts = line.substring(key.length()).trim().split(
+					"\\s+");
+				return Long.parseLong(parts[0]) * 1024;
+			}
+		}
+		catch (final IOException | NumberFormatException e) {
+			return -1;
+		}
+		return -1;
+	}
+
+	public static String toMegabytes(final long bytes) {
+		return String.format("%.1f MB", bytes / (1024. * 1024.));
+	}
+
+}
@@ -0,0 +1,179 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.csbdresden.csbdeep.util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+/**
+ * Detects memory pressure before an {@link OutOfMemoryError} is thrown. The
+ * heap is watched with the collection usage thresholds of the heap memory
+ * pools: the JVM notifies the monitor if the memory still in use after a
+ * garbage collection exceeds the given fraction of a pool. Native memory,
+ * which is where TensorFlow allocates its tensors, is checked against a
+ * minimum of available physical memory whenever
+ * {@link #isUnderPressure()} is called.
+ * <p>
+ * A heap which was already full at the last {@link #reset()}, e.g. because of
+ * the normalized input or the preallocated output, only counts as pressure if
+ * the memory in use after a garbage collection grew by more than half of the
+ * space that was left.
+ * </p>
+ * <p>
+ * The thresholds of the memory pools are global to the JVM. They are set by
+ * the first monitor opened and reset when the last open monitor is closed.
+ * </p>
+ */
+public class MemoryMonitor implements AutoCloseable {
+
+	// number of open monitors, guarded by the class
+	private static int openMonitors = 0;
+
+	private final long minAvailableNativeMemory;
+	private final List<MemoryPoolMXBean> pools = new ArrayList<>();
+	private final NotificationEmitter emitter;
+	private final NotificationListener listener;
+	private volatile boolean heapPressure = false;
+	private volatile boolean heapFull = false;
+	private volatile long baseline;
+	private boolean closed = false;
+
+	/**
+	 * @param heapThreshold fraction of a heap pool which may be in use after a
+	 *          garbage collection
+	 * @param minAvailableNativeMemory bytes of physical memory which should stay
+	 *          available, 0 to not watch native memory
+	 */
+	public MemoryMonitor(final double heapThreshold,
+		final long minAvailableNativeMemory)
+	{
+		this.minAvailableNativeMemory = minAvailableNativeMemory;
+		for (final MemoryPoolMXBean pool : ManagementFactory
+			.getMemoryPoolMXBeans())
+		{
+			if (pool.getType() == MemoryType.HEAP && pool
+				.isCollectionUsageThresholdSupported() && pool.getUsage()
+					.getMax() > 0)
+			{
+				pools.add(pool);
+			}
+		}
+		synchronized (MemoryMonitor.class) {
+			if (openMonitors++ == 0) {
+				for (final MemoryPoolMXBean pool : pools) {
+					pool.setCollectionUsageThreshold((long) (pool.getUsage().getMax() *
+						heapThreshold));
+				}
+			}
+		}
+		baseline = getUsedAfterCollection();
+		listener = (notification, handback) -> {
+			if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(
+				notification.getType())) heapPressure = true;
+		};
+		emitter = (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+		emitter.addNotificationListener(listener, null, null);
+	}
+
+	/**
+	 * @return true if a heap pool exceeded its threshold since the last
+	 *         {@link #reset()} and the heap grew since then, or if less native
+	 *         memory is available than required
+	 */
+	public boolean isUnderPressure() {
+		if (heapPressure) {
+			if (isGrowing()) return true;
+			heapFull = true;
+		}
+		return minAvailableNativeMemory > 0 && MemoryHelper
+			.availableNativeMemory() < minAvailableNativeMemory;
+	}
+
+	/**
+	 * @return true if a heap pool exceeded its threshold without counting as
+	 *         pressure, because the heap was already full before
+	 */
+	public boolean wasHeapFull() {
+		return heapFull;
+	}
+
+	/**
+	 * Forgets about heap pressure reported so far, e.g. after the work causing
+	 * it was split into smaller parts, and takes the memory in use now as the
+	 * baseline to detect growth.
+	 */
+	public void reset() {
+		heapPressure = false;
+		baseline = getUsedAfterCollection();
+	}
+
+	private boolean isGrowing() {
+		long max = 0;
+		for (final MemoryPoolMXBean pool : pools) {
+			max += pool.getUsage().getMax();
+		}
+		return getUsedAfterCollection() - baseline > (max - baseline) / 2;
+	}
+
+	private long getUsedAfterCollection() {
+		long used = 0;
+		for (final MemoryPoolMXBean pool : pools) {
+			final MemoryUsage usage = pool.getCollectionUsage();
+			if (usage != null) used += usage.getUsed();
+		}
+		return used;
+	}
+
+	@Override
+	public void close() {
+		try {
+			emitter.removeNotificationListener(listener);
+		}
+		catch (final ListenerNotFoundException ignored) {}
+		synchronized (MemoryMonitor.class) {
+			if (closed) return;
+			closed = true;
+			// a threshold of zero disables the notifications
+			if (--openMonitors == 0) {
+				pools.forEach(pool -> pool.setCollectionUsageThreshold(0));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,535 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.csbdresden.csbdeep.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+
+/**
+ * Keeps local copies of models given by URL, so that commands can start
+ * without waiting for the network and run offline once a model has been
+ * downloaded. A cached copy is returned immediately and revalidated in the
+ * background with a conditional request; a newer version replaces it for the
+ * next run. Interrupted downloads are resumed with range requests. Downloads
+ * are checked against the length announced by the server and against an
+ * SHA-256 checksum if the caller or the server ({@code Digest} or
+ * {@code X-Checksum-Sha256} header) provides one.
+ * <p>
+ * Each URL gets a directory below the cache directory, named after the MD5
+ * hash of the URL, which holds the model file and a {@code manifest.json}
+ * with the validators of the server and the checksum of the file. Each
+ * version of the model file is named after its checksum, so that a new
+ * version never overwrites a file a running command may still read; the
+ * manifest is switched to the new file once it is complete. The cache
+ * directory is {@code ~/.csbdeep/models} or the directory given by the
+ * system property {@value #CACHE_PROPERTY}.
+ * </p>
+ */
+public class ModelSourceResolver {
+
+	public static final String CACHE_PROPERTY = "csbdeep.models";
+	private static final String MANIFEST = "manifest.json";
+	private static final String PARTIAL = "partial.json";
+	private static final String PART_SUFFIX = ".part";
+	// hex digits of the checksum in the names of the model file versions
+	private static final int VERSION_LENGTH = 16;
+	private static final Pattern CONTENT_RANGE = Pattern.compile(
+		"bytes (\\d+)-\\d+/(?:\\d+|\\*)", Pattern.CASE_INSENSITIVE);
+
+	private static ModelSourceResolver instance;
+
+	private final File directory;
+	private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+	private final ExecutorService revalidation = Executors
+		.newSingleThreadExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "CSBDeep model revalidation");
+			thread.setDaemon(true);
+			return thread;
+		});
+	private final Set<String> revalidating = new HashSet<>();
+	// downloads of different URLs do not wait for each other
+	private final ConcurrentHashMap<String, Object> locks =
+		new ConcurrentHashMap<>();
+	private int timeout = 10000;
+
+	/**
+	 * A local copy of a model.
+	 */
+	public static class Resolution {
+
+		private final File file;
+		private final long lastModified;
+		private final String sha256;
+		private final boolean cached;
+
+		Resolution(final File file, final Manifest manifest, final boolean cached) {
+			this.file = file;
+			this.lastModified = manifest.lastModified;
+			this.sha256 = manifest.sha256;
+			this.cached = cached;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		/**
+		 * @return the time of last modification reported by the server, 0 if
+		 *         unknown
+		 */
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public String getSha256() {
+			return sha256;
+		}
+
+		/**
+		 * @return true if the copy was taken from the cache without contacting
+		 *         the server
+		 */
+		public boolean isCached() {
+			return cached;
+		}
+	}
+
+	private static class Manifest {
+
+		String url;
+		String file;
+		String etag;
+		long lastModified;
+		long size;
+		String sha256;
+		long validated;
+	}
+
+	public ModelSourceResolver(final File directory) {
+		this.directory = directory;
+	}
+
+	public static synchronized ModelSourceResolver getInstance() {
+		if (instance == null) {
+			final String path = System.getProperty(CACHE_PROPERTY);
+			instance = new ModelSourceResolver(path != null ? new File(path)
+				: new File(System.getProperty("user.home"), ".csbdeep" +
+					File.separator + "models"));
+		}
+		return instance;
+	}
+
+	/**
+	 * Set the connect and read timeout of requests in milliseconds.
+	 */
+	public void setTimeout(final int timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Looks up the local copy of a model without contacting the server.
+	 *
+	 * @return the copy or null if the model has not been downloaded completely
+	 */
+	public Resolution getCached(final String url) {
+		final Manifest manifest = readManifest(url, MANIFEST);
+		if (manifest == null || manifest.file == null) return null;
+		final File file = new File(getDirectory(url), manifest.file);
+		if (!file.isFile() || file.length() != manifest.size) return null;
+		return new Resolution(file, manifest, true);
+	}
+
+	/**
+	 * Returns the local copy of a model. A cached copy is returned right away
+	 * and revalidated in the background.
+	 *
+	 * @param download if false, only the cache is consulted and null is
+	 *          returned if the model has not been downloaded yet
+	 */
+	public Resolution resolve(final String url, final boolean download)
+		throws IOException
+	{
+		return resolve(url, download, null);
+	}
+
+	/**
+	 * @param expectedSha256 the checksum a download has to match or null
+	 * @see #resolve(String, boolean)
+	 */
+	public Resolution resolve(final String url, final boolean download,
+		final String expectedSha256) throws IOException
+	{
+		final Resolution cached = getCached(url);
+		if (cached != null) {
+			revalidate(url);
+			return cached;
+		}
+		if (!download) return null;
+		return fetch(url, null, expectedSha256);
+	}
+
+	/**
+	 * Asks the server in the background whether the cached copy is still
+	 * current and downloads the new version if not.
+	 *
+	 * @return a future which completes with the current copy
+	 */
+	public Future<Resolution> revalidate(final String url) {
+		synchronized (revalidating) {
+			if (!revalidating.add(url)) {
+				return CompletableFuture.completedFuture(getCached(url));
+			}
+		}
+		return revalidation.submit(() -> {
+			try {
+				return revalidateNow(url);
+			}
+			catch (final IOException e) {
+				// offline or server unavailable, keep using the cached copy
+				return getCached(url);
+			}
+			finally {
+				synchronized (revalidating) {
+					revalidating.remove(url);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Revalidates the cached copy of a model with a conditional request.
+	 */
+	public Resolution revalidateNow(final String url) throws IOException {
+		final Manifest current = readManifest(url, MANIFEST);
+		return fetch(url, getCached(url) != null ? current : null, null);
+	}
+
+	private Resolution fetch(final String url, final Manifest current,
+		final String expectedSha256) throws IOException
+	{
+		synchronized (locks.computeIfAbsent(url, key -> new Object())) {
+			return fetchLocked(url, current, expectedSha256);
+		}
+	}
+
+	private Resolution fetchLocked(final String url, final Manifest current,
+		final String expectedSha256) throws IOException
+	{
+		final File dir = getDirectory(url);
+		Files.createDirectories(dir.toPath());
+		final String name = getFileName(url);
+		final File part = new File(dir, name + PART_SUFFIX);
+		final Manifest partial = readManifest(url, PARTIAL);
+
+		final HttpURLConnection connection = (HttpURLConnection) new URL(url)
+			.openConnection();
+		connection.setConnectTimeout(timeout);
+		connection.setReadTimeout(timeout);
+		long offset = 0;
+		if (current != null) {
+			if (current.etag != null) {
+				connection.setRequestProperty("If-None-Match", current.etag);
+			}
+			if (current.lastModified > 0) {
+				connection.setIfModifiedSince(current.lastModified);
+			}
+		}
+		else if (part.isFile() && part.length() > 0 && partial != null &&
+			(partial.etag != null || partial.lastModified > 0))
+		{
+			// resume, unless the file changed on the server since
+			offset = part.length();
+			connection.setRequestProperty("Range", "bytes=" + offset + "-");
+			connection.setRequestProperty("If-Range", partial.etag != null
+				? partial.etag : formatHttpDate(partial.lastModified));
+		}
+		try {
+			final int code = connection.getResponseCode();
+			if (code == HttpURLConnection.HTTP_NOT_MODIFIED && current != null) {
+				current.validated = System.currentTimeMillis();
+				writeManifest(url, MANIFEST, current);
+				return new Resolution(new File(dir, current.file), current, false);
+			}
+			if (code != HttpURLConnection.HTTP_OK &&
+				code != HttpURLConnection.HTTP_PARTIAL)
+			{
+				throw new IOException("Could not download " + url + ": HTTP " + code);
+			}
+			if (code == HttpURLConnection.HTTP_OK) offset = 0;
+			else if (getRangeStart(connection) != offset) {
+				// not the requested range, download the whole file again
+				if (offset == 0) {
+					throw new IOException("Could not download " + url +
+						": unexpected range " + connection.getHeaderField(
+							"Content-Range"));
+				}
+				connection.disconnect();
+				part.delete();
+				new File(dir, PARTIAL).delete();
+				return fetchLocked(url, current, expectedSha256);
+			}
+			final Manifest manifest = new Manifest();
+			manifest.url = url;
+			manifest.file = name;
+			manifest.etag = connection.getHeaderField("ETag");
+			manifest.lastModified = connection.getLastModified();
+			final long length = connection.getContentLengthLong();
+			writeManifest(url, PARTIAL, manifest);
+			download(connection, part, offset);
+			if (length >= 0 && part.length() != offset + length) {
+				throw new IOException("Download of " + url + " is incomplete");
+			}
+			manifest.size = part.length();
+			manifest.sha256 = sha256(part);
+			final String expected = expectedSha256 != null ? expectedSha256
+				: getServerChecksum(connection, code);
+			if (expected != null && !expected.equalsIgnoreCase(manifest.sha256)) {
+				part.delete();
+				new File(dir, PARTIAL).delete();
+				throw new IOException("Checksum of " + url + " does not match, got " +
+					manifest.sha256 + " instead of " + expected);
+			}
+			manifest.file = getVersionName(manifest.sha256, name);
+			final File file = new File(dir, manifest.file);
+			if (file.isFile()) part.delete();
+			else move(part, file);
+			manifest.validated = System.currentTimeMillis();
+			writeManifest(url, MANIFEST, manifest);
+			new File(dir, PARTIAL).delete();
+			deleteOldVersions(dir, name, manifest.file, current != null
+				? current.file : null);
+			return new Resolution(file, manifest, false);
+		}
+		finally {
+			connection.disconnect();
+		}
+	}
+
+	private static void download(final HttpURLConnection connection,
+		final File part, final long offset) throws IOException
+	{
+		try (InputStream in = connection.getInputStream();
+				OutputStream out = Files.newOutputStream(part.toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE, offset > 0
+						? StandardOpenOption.APPEND
+						: StandardOpenOption.TRUNCATE_EXISTING))
+		{
+			final byte[] buffer = new byte[1 << 16];
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				out.write(buffer, 0, read);
+			}
+		}
+	}
+
+	/**
+	 * @return the first byte of a partial response according to its
+	 *         {@code Content-Range} header, or -1 if the header is missing or
+	 *         malformed
+	 */
+	private static long getRangeStart(final HttpURLConnection connection) {
+		final String range = connection.getHeaderField("Content-Range");
+		if (range == null) return -1;
+		final Matcher matcher = CONTENT_RANGE.matcher(range.trim());
+		if (!matcher.matches()) return -1;
+		try {
+			return Long.parseLong(matcher.group(1));
+		}
+		catch (final NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the SHA-256 checksum of the whole file announced by the server or
+	 *         null
+	 */
+	private static String getServerChecksum(final HttpURLConnection connection,
+		final int code)
+	{
+		final String hex = connection.getHeaderField("X-Checksum-Sha256");
+		if (hex != null) return hex.trim();
+		// the digest of a partial response only covers the range
+		final String digest = connection.getHeaderField("Digest");
+		if (digest == null || code != HttpURLConnection.HTTP_OK) return null;
+		for (final String entry : digest.split(",")) {
+			final String[] parts = entry.trim().split("=", 2);
+			if (parts.length == 2 && parts[0].equalsIgnoreCase("SHA-256")) {
+				try {
+					return Hex.encodeHexString(Base64.getDecoder().decode(parts[1]));
+				}
+				catch (final IllegalArgumentException e) {
+					return null;
+				}
+			}
+		}
+		return null;
+	}
+
+	private static String sha256(final File file) throws IOException {
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (final NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		final byte[] buffer = new byte[1 << 16];
+		try (InputStream in = Files.newInputStream(file.toPath())) {
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				digest.update(buffer, 0, read);
+			}
+		}
+		return Hex.encodeHexString(digest.digest());
+	}
+
+	private static String getVersionName(final String sha256,
+		final String name)
+	{
+		return sha256.substring(0, VERSION_LENGTH) + "-" + name;
+	}
+
+	/**
+	 * Deletes the versions of the model file other than the current and the
+	 * previous one, which may still be read by a command started before.
+	 */
+	private static void deleteOldVersions(final File dir, final String name,
+		final String current, final String previous)
+	{
+		final File[] files = dir.listFiles();
+		if (files == null) return;
+		for (final File file : files) {
+			final String fileName = file.getName();
+			if (fileName.equals(current) || fileName.equals(previous)) continue;
+			if (fileName.length() == VERSION_LENGTH + 1 + name.length() && fileName
+				.endsWith("-" + name) && fileName.substring(0, VERSION_LENGTH).matches(
+					"[0-9a-f]+"))
+			{
+				file.delete();
+			}
+		}
+	}
+
+	private File getDirectory(final String url) {
+		return new File(directory, DigestUtils.md5Hex(url));
+	}
+
+	private static String getFileName(final String url) {
+		String path;
+		try {
+			path = new URL(url).getPath();
+		}
+		catch (final IOException e) {
+			path = "";
+		}
+		final String name = path.substring(path.lastIndexOf('/') + 1);
+		return name.isEmpty() || name.equals(MANIFEST) || name.equals(PARTIAL)
+			? "model.zip" : name;
+	}
+
+	private Manifest readManifest(final String url, final String fileName) {
+		final File file = new File(getDirectory(url), fileName);
+		if (!file.isFile()) return null;
+		try (Reader reader = Files.newBufferedReader(file.toPath(),
+			StandardCharsets.UTF_8))
+		{
+			final Manifest manifest = gson.fromJson(reader, Manifest.class);
+			return manifest != null && url.equals(manifest.url) ? manifest : null;
+		}
+		catch (final IOException | JsonParseException e) {
+			return null;
+		}
+	}
+
+	private void writeManifest(final String url, final String fileName,
+		final Manifest manifest) throws IOException
+	{
+		final File file = new File(getDirectory(url), fileName);
+		final File tmp = new File(file.getPath() + ".tmp");
+		try (Writer writer = Files.newBufferedWriter(tmp.toPath(),
+			StandardCharsets.UTF_8))
+		{
+			gson.toJson(manifest, writer);
+		}
+		move(tmp, file);
+	}
+
+	private static void move(final File from, final File to) throws IOException {
+		try {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (final AtomicMoveNotSupportedException e) {
+			Files.move(from.toPath(), to.toPath(),
+				StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static String formatHttpDate(final long millis) {
+		return DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.ofInstant(
+			Instant.ofEpochMilli(millis), ZoneId.of("GMT")));
+	}
+
+}
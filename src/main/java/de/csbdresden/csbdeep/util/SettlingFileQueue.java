@@ -0,0 +1,212 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.csbdresden.csbdeep.util;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Predicate;
+
+/**
+ * Hands files which are still being written, e.g. by a microscope, to a
+ * consumer once they are complete. A file is complete if its size is not zero
+ * and neither its size nor its modification time changed for the settle time.
+ * At most {@code capacity} complete files wait for the consumer, further files
+ * stay pending until there is room again. A file is not handed over twice
+ * unless it was modified after it was handed over.
+ * <p>
+ * Files are added and checked by one thread, the consumer takes them from
+ * another one.
+ * </p>
+ */
+public class SettlingFileQueue {
+
+	/**
+	 * A file which is not processed yet.
+	 */
+	public static class Arrival {
+
+		private final File file;
+		private final long firstSeen;
+		private long size = -1;
+		private long lastModified = -1;
+		private long lastChange;
+		private long completed;
+
+		private Arrival(final File file, final long now) {
+			this.file = file;
+			this.firstSeen = now;
+			this.lastChange = now;
+		}
+
+		/**
+		 * @return true if the file has not changed for the given time
+		 */
+		private boolean isComplete(final long now, final long settleTime) {
+			final long currentSize = file.length();
+			final long currentModified = file.lastModified();
+			if (currentSize != size || currentModified != lastModified) {
+				size = currentSize;
+				lastModified = currentModified;
+				lastChange = now;
+			}
+			return size > 0 && now - lastChange >= settleTime;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		/**
+		 * @return the time the file was added to the queue
+		 */
+		public long getFirstSeen() {
+			return firstSeen;
+		}
+
+		/**
+		 * @return the time the file was found to be complete
+		 */
+		public long getCompleted() {
+			return completed;
+		}
+	}
+
+	private static final Arrival END = new Arrival(null, 0);
+
+	private final long settleTime;
+	private final Predicate<File> filter;
+	private final BlockingQueue<Arrival> queue;
+	private final Map<Path, Arrival> pending = new LinkedHashMap<>();
+	// modification time of the files handed to the consumer
+	private final Map<Path, Long> queued = new HashMap<>();
+	private boolean full = false;
+
+	/**
+	 * @param capacity the largest number of complete files waiting for the
+	 *          consumer
+	 * @param settleTime milliseconds a file has to stay unchanged
+	 * @param filter decides which files are added
+	 */
+	public SettlingFileQueue(final int capacity, final long settleTime,
+		final Predicate<File> filter)
+	{
+		this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+		this.settleTime = settleTime;
+		this.filter = filter;
+	}
+
+	/**
+	 * Adds a file to the pending files, unless it is already pending, is
+	 * rejected by the filter or was handed over and has not changed since.
+	 *
+	 * @return true if the file was added
+	 */
+	public boolean add(final File file, final long now) {
+		final Path path = file.toPath();
+		if (pending.containsKey(path) || !filter.test(file)) return false;
+		final Long modified = queued.get(path);
+		if (modified != null && modified == file.lastModified()) return false;
+		pending.put(path, new Arrival(file, now));
+		return true;
+	}
+
+	/**
+	 * Moves the pending files which are complete to the consumer, in the order
+	 * they were added, as long as there is room. Files which disappeared are
+	 * dropped.
+	 *
+	 * @return the number of files handed to the consumer
+	 */
+	public int update(final long now) {
+		int moved = 0;
+		full = false;
+		for (final Iterator<Arrival> it = pending.values().iterator(); it
+			.hasNext();)
+		{
+			final Arrival arrival = it.next();
+			if (!arrival.file.exists()) {
+				it.remove();
+				continue;
+			}
+			if (!arrival.isComplete(now, settleTime)) continue;
+			arrival.completed = now;
+			if (!queue.offer(arrival)) {
+				full = true;
+				break;
+			}
+			it.remove();
+			queued.put(arrival.file.toPath(), arrival.lastModified);
+			moved++;
+		}
+		return moved;
+	}
+
+	/**
+	 * @return true if a complete file had to stay pending during the last
+	 *         {@link #update(long)} because the consumer was busy
+	 */
+	public boolean isFull() {
+		return full;
+	}
+
+	/**
+	 * @return true if no file is pending or waiting for the consumer
+	 */
+	public boolean isEmpty() {
+		return pending.isEmpty() && queue.isEmpty();
+	}
+
+	/**
+	 * Waits for the next complete file.
+	 *
+	 * @return the file or null after {@link #close(boolean)}
+	 */
+	public Arrival take() throws InterruptedException {
+		final Arrival arrival = queue.take();
+		return arrival == END ? null : arrival;
+	}
+
+	/**
+	 * Lets the consumer stop after the files waiting for it.
+	 *
+	 * @param discard if true, the waiting files are dropped
+	 */
+	public void close(final boolean discard) throws InterruptedException {
+		if (discard) queue.clear();
+		queue.put(END);
+	}
+
+}
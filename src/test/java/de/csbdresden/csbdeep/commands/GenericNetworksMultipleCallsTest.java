@@ -42,6 +42,7 @@ import org.scijava.command.CommandModule;
 import org.scijava.module.Module;
 
 import de.csbdresden.csbdeep.CSBDeepTest;
+import de.csbdresden.csbdeep.network.model.tensorflow.ModelRegistryService;
 import net.imagej.Dataset;
 import net.imagej.axis.Axes;
 import net.imagej.axis.AxisType;
@@ -83,6 +84,12 @@ public class GenericNetworksMultipleCallsTest extends CSBDeepTest {
 			}
 		}
 
+		// the models stay loaded for the next calls
+		final ModelRegistryService registry = ij.get(ModelRegistryService.class);
+		assertEquals(networks.length, registry.getLoadedModels().size());
+		registry.unloadAll();
+		assertEquals(0, registry.getLoadedModels().size());
+
 	}
 
 }
@@ -0,0 +1,258 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.csbdresden.csbdeep.network.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import de.csbdresden.csbdeep.imglib2.TiledView;
+import de.csbdresden.csbdeep.task.DefaultTask;
+import de.csbdresden.csbdeep.tasks.PseudoNetwork;
+import de.csbdresden.csbdeep.tiling.AdvancedTiledView;
+import de.csbdresden.csbdeep.tiling.BackgroundFilter;
+import de.csbdresden.csbdeep.tiling.DefaultTiling;
+import de.csbdresden.csbdeep.tiling.TileMerger;
+import de.csbdresden.csbdeep.tiling.Tiling;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+public class DefaultNetworkTest {
+
+	@Test
+	public void testPipelineKeepsTileOrder() throws Exception {
+		runAndCompareTiles(3, 2, 1);
+	}
+
+	@Test
+	public void testConcurrentRunsKeepTileOrder() throws Exception {
+		runAndCompareTiles(1, 3, 4);
+	}
+
+	@Test
+	public void testStreamingIntoMerger() throws Exception {
+		final Img<FloatType> img = ArrayImgs.floats(40, 27);
+		final Random random = new Random(3);
+		img.forEach(pixel -> pixel.set(random.nextFloat()));
+		final AxisType[] axes = { Axes.X, Axes.Y };
+		final Tiling.TilingAction[] actions = {
+			Tiling.TilingAction.TILE_WITH_PADDING,
+			Tiling.TilingAction.TILE_WITH_PADDING };
+		final DefaultTask status = new DefaultTask();
+		final AdvancedTiledView<FloatType> tiledView = new DefaultTiling<FloatType>(
+			6, 1, 8, 4).preprocess(img, axes, actions, status);
+		tiledView.setMerger(new TileMerger<>(tiledView, axes));
+
+		final PseudoNetwork<FloatType> network = new PseudoNetwork<>(status);
+		network.setTiledView(tiledView);
+		network.setTilesPerBatch(2);
+		network.resetTileCount();
+		final List<RandomAccessibleInterval<FloatType>> results = network.call();
+		network.dispose();
+
+		assertNotNull(results);
+		assertTrue(results.isEmpty());
+		assertEquals(Intervals.numElements(tiledView), tiledView.getMerger()
+			.getWrittenTiles());
+		final Img<FloatType> merged = tiledView.getMerger().getResult();
+		assertTrue(Intervals.equals(img, merged));
+		final Cursor<FloatType> expected = img.cursor();
+		final Cursor<FloatType> actual = merged.cursor();
+		while (expected.hasNext()) {
+			assertEquals(expected.next().get(), actual.next().get(), 0);
+		}
+	}
+
+	@Test
+	public void testSkippingBackgroundTiles() throws Exception {
+		final Img<FloatType> img = ArrayImgs.floats(64, 48);
+		Views.interval(img, Intervals.createMinSize(40, 30, 10, 10)).forEach(
+			pixel -> pixel.set(1));
+		final AxisType[] axes = { Axes.X, Axes.Y };
+		final Tiling.TilingAction[] actions = {
+			Tiling.TilingAction.TILE_WITH_PADDING,
+			Tiling.TilingAction.TILE_WITH_PADDING };
+		final DefaultTask status = new DefaultTask();
+		final AdvancedTiledView<FloatType> tiledView = new DefaultTiling<FloatType>(
+			8, 1, 8, 4).preprocess(img, axes, actions, status);
+		tiledView.setMerger(new TileMerger<>(tiledView, axes));
+
+		final AtomicInteger executions = new AtomicInteger();
+		final PseudoNetwork<FloatType> network = new PseudoNetwork<FloatType>(
+			status)
+		{
+
+			@Override
+			public RandomAccessibleInterval<FloatType> execute(
+				final RandomAccessibleInterval<FloatType> tile) throws Exception
+			{
+				executions.incrementAndGet();
+				return super.execute(tile);
+			}
+		};
+		network.setTiledView(tiledView);
+		network.setBackgroundFilter(new BackgroundFilter(
+			BackgroundFilter.Statistic.MAXIMUM, 0.5, 0, 0));
+		network.resetTileCount();
+		network.call();
+		network.dispose();
+
+		final long numTiles = Intervals.numElements(tiledView);
+		final TileMerger<FloatType> merger = tiledView.getMerger();
+		assertTrue(executions.get() > 0);
+		assertEquals(numTiles, executions.get() + merger.getFilledTiles());
+		assertTrue(merger.getFilledTiles() > numTiles / 2);
+		assertEquals(numTiles, merger.getWrittenTiles());
+		assertEquals(numTiles, status.getCurrentStep());
+		final Cursor<FloatType> expected = img.cursor();
+		final Cursor<FloatType> actual = merger.getResult().cursor();
+		while (expected.hasNext()) {
+			assertEquals(expected.next().get(), actual.next().get(), 0);
+		}
+	}
+
+	@Test
+	public void testWarmUp() throws Exception {
+		final Img<FloatType> img = ArrayImgs.floats(64, 48);
+		img.forEach(pixel -> pixel.set(1));
+		final AxisType[] axes = { Axes.X, Axes.Y };
+		final Tiling.TilingAction[] actions = {
+			Tiling.TilingAction.TILE_WITH_PADDING,
+			Tiling.TilingAction.TILE_WITH_PADDING };
+		final DefaultTask status = new DefaultTask();
+		final AdvancedTiledView<FloatType> tiledView = new DefaultTiling<FloatType>(
+			8, 1, 8, 4).preprocess(img, axes, actions, status);
+
+		final AtomicInteger executions = new AtomicInteger();
+		final AtomicInteger dummies = new AtomicInteger();
+		final PseudoNetwork<FloatType> network = new PseudoNetwork<FloatType>(
+			status)
+		{
+
+			@Override
+			public RandomAccessibleInterval<FloatType> execute(
+				final RandomAccessibleInterval<FloatType> tile) throws Exception
+			{
+				executions.incrementAndGet();
+				if (Views.iterable(tile).firstElement().get() == 0) dummies
+					.incrementAndGet();
+				return super.execute(tile);
+			}
+		};
+		network.setTiledView(tiledView);
+		network.setTilesPerBatch(3);
+		network.setWarmUp(true);
+		network.resetTileCount();
+		network.call();
+
+		final long numTiles = Intervals.numElements(tiledView);
+		assertEquals(3, dummies.get());
+		assertEquals(numTiles + 3, executions.get());
+		assertEquals(numTiles, status.getCurrentStep());
+
+		// the shape is only warmed up once
+		network.resetTileCount();
+		network.call();
+		network.dispose();
+		assertEquals(3, dummies.get());
+		assertEquals(2 * numTiles + 3, executions.get());
+	}
+
+	@Test
+	public void testBackgroundStatistics() {
+		final Img<FloatType> tile = ArrayImgs.floats(new float[] { 0, 0, 0, 1 },
+			4);
+		assertEquals(1, new BackgroundFilter(BackgroundFilter.Statistic.MAXIMUM,
+			0, 0, 0).compute(tile), 0);
+		assertEquals(0.25, new BackgroundFilter(
+			BackgroundFilter.Statistic.FOREGROUND_FRACTION, 0, 0.5, 0).compute(
+				tile), 0);
+		assertEquals(Math.sqrt(0.1875), new BackgroundFilter(
+			BackgroundFilter.Statistic.STANDARD_DEVIATION, 0, 0, 0).compute(tile),
+			1e-9);
+		assertTrue(new BackgroundFilter(
+			BackgroundFilter.Statistic.FOREGROUND_FRACTION, 0.3, 0.5, 0)
+				.isBackground(tile));
+		assertFalse(new BackgroundFilter(
+			BackgroundFilter.Statistic.FOREGROUND_FRACTION, 0.25, 0.5, 0)
+				.isBackground(tile));
+	}
+
+	private void runAndCompareTiles(final int tilesPerBatch,
+		final int pipelineDepth, final int concurrentRuns) throws Exception
+	{
+		final RandomAccessibleInterval<FloatType> img = ArrayImgs.floats(10, 8);
+		final TiledView<FloatType> tiledView = new TiledView<>(img, 3, 2);
+
+		final List<RandomAccessibleInterval<FloatType>> tiles = new ArrayList<>();
+		final Cursor<RandomAccessibleInterval<FloatType>> cursor = Views.iterable(
+			tiledView).cursor();
+		while (cursor.hasNext()) {
+			tiles.add(cursor.next());
+		}
+
+		final DefaultTask status = new DefaultTask();
+		final PseudoNetwork<FloatType> network = new PseudoNetwork<>(status);
+		network.setTiledView(tiledView);
+		network.setTilesPerBatch(tilesPerBatch);
+		network.setPipelineDepth(pipelineDepth);
+		network.setConcurrentRuns(concurrentRuns);
+		network.resetTileCount();
+
+		final List<RandomAccessibleInterval<FloatType>> results = network.call();
+		network.dispose();
+
+		assertNotNull(results);
+		assertEquals(tiles.size(), results.size());
+		assertEquals(tiles.size(), status.getCurrentStep());
+		for (int i = 0; i < tiles.size(); i++) {
+			for (int d = 0; d < img.numDimensions(); d++) {
+				assertEquals(tiles.get(i).min(d), results.get(i).min(d));
+				assertEquals(tiles.get(i).max(d), results.get(i).max(d));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,161 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.csbdeep.network.model;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+public class MicroBatcherTest {
+
+	/**
+	 * Inputs with the same length run together, the output of an input is the
+	 * input in upper case.
+	 */
+	private static class UpperCaseBackend implements
+		MicroBatcher.Backend<String, String>
+	{
+
+		private final List<Integer> calls = Collections.synchronizedList(
+			new ArrayList<>());
+
+		@Override
+		public Object key(final String input) {
+			return input.length();
+		}
+
+		@Override
+		public int size(final String input) {
+			return 1;
+		}
+
+		@Override
+		public List<String> run(final List<String> inputs) {
+			if (inputs.contains("fail")) throw new IllegalArgumentException("fail");
+			calls.add(inputs.size());
+			return inputs.stream().map(String::toUpperCase).collect(Collectors
+				.toList());
+		}
+	}
+
+	@Test
+	public void testCombineConcurrentInputs() throws Exception {
+		final UpperCaseBackend backend = new UpperCaseBackend();
+		final MicroBatcher<String, String> batcher = new MicroBatcher<>(backend,
+			3, 10000);
+		final List<String> outputs = runConcurrently(batcher, "abc", "def",
+			"ghi");
+		assertEquals(3, outputs.size());
+		assertTrue(outputs.containsAll(Arrays.asList("ABC", "DEF",
+			"GHI")));
+		// the batch was full, so it did not wait for the delay
+		assertEquals(Collections.singletonList(3), backend.calls);
+	}
+
+	@Test
+	public void testDifferentShapesRunSeparately() throws Exception {
+		final UpperCaseBackend backend = new UpperCaseBackend();
+		final MicroBatcher<String, String> batcher = new MicroBatcher<>(backend,
+			4, 50);
+		final List<String> outputs = runConcurrently(batcher, "a", "bc");
+		assertEquals(Arrays.asList("A", "BC"), outputs);
+		assertEquals(Arrays.asList(1, 1), backend.calls);
+	}
+
+	@Test
+	public void testSingleInputWithoutDelay() throws Exception {
+		final UpperCaseBackend backend = new UpperCaseBackend();
+		final MicroBatcher<String, String> batcher = new MicroBatcher<>(backend,
+			4, 0);
+		assertEquals("X", batcher.run("x"));
+		assertEquals("Y", batcher.run("y"));
+		assertEquals(Arrays.asList(1, 1), backend.calls);
+	}
+
+	@Test
+	public void testFailureReachesAllInputs() throws Exception {
+		final MicroBatcher<String, String> batcher = new MicroBatcher<>(
+			new UpperCaseBackend(), 2, 10000);
+		final ExecutorService threads = Executors.newFixedThreadPool(2);
+		try {
+			final Future<String> first = threads.submit(() -> batcher.run("fail"));
+			final Future<String> second = threads.submit(() -> batcher.run("okay"));
+			for (final Future<String> future : Arrays.asList(first,
+				second))
+			{
+				try {
+					future.get(10, TimeUnit.SECONDS);
+				}
+				catch (final ExecutionException e) {
+					assertTrue(e.getCause() instanceof IllegalArgumentException);
+					continue;
+				}
+				throw new AssertionError("The failure was not passed on");
+			}
+		}
+		finally {
+			threads.shutdownNow();
+		}
+	}
+
+	private static List<String> runConcurrently(
+		final MicroBatcher<String, String> batcher, final String... inputs)
+		throws Exception
+	{
+		final ExecutorService threads = Executors.newFixedThreadPool(
+			inputs.length);
+		try {
+			final List<Future<String>> futures = new ArrayList<>();
+			for (final String input : inputs) {
+				futures.add(threads.submit(() -> batcher.run(input)));
+			}
+			final List<String> outputs = new ArrayList<>();
+			for (final Future<String> future : futures) {
+				outputs.add(future.get(10, TimeUnit.SECONDS));
+			}
+			return outputs;
+		}
+		finally {
+			threads.shutdownNow();
+		}
+	}
+
+}
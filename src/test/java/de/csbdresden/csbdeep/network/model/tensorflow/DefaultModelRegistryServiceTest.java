@@ -0,0 +1,149 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.csbdeep.network.model.tensorflow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import de.csbdresden.csbdeep.network.model.ExecutionProfile;
+
+public class DefaultModelRegistryServiceTest {
+
+	private static final ExecutionProfile PROFILE = new ExecutionProfile();
+
+	/**
+	 * Registers entries without sessions, optionally waiting for a latch while
+	 * loading the model called "slow".
+	 */
+	private static class TestRegistry extends DefaultModelRegistryService {
+
+		final AtomicInteger loads = new AtomicInteger();
+		final CountDownLatch slowStarted = new CountDownLatch(1);
+		final CountDownLatch slowMayFinish = new CountDownLatch(1);
+
+		@Override
+		protected RegisteredModel load(final String name,
+			final ExecutionProfile profile, final File directory) throws IOException
+		{
+			loads.incrementAndGet();
+			if (name.equals("slow")) {
+				slowStarted.countDown();
+				try {
+					slowMayFinish.await();
+				}
+				catch (final InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+			return new RegisteredModel(name, profile, 1);
+		}
+	}
+
+	@Test
+	public void testReferenceCounting() throws IOException {
+		final TestRegistry registry = new TestRegistry();
+		final RegisteredModel first = registry.acquire("a", PROFILE, () -> null);
+		final RegisteredModel second = registry.acquire("a", PROFILE, () -> null);
+		assertSame(first, second);
+		assertEquals(1, registry.loads.get());
+		assertEquals(2, first.references);
+
+		// a model in use is only unloaded when it is released
+		assertTrue(registry.unload("a"));
+		assertEquals(Collections.singletonList("a"), registry.getLoadedModels());
+		registry.release(first);
+		assertEquals(Collections.singletonList("a"), registry.getLoadedModels());
+		registry.release(second);
+		assertTrue(registry.getLoadedModels().isEmpty());
+		assertFalse(registry.unload("a"));
+	}
+
+	@Test
+	public void testEvictionKeepsReferencedModels() throws IOException {
+		final TestRegistry registry = new TestRegistry();
+		registry.setLimits(1, Long.MAX_VALUE);
+		final RegisteredModel a = registry.acquire("a", PROFILE, () -> null);
+		final RegisteredModel b = registry.acquire("b", PROFILE, () -> null);
+		assertEquals(Arrays.asList("a", "b"), registry.getLoadedModels());
+
+		// the least recently used model goes first once it is not used anymore
+		registry.release(a);
+		assertEquals(Collections.singletonList("b"), registry.getLoadedModels());
+		registry.release(b);
+		assertEquals(Collections.singletonList("b"), registry.getLoadedModels());
+		assertSame(b, registry.acquire("b", PROFILE, () -> null));
+		assertEquals(2, registry.loads.get());
+	}
+
+	@Test
+	public void testLoadingDoesNotBlockOtherModels() throws Exception {
+		final TestRegistry registry = new TestRegistry();
+		final ExecutorService threads = Executors.newCachedThreadPool();
+		try {
+			final Future<RegisteredModel> slow = threads.submit(() -> registry
+				.acquire("slow", PROFILE, () -> null));
+			assertTrue(registry.slowStarted.await(10, TimeUnit.SECONDS));
+			final Future<RegisteredModel> waiting = threads.submit(() -> registry
+				.acquire("slow", PROFILE, () -> null));
+
+			// while "slow" is loading, other models can be acquired and released
+			final RegisteredModel fast = threads.submit(() -> registry.acquire(
+				"fast", PROFILE, () -> null)).get(10, TimeUnit.SECONDS);
+			registry.release(fast);
+			assertFalse(slow.isDone());
+			assertFalse(waiting.isDone());
+
+			registry.slowMayFinish.countDown();
+			final RegisteredModel model = slow.get(10, TimeUnit.SECONDS);
+			assertSame(model, waiting.get(10, TimeUnit.SECONDS));
+			assertEquals(2, model.references);
+			assertEquals(2, registry.loads.get());
+		}
+		finally {
+			registry.slowMayFinish.countDown();
+			threads.shutdownNow();
+		}
+	}
+
+}
@@ -0,0 +1,185 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.csbdresden.csbdeep.network.model.tensorflow;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+import org.tensorflow.Tensor;
+
+import de.csbdresden.csbdeep.normalize.NormalizingConverter;
+import de.csbdresden.csbdeep.task.DefaultTask;
+import de.csbdresden.csbdeep.tiling.AdvancedTiledView;
+import de.csbdresden.csbdeep.tiling.DefaultTiling;
+import de.csbdresden.csbdeep.tiling.Tiling;
+import net.imagej.ImgPlus;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.converter.RealFloatConverter;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgView;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+public class TileGathererTest {
+
+	@Test
+	public void testMirror() {
+		assertEquals(3, TileGatherer.mirror(3, 0, 4));
+		assertEquals(0, TileGatherer.mirror(-1, 0, 4));
+		assertEquals(1, TileGatherer.mirror(-2, 0, 4));
+		assertEquals(4, TileGatherer.mirror(5, 0, 4));
+		assertEquals(3, TileGatherer.mirror(6, 0, 4));
+		assertEquals(0, TileGatherer.mirror(10, 0, 4));
+		assertEquals(0, TileGatherer.mirror(-7, 0, 0));
+	}
+
+	@Test
+	public void testArrayImg() {
+		compareWithViews(fill(ArrayImgs.unsignedBytes(27, 19)));
+	}
+
+	@Test
+	public void testPlanarImg() {
+		compareWithViews(fill(PlanarImgs.floats(27, 19)));
+	}
+
+	@Test
+	public void testCellImg() {
+		compareWithViews(fill(new CellImgFactory<>(new UnsignedByteType(), 8)
+			.create(27, 19)));
+	}
+
+	@Test
+	public void testBatchesOfTiles() {
+		// all tiles of the grid are mirrored at the image border
+		compareWithViews(fill(ArrayImgs.unsignedBytes(27, 19)), 2);
+		compareWithViews(fill(PlanarImgs.floats(27, 19)), 3);
+		compareWithViews(fill(new CellImgFactory<>(new UnsignedByteType(), 8)
+			.create(27, 19)), 4);
+	}
+
+	@Test
+	public void testLazilyNormalizedArrayImg() {
+		// same view as in PercentileNormalizer#normalizeLazily
+		final RandomAccessibleInterval<FloatType> normalized = Converters.convert(
+			(RandomAccessibleInterval<UnsignedByteType>) fill(ArrayImgs
+				.unsignedBytes(27, 19)), new NormalizingConverter<>(10, 1 / 200f, 0,
+					1, true), new FloatType());
+		compareWithViews(new ImgPlus<>(ImgView.wrap(normalized,
+			new ArrayImgFactory<>(new FloatType()))));
+	}
+
+	private static <T extends RealType<T>> Img<T> fill(final Img<T> img) {
+		final Random random = new Random(42);
+		for (final T pixel : img) {
+			pixel.setReal(random.nextInt(256));
+		}
+		return img;
+	}
+
+	private static <T extends RealType<T>> void compareWithViews(
+		final Img<T> img)
+	{
+		compareWithViews(img, 1);
+	}
+
+	/**
+	 * Compares batches of {@code tilesPerBatch} gathered tiles with the tensors
+	 * of the single tile views, stacked along the first dimension.
+	 */
+	private static <T extends RealType<T>> void compareWithViews(
+		final Img<T> img, final int tilesPerBatch)
+	{
+		// same views as in DefaultInputProcessor
+		final RandomAccessibleInterval<FloatType> input = Views.addDimension(
+			Converters.convert((RandomAccessibleInterval<T>) img,
+				new RealFloatConverter<T>(), new FloatType()), 0, 0);
+		final AxisType[] axes = { Axes.X, Axes.Y, Axes.CHANNEL };
+		final Tiling.TilingAction[] actions = {
+			Tiling.TilingAction.TILE_WITH_PADDING,
+			Tiling.TilingAction.TILE_WITH_PADDING, Tiling.TilingAction.NO_TILING };
+		final AdvancedTiledView<FloatType> view = new DefaultTiling<FloatType>(4,
+			1, 8, 4).preprocess(input, axes, actions, new DefaultTask());
+
+		final int[] dimOrder = { 2, 1, 0 };
+		final TileGatherer gatherer = new TileGatherer();
+		final Cursor<RandomAccessibleInterval<FloatType>> cursor = Views.iterable(
+			view).cursor();
+		final int numTiles = (int) Intervals.numElements(view);
+		for (int i = 0; i < numTiles; i += tilesPerBatch) {
+			final int batchSize = Math.min(tilesPerBatch, numTiles - i);
+			long[] shape = null;
+			float[] expected = new float[0];
+			for (int j = 0; j < batchSize; j++) {
+				try (Tensor<?> tile = DatasetTensorFlowConverter.datasetToTensor(
+					cursor.next(), dimOrder))
+				{
+					shape = tile.shape();
+					final float[] values = values(tile);
+					final int offset = expected.length;
+					expected = Arrays.copyOf(expected, offset + values.length);
+					System.arraycopy(values, 0, expected, offset, values.length);
+				}
+			}
+			shape[0] *= batchSize;
+			try (Tensor<Float> actual = gatherer.gather(view, i, batchSize,
+				dimOrder))
+			{
+				assertArrayEquals(shape, actual.shape());
+				assertArrayEquals(expected, values(actual), 0);
+			}
+		}
+		assertFalse(cursor.hasNext());
+	}
+
+	private static float[] values(final Tensor<?> tensor) {
+		final FloatBuffer buffer = FloatBuffer.allocate(tensor.numElements());
+		tensor.writeTo(buffer);
+		return buffer.array();
+	}
+
+}
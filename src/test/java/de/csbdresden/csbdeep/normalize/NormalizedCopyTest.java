@@ -0,0 +1,119 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.csbdeep.normalize;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+public class NormalizedCopyTest {
+
+	@Test
+	public void testArrayImgs() {
+		testCopy(fill(ArrayImgs.unsignedBytes(300, 200)), ArrayImgs.floats(300,
+			200));
+	}
+
+	@Test
+	public void testPlanarImgs() {
+		testCopy(fill(PlanarImgs.unsignedShorts(30, 20, 3, 2)), PlanarImgs.floats(
+			30, 20, 3, 2));
+		testCopy(fill(PlanarImgs.floats(30, 20, 3)), PlanarImgs.floats(30, 20, 3));
+	}
+
+	@Test
+	public void testSignedType() {
+		testCopy(fill(ArrayImgs.shorts(30, 20)), ArrayImgs.floats(30, 20));
+	}
+
+	@Test
+	public void testCellImgs() {
+		// same cell grid, including cells cut at the border: copied with cursors
+		final Img<UnsignedShortType> in = fill(new CellImgFactory<>(
+			new UnsignedShortType(), 16).create(30, 20, 3));
+		final Img<FloatType> out = new CellImgFactory<>(new FloatType(), 16).create(
+			30, 20, 3);
+		assertEquals(in.iterationOrder(), out.iterationOrder());
+		testCopy(in, out);
+	}
+
+	@Test
+	public void testDifferentLayouts() {
+		testCopy(fill(ArrayImgs.unsignedBytes(30, 20, 3)), new CellImgFactory<>(
+			new FloatType(), 16).create(30, 20, 3));
+		final Img<UnsignedShortType> in = fill(new CellImgFactory<>(
+			new UnsignedShortType(), 8).create(30, 20, 3));
+		final Img<FloatType> out = new CellImgFactory<>(new FloatType(), 16).create(
+			30, 20, 3);
+		assertNotEquals(in.iterationOrder(), out.iterationOrder());
+		testCopy(in, out);
+		testCopy(fill(PlanarImgs.unsignedBytes(30, 20, 3)), ArrayImgs.floats(30,
+			20, 3));
+	}
+
+	private static <T extends RealType<T>> Img<T> fill(final Img<T> img) {
+		final Random random = new Random(42);
+		for (final T pixel : img) {
+			pixel.setReal(random.nextInt(256) - (pixel instanceof ShortType ? 128
+				: 0));
+		}
+		return img;
+	}
+
+	private static <T extends RealType<T>> void testCopy(final Img<T> in,
+		final Img<FloatType> out)
+	{
+		final NormalizingConverter<T> converter = new NormalizingConverter<>(10,
+			1 / 200f, 0, 1, true);
+		NormalizedCopy.copy(in, out, converter);
+		final Cursor<FloatType> cursor = out.localizingCursor();
+		final RandomAccess<T> access = in.randomAccess();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			access.setPosition(cursor);
+			assertEquals(converter.normalize(access.get().getRealFloat()), cursor
+				.get().get(), 0);
+		}
+	}
+
+}
@@ -37,13 +37,18 @@ import org.apache.commons.math3.stat.descriptive.rank.Percentile;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import net.imagej.Dataset;
 import net.imagej.ImageJ;
 import net.imglib2.Cursor;
 import net.imglib2.cache.img.DiskCachedCellImgFactory;
 import net.imglib2.histogram.Histogram1d;
 import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
 
 public class PercentileTest {
 
@@ -88,6 +93,68 @@ public class PercentileTest {
 
 	}
 
+	@Test
+	public void testExactPercentilesMatchSorting() {
+
+		final Random random = new Random(42);
+		final float[] percentiles = new float[] { 0, 0.000000001f, 1, 3, 50,
+			97, 99.8f, 99.99999999f, 100 };
+
+		// more than one parallel chunk
+		final Img<FloatType> gaussian = ArrayImgs.floats(2500, 2000);
+		for (final FloatType value : gaussian) {
+			value.set((float) random.nextGaussian() * 1000);
+		}
+		assertSameAsSorting(gaussian, percentiles);
+
+		final Img<FloatType> duplicates = new CellImgFactory<>(new FloatType())
+			.create(300, 200, 3);
+		for (final FloatType value : duplicates) {
+			value.set(random.nextInt(50) - 10);
+		}
+		assertSameAsSorting(duplicates, percentiles);
+
+		final Img<UnsignedShortType> shorts = ArrayImgs.unsignedShorts(300, 200);
+		for (final UnsignedShortType value : shorts) {
+			value.set(random.nextInt(65536));
+		}
+		assertSameAsSorting(shorts, percentiles);
+
+	}
+
+	@Test
+	public void testNormalizerPercentilesMatchSorting() {
+
+		final long[] dimensions = new long[] { 294, 285, 2 };
+		final Random random = new Random(42);
+		final ImageJ ij = new ImageJ();
+
+		final Dataset dataset = ij.dataset().create(new FloatType(), dimensions,
+			"test", null);
+		final float[] values = new float[(int) mult(dimensions)];
+		final Cursor<FloatType> cursor = (Cursor<FloatType>) dataset.getImgPlus()
+			.cursor();
+		for (int i = 0; i < values.length; i++) {
+			values[i] = (float) random.nextGaussian();
+			cursor.next().set(values[i]);
+		}
+
+		final PercentileNormalizer normalizer = new PercentileNormalizer();
+		normalizer.setup(new float[] { 3.0f, 99.8f }, new float[] { 0, 1 }, true);
+		normalizer.normalize(dataset, ij.op(), ij.dataset());
+
+		// the values the normalizer used before computing them without sorting
+		Util.quicksort(values);
+		final float[] resValues = normalizer.getResValues();
+		assertEquals(values[Math.round((values.length - 1) * 3.0f / 100.f)],
+			resValues[0], 0);
+		assertEquals(values[Math.round((values.length - 1) * 99.8f / 100.f)],
+			resValues[1], 0);
+
+		ij.context().dispose();
+
+	}
+
 	@Test
 	@Ignore
 	public void testPercentileInvertedArrayLong() {
@@ -158,6 +225,29 @@ public class PercentileTest {
 		System.out.println("created histogram");
 	}
 
+	/**
+	 * Compares the percentiles with the values at the same ranks of all values
+	 * sorted, the way {@link HistogramPercentile} computed them before.
+	 */
+	private <T extends RealType<T>> void assertSameAsSorting(final Img<T> img,
+		final float[] percentiles)
+	{
+		final float[] values = new float[(int) img.size()];
+		final Cursor<T> cursor = img.cursor();
+		for (int i = 0; i < values.length; i++) {
+			values[i] = cursor.next().getRealFloat();
+		}
+		Util.quicksort(values);
+		final float[] res = new HistogramPercentile<T>().computePercentiles(img,
+			percentiles, null);
+		for (int i = 0; i < percentiles.length; i++) {
+			final float expected = values[Math.min(values.length - 1, Math.max(0,
+				Math.round((values.length - 1) * percentiles[i] / 100.f)))];
+			assertEquals(Float.floatToIntBits(expected), Float.floatToIntBits(
+				res[i]));
+		}
+	}
+
 	private long mult(long[] dims) {
 		long res = 1;
 		for (int i = 0; i < dims.length; i++) {
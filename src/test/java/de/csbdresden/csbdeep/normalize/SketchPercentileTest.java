@@ -0,0 +1,148 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.csbdeep.normalize;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+
+public class SketchPercentileTest {
+
+	private final float[] percentiles = new float[] { 0, 0.1f, 3, 50, 99.8f,
+		100 };
+
+	@Test
+	public void testFloatWithinRelativeError() {
+		// more than one chunk
+		final Img<FloatType> img = ArrayImgs.floats(2500, 2000);
+		final Random random = new Random(42);
+		for (final FloatType value : img) {
+			value.set((float) (random.nextGaussian() * 100 + 20));
+		}
+		final float[] expected = exactPercentiles(img, percentiles);
+		final float[] res = new SketchPercentile<FloatType>(0.001, 1)
+			.computePercentiles(img, percentiles, null);
+		for (int i = 0; i < percentiles.length; i++) {
+			assertEquals(expected[i], res[i], Math.abs(expected[i]) * 0.001);
+		}
+	}
+
+	@Test
+	public void testWideDynamicRangeWithinRelativeError() {
+		// magnitudes from 1e-6 to 1e6 of both signs and zeros, more than one chunk
+		final Img<FloatType> img = ArrayImgs.floats(2500, 2000);
+		final Random random = new Random(42);
+		for (final FloatType value : img) {
+			final float magnitude = (float) Math.pow(10, random.nextDouble() * 12 -
+				6);
+			final int sign = random.nextInt(5);
+			value.set(sign == 0 ? 0 : sign < 3 ? -magnitude : magnitude);
+		}
+		final float[] percentiles = new float[99];
+		for (int i = 0; i < percentiles.length; i++) {
+			percentiles[i] = i + 1;
+		}
+		final float[] expected = exactPercentiles(img, percentiles);
+		final float[] res = new SketchPercentile<FloatType>(0.001, 1)
+			.computePercentiles(img, percentiles, null);
+		for (int i = 0; i < percentiles.length; i++) {
+			assertEquals(expected[i], res[i], Math.abs(expected[i]) * 0.001);
+		}
+	}
+
+	@Test
+	public void testUnsignedShortIsExact() {
+		final Img<UnsignedShortType> img = ArrayImgs.unsignedShorts(300, 200);
+		final Random random = new Random(42);
+		for (final UnsignedShortType value : img) {
+			value.set(random.nextInt(65536));
+		}
+		final float[] expected = new HistogramPercentile<UnsignedShortType>()
+			.computePercentiles(img, percentiles, null);
+		final float[] res = new SketchPercentile<UnsignedShortType>()
+			.computePercentiles(img, percentiles, null);
+		for (int i = 0; i < percentiles.length; i++) {
+			assertEquals(expected[i], res[i], 0);
+		}
+	}
+
+	@Test
+	public void testSampling() {
+		final Img<FloatType> img = ArrayImgs.floats(1000, 1000);
+		final Random random = new Random(42);
+		for (final FloatType value : img) {
+			value.set(random.nextFloat());
+		}
+		final float[] res = new SketchPercentile<FloatType>(0.001, 7)
+			.computePercentiles(img, new float[] { 3, 50, 99.8f }, null);
+		assertEquals(0.03, res[0], 0.005);
+		assertEquals(0.5, res[1], 0.005);
+		assertEquals(0.998, res[2], 0.005);
+	}
+
+	@Test
+	public void testConstantImage() {
+		final Img<FloatType> img = ArrayImgs.floats(100, 100);
+		for (final FloatType value : img) {
+			value.set(-3.5f);
+		}
+		final float[] res = new SketchPercentile<FloatType>().computePercentiles(
+			img, percentiles, null);
+		for (final float value : res) {
+			assertEquals(-3.5f, value, 0);
+		}
+	}
+
+	private static float[] exactPercentiles(final Img<FloatType> img,
+		final float[] percentiles)
+	{
+		final float[] values = new float[(int) img.size()];
+		final Cursor<FloatType> cursor = img.cursor();
+		for (int i = 0; i < values.length; i++) {
+			values[i] = cursor.next().get();
+		}
+		Arrays.sort(values);
+		final float[] res = new float[percentiles.length];
+		for (int i = 0; i < percentiles.length; i++) {
+			res[i] = values[Math.round((values.length - 1) * percentiles[i] /
+				100.f)];
+		}
+		return res;
+	}
+
+}
@@ -0,0 +1,201 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.csbdeep.tasks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.csbdresden.csbdeep.network.DefaultModelExecutor;
+import de.csbdresden.csbdeep.task.DefaultTask;
+import de.csbdresden.csbdeep.task.Task;
+import de.csbdresden.csbdeep.tiling.AdvancedTiledView;
+import de.csbdresden.csbdeep.tiling.DefaultTiling;
+import de.csbdresden.csbdeep.tiling.TileCache;
+import de.csbdresden.csbdeep.tiling.TileMerger;
+import de.csbdresden.csbdeep.tiling.Tiling;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+public class TileCacheTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final AxisType[] axes = { Axes.X, Axes.Y };
+	private final Tiling.TilingAction[] actions = {
+		Tiling.TilingAction.TILE_WITH_PADDING,
+		Tiling.TilingAction.TILE_WITH_PADDING };
+
+	private static class CountingPseudoNetwork extends PseudoNetwork<FloatType> {
+
+		private final AtomicInteger executions = new AtomicInteger();
+
+		CountingPseudoNetwork(final Task status) {
+			super(status);
+		}
+
+		@Override
+		public RandomAccessibleInterval<FloatType> execute(
+			final RandomAccessibleInterval<FloatType> tile) throws Exception
+		{
+			executions.incrementAndGet();
+			return super.execute(tile);
+		}
+	}
+
+	@Test
+	public void testKeys() {
+		final Img<FloatType> img = createImage(20, 10);
+		final RandomAccessibleInterval<FloatType> left = Views.interval(img,
+			new long[] { 0, 0 }, new long[] { 9, 9 });
+		final Img<FloatType> copy = ArrayImgs.floats(10, 10);
+		final Cursor<FloatType> in = Views.flatIterable(left).cursor();
+		copy.forEach(pixel -> pixel.set(in.next()));
+
+		// the position of a tile does not matter, its content and context do
+		assertEquals(TileCache.key("model", left), TileCache.key("model", copy));
+		assertNotEquals(TileCache.key("model", left), TileCache.key("other",
+			left));
+		copy.firstElement().set(-1);
+		assertNotEquals(TileCache.key("model", left), TileCache.key("model",
+			copy));
+	}
+
+	@Test
+	public void testPutAndGet() throws Exception {
+		final TileCache cache = TileCache.open(folder.getRoot(), 1 << 20, 0);
+		final Img<FloatType> result = createImage(12, 7);
+		assertNull(cache.get("a"));
+		cache.put("a", result);
+		assertEquals(1, cache.size());
+		// nothing is kept on the heap, the result is read from disk
+		assertEquals(0, cache.getHeapBytes());
+		assertEqualValues(result, cache.get("a"));
+
+		cache.setLimits(1 << 20, 1 << 20);
+		assertNotNull(cache.get("a"));
+		assertTrue(cache.getHeapBytes() > 0);
+		cache.clear();
+		assertNull(cache.get("a"));
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		final Img<FloatType> result = createImage(16, 16);
+		final long fileSize = Intervals.numElements(result) * Float.BYTES + 20;
+		final TileCache cache = TileCache.open(folder.getRoot(), 2 * fileSize +
+			fileSize / 2, 0);
+		cache.put("a", result);
+		cache.put("b", result);
+		// using "a" makes "b" the least recently used result
+		assertNotNull(cache.get("a"));
+		cache.put("c", result);
+		assertEquals(2, cache.size());
+		assertTrue(cache.getDiskBytes() <= 2 * fileSize + fileSize / 2);
+		assertNotNull(cache.get("a"));
+		assertNull(cache.get("b"));
+		assertNotNull(cache.get("c"));
+	}
+
+	@Test
+	public void testRerunUsesCache() throws Exception {
+		final Img<FloatType> img = createImage(40, 27);
+		final TileCache cache = TileCache.open(folder.getRoot(), 1 << 24, 1 << 24);
+
+		final CountingPseudoNetwork network = new CountingPseudoNetwork(
+			new DefaultTask());
+		final AdvancedTiledView<FloatType> first = runWithCache(img, cache,
+			network);
+		final long numTiles = Intervals.numElements(first);
+		assertEquals(numTiles, network.executions.get());
+
+		// an edit of one pixel only invalidates the tiles containing it
+		img.firstElement().set(-1);
+		network.executions.set(0);
+		final AdvancedTiledView<FloatType> second = runWithCache(img, cache,
+			network);
+		assertTrue(network.executions.get() > 0);
+		assertTrue(network.executions.get() < numTiles);
+		assertEquals(numTiles, second.getMerger().getWrittenTiles());
+		assertEqualValues(img, second.getMerger().getResult());
+		network.dispose();
+	}
+
+	private AdvancedTiledView<FloatType> runWithCache(final Img<FloatType> img,
+		final TileCache cache, final CountingPseudoNetwork network)
+		throws Exception
+	{
+		final AdvancedTiledView<FloatType> view = new DefaultTiling<FloatType>(6,
+			1, 8, 0).preprocess(img, axes, actions, new DefaultTask());
+		view.setMerger(new TileMerger<>(view, axes));
+		final DefaultModelExecutor<FloatType> executor =
+			new DefaultModelExecutor<>();
+		executor.setTileCache(cache, "model");
+		network.setTilesPerBatch(2);
+		executor.run(Collections.singletonList(view), network);
+		return view;
+	}
+
+	private static Img<FloatType> createImage(final long... dims) {
+		final Img<FloatType> img = ArrayImgs.floats(dims);
+		final Random random = new Random(11);
+		img.forEach(pixel -> pixel.set(random.nextFloat()));
+		return img;
+	}
+
+	private static void assertEqualValues(final Img<FloatType> expected,
+		final Img<FloatType> actual)
+	{
+		assertTrue(Intervals.equalDimensions(expected, actual));
+		final Cursor<FloatType> e = expected.cursor();
+		final Cursor<FloatType> a = actual.cursor();
+		while (e.hasNext()) {
+			assertEquals(e.next().get(), a.next().get(), 0);
+		}
+	}
+
+}
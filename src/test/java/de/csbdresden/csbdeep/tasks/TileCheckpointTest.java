@@ -0,0 +1,237 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.csbdresden.csbdeep.tasks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.csbdresden.csbdeep.task.DefaultTask;
+import de.csbdresden.csbdeep.task.Task;
+import de.csbdresden.csbdeep.tiling.AdvancedTiledView;
+import de.csbdresden.csbdeep.tiling.DefaultTiling;
+import de.csbdresden.csbdeep.tiling.TileCheckpoint;
+import de.csbdresden.csbdeep.tiling.TileMerger;
+import de.csbdresden.csbdeep.tiling.Tiling;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+public class TileCheckpointTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final AxisType[] axes = { Axes.X, Axes.Y };
+	private final Tiling.TilingAction[] actions = {
+		Tiling.TilingAction.TILE_WITH_PADDING,
+		Tiling.TilingAction.TILE_WITH_PADDING };
+
+	private static class CountingPseudoNetwork extends PseudoNetwork<FloatType> {
+
+		private final AtomicInteger executions = new AtomicInteger();
+
+		CountingPseudoNetwork(final Task status) {
+			super(status);
+		}
+
+		@Override
+		public RandomAccessibleInterval<FloatType> execute(
+			final RandomAccessibleInterval<FloatType> tile) throws Exception
+		{
+			executions.incrementAndGet();
+			return super.execute(tile);
+		}
+	}
+
+	@Test
+	public void testSaveAndLoad() throws Exception {
+		final Img<FloatType> img = createImage(12, 7);
+		final AdvancedTiledView<FloatType> view = createView(img);
+		final TileCheckpoint checkpoint = TileCheckpoint.open(folder.getRoot(),
+			"model", TileCheckpoint.fingerprint(img), view, axes);
+		assertTrue(checkpoint.getFinishedTiles().isEmpty());
+		assertTrue(checkpoint.save(3, img));
+		assertEquals(Arrays.asList(3L), checkpoint.getFinishedTiles());
+		assertEqualValues(img, checkpoint.load(3));
+
+		// the same run finds the tile again, a different input does not
+		assertEquals(Arrays.asList(3L), TileCheckpoint.open(folder.getRoot(),
+			"model", TileCheckpoint.fingerprint(img), view, axes)
+			.getFinishedTiles());
+		final Img<FloatType> other = createImage(12, 7);
+		other.firstElement().set(-1);
+		assertNotEquals(TileCheckpoint.fingerprint(img), TileCheckpoint
+			.fingerprint(other));
+		assertTrue(TileCheckpoint.open(folder.getRoot(), "model", TileCheckpoint
+			.fingerprint(other), view, axes).getFinishedTiles().isEmpty());
+
+		checkpoint.delete();
+		assertFalse(checkpoint.getDirectory().exists());
+	}
+
+	@Test
+	public void testDeleteAllTilings() throws Exception {
+		final Img<FloatType> img = createImage(40, 27);
+		final Img<FloatType> other = createImage(40, 27);
+		other.firstElement().set(-1);
+		final File root = folder.getRoot();
+		final String fingerprint = TileCheckpoint.fingerprint(img);
+		final TileCheckpoint coarse = TileCheckpoint.open(root, "model",
+			fingerprint, createView(img), axes);
+		final TileCheckpoint fine = TileCheckpoint.open(root, "model", fingerprint,
+			new DefaultTiling<FloatType>(12, 1, 8, 4).preprocess(img, axes, actions,
+				new DefaultTask()), axes);
+		final TileCheckpoint otherInput = TileCheckpoint.open(root, "model",
+			TileCheckpoint.fingerprint(other), createView(other), axes);
+		assertTrue(coarse.save(0, img));
+		assertNotEquals(coarse.getDirectory(), fine.getDirectory());
+
+		assertEquals(2, TileCheckpoint.deleteAll(root, "model", fingerprint));
+		assertFalse(coarse.getDirectory().exists());
+		assertFalse(fine.getDirectory().exists());
+		assertTrue(otherInput.getDirectory().exists());
+	}
+
+	@Test
+	public void testResumeFromCheckpoint() throws Exception {
+		final Img<FloatType> img = createImage(40, 27);
+		final File root = folder.getRoot();
+		final String fingerprint = TileCheckpoint.fingerprint(img);
+		final DefaultTask status = new DefaultTask();
+
+		// an interrupted run which finished three tiles
+		final AdvancedTiledView<FloatType> first = createView(img);
+		first.setMerger(new TileMerger<>(first, axes));
+		first.getMerger().setCheckpoint(TileCheckpoint.open(root, "model",
+			fingerprint, first, axes));
+		final List<RandomAccessibleInterval<FloatType>> tiles = new ArrayList<>();
+		final Cursor<RandomAccessibleInterval<FloatType>> cursor = Views.iterable(
+			first).cursor();
+		while (cursor.hasNext()) {
+			tiles.add(cursor.next());
+		}
+		for (int i = 0; i < 3; i++) {
+			first.getMerger().write(i, tiles.get(i));
+		}
+
+		// the next run restores them and computes the others
+		final AdvancedTiledView<FloatType> second = createView(img);
+		second.setMerger(new TileMerger<>(second, axes));
+		second.getMerger().setCheckpoint(TileCheckpoint.open(root, "model",
+			fingerprint, second, axes));
+		assertEquals(3, second.getMerger().restoreCheckpoint());
+
+		final CountingPseudoNetwork network = new CountingPseudoNetwork(status);
+		network.setTiledView(second);
+		network.setTilesPerBatch(2);
+		network.resetTileCount();
+		network.call();
+		network.dispose();
+
+		final long numTiles = Intervals.numElements(second);
+		assertEquals(numTiles - 3, network.executions.get());
+		assertEquals(numTiles, second.getMerger().getWrittenTiles());
+		assertEquals(numTiles, status.getCurrentStep());
+		assertEqualValues(img, second.getMerger().getResult());
+	}
+
+	@Test
+	public void testRestoreIntoOtherType() throws Exception {
+		final Img<FloatType> img = createImage(40, 27);
+		final File root = folder.getRoot();
+		final String fingerprint = TileCheckpoint.fingerprint(img);
+
+		final AdvancedTiledView<FloatType> first = createView(img);
+		first.setMerger(new TileMerger<>(first, axes));
+		first.getMerger().setCheckpoint(TileCheckpoint.open(root, "model",
+			fingerprint, first, axes));
+		final RandomAccessibleInterval<FloatType> tile = Views.iterable(first)
+			.firstElement();
+		first.getMerger().write(0, tile);
+
+		final Img<DoubleType> doubles = ArrayImgs.doubles(40, 27);
+		LoopBuilder.setImages(img, doubles).forEachPixel((f, d) -> d.set(f
+			.get()));
+		final AdvancedTiledView<DoubleType> second = new DefaultTiling<DoubleType>(
+			6, 1, 8, 4).preprocess(doubles, axes, actions, new DefaultTask());
+		second.setMerger(new TileMerger<>(second, axes));
+		second.getMerger().setCheckpoint(TileCheckpoint.open(root, "model",
+			fingerprint, second, axes));
+		assertEquals(1, second.getMerger().restoreCheckpoint());
+		final Img<DoubleType> result = second.getMerger().getResult();
+		assertTrue(result.firstElement() instanceof DoubleType);
+		assertEquals(img.firstElement().get(), result.firstElement().get(), 0);
+	}
+
+	private AdvancedTiledView<FloatType> createView(final Img<FloatType> img) {
+		return new DefaultTiling<FloatType>(6, 1, 8, 4).preprocess(img, axes,
+			actions, new DefaultTask());
+	}
+
+	private static Img<FloatType> createImage(final long... dims) {
+		final Img<FloatType> img = ArrayImgs.floats(dims);
+		final Random random = new Random(11);
+		img.forEach(pixel -> pixel.set(random.nextFloat()));
+		return img;
+	}
+
+	private static void assertEqualValues(final Img<FloatType> expected,
+		final Img<FloatType> actual)
+	{
+		assertTrue(Intervals.equalDimensions(expected, actual));
+		final Cursor<FloatType> e = expected.cursor();
+		final Cursor<FloatType> a = actual.cursor();
+		while (e.hasNext()) {
+			assertEquals(e.next().get(), a.next().get(), 0);
+		}
+	}
+
+}
@@ -0,0 +1,158 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.csbdresden.csbdeep.tasks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import de.csbdresden.csbdeep.network.DefaultModelExecutor;
+import de.csbdresden.csbdeep.task.DefaultTask;
+import de.csbdresden.csbdeep.task.Task;
+import de.csbdresden.csbdeep.tiling.AdvancedTiledView;
+import de.csbdresden.csbdeep.tiling.DefaultTiling;
+import de.csbdresden.csbdeep.tiling.TileMerger;
+import de.csbdresden.csbdeep.tiling.TileResplitter;
+import de.csbdresden.csbdeep.tiling.Tiling;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+
+public class TileResplitterTest {
+
+	private final AxisType[] axes = { Axes.X, Axes.Y };
+	private final Tiling.TilingAction[] actions = {
+		Tiling.TilingAction.TILE_WITH_PADDING,
+		Tiling.TilingAction.TILE_WITH_PADDING };
+
+	/**
+	 * Runs out of memory on full size tiles once two of them are done.
+	 */
+	private static class OOMThrowingPseudoNetwork extends
+		PseudoNetwork<FloatType>
+	{
+
+		private final long maxTileSize;
+		private final AtomicInteger largeTiles = new AtomicInteger();
+
+		OOMThrowingPseudoNetwork(final Task status, final long maxTileSize) {
+			super(status);
+			this.maxTileSize = maxTileSize;
+		}
+
+		@Override
+		public RandomAccessibleInterval<FloatType> execute(
+			final RandomAccessibleInterval<FloatType> tile) throws Exception
+		{
+			if (Intervals.numElements(tile) > maxTileSize && largeTiles
+				.getAndIncrement() >= 2)
+			{
+				throw new OutOfMemoryError();
+			}
+			return super.execute(tile);
+		}
+	}
+
+	@Test
+	public void testResumeKeepsFinishedTiles() throws Exception {
+		final Img<FloatType> img = ArrayImgs.floats(64, 48);
+		final Random random = new Random(7);
+		img.forEach(pixel -> pixel.set(random.nextFloat()));
+
+		final DefaultTask status = new DefaultTask();
+		final AdvancedTiledView<FloatType> tiledView = new DefaultTiling<FloatType>(
+			6, 1, 8, 4).preprocess(img, axes, actions, status);
+		tiledView.setMerger(new TileMerger<>(tiledView, axes));
+		final List<AdvancedTiledView<FloatType>> views = Collections.singletonList(
+			tiledView);
+		final long tileSize = Intervals.numElements(tiledView.getTileInterval(0,
+			0));
+		final long numTiles = Intervals.numElements(tiledView);
+
+		final OOMThrowingPseudoNetwork network = new OOMThrowingPseudoNetwork(
+			status, tileSize - 1);
+		network.setPipelineDepth(1);
+		final DefaultModelExecutor<FloatType> executor =
+			new DefaultModelExecutor<>();
+		try {
+			executor.run(views, network);
+			fail("network should run out of memory");
+		}
+		catch (final OutOfMemoryError e) {
+			// expected
+		}
+		final int finished = tiledView.getMerger().getWrittenTiles();
+		assertEquals(2, finished);
+		assertTrue(TileResplitter.canResume(views));
+		assertEquals(numTiles - finished, TileResplitter.countUnfinished(views));
+
+		final TileResplitter<FloatType> resplitter = new TileResplitter<>(8, 4, 1,
+			axes, actions, axes);
+		assertTrue(resplitter.splitFurther());
+		final int largeTilesBefore = network.largeTiles.get();
+		assertSame(views, resplitter.run(views, executor, network));
+		network.dispose();
+
+		// the finished tiles were not computed again
+		assertEquals(largeTilesBefore, network.largeTiles.get());
+		assertEquals(0, TileResplitter.countUnfinished(views));
+		final Img<FloatType> merged = tiledView.getMerger().getResult();
+		assertTrue(Intervals.equals(img, merged));
+		final Cursor<FloatType> expected = img.cursor();
+		final Cursor<FloatType> actual = merged.cursor();
+		while (expected.hasNext()) {
+			assertEquals(expected.next().get(), actual.next().get(), 0);
+		}
+	}
+
+	@Test
+	public void testCannotResumeWithoutMerger() {
+		final AdvancedTiledView<FloatType> tiledView = new DefaultTiling<FloatType>(
+			2, 1, 8, 4).preprocess(ArrayImgs.floats(32, 32), axes, actions,
+				new DefaultTask());
+		assertFalse(TileResplitter.canResume(Collections.singletonList(
+			tiledView)));
+	}
+
+}
@@ -0,0 +1,146 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.csbdresden.csbdeep.tasks;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import de.csbdresden.csbdeep.tiling.MemoryCalibration;
+import de.csbdresden.csbdeep.tiling.Tiling;
+import de.csbdresden.csbdeep.tiling.TilingPlanner;
+import net.imagej.axis.Axes;
+import net.imagej.axis.AxisType;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+
+public class TilingPlannerTest {
+
+	private static final long MB = 1024 * 1024;
+
+	private final List<RandomAccessibleInterval> input = Collections
+		.singletonList(ArrayImgs.floats(512, 512));
+	private final AxisType[] axes = { Axes.X, Axes.Y };
+	private final Tiling.TilingAction[] actions = {
+		Tiling.TilingAction.TILE_WITH_PADDING,
+		Tiling.TilingAction.TILE_WITH_PADDING };
+
+	@Test
+	public void testKeepsTilingWhichFits() {
+		final TilingPlanner planner = new TilingPlanner(32, 32,
+			new MemoryCalibration());
+		final TilingPlanner.Plan plan = planner.plan(input, axes, actions, 1, 1,
+			Long.MAX_VALUE, Long.MAX_VALUE);
+		assertTrue(plan.fits());
+		assertEquals(1, plan.getNTiles());
+		assertEquals(1, plan.getTileCount());
+		assertEquals(512 * 512, plan.getTileVoxels());
+		assertEquals(-1, plan.getEstimatedMillis());
+	}
+
+	@Test
+	public void testSplitsToFitBudget() {
+		final TilingPlanner planner = new TilingPlanner(32, 32,
+			new MemoryCalibration());
+		final long budget = 64 * MB;
+		final TilingPlanner.Plan single = planner.estimate(input, axes, actions,
+			1, 1, budget, budget);
+		assertFalse(single.fits());
+		final TilingPlanner.Plan plan = planner.plan(input, axes, actions, 1, 1,
+			budget, budget);
+		assertTrue(plan.fits());
+		assertTrue(plan.getNTiles() > 1);
+		assertTrue(plan.getPeakBytes() <= budget);
+		assertTrue(plan.getTileVoxels() < single.getTileVoxels());
+	}
+
+	@Test
+	public void testSplitsIfNothingFitsButThePeakDrops() {
+		final TilingPlanner planner = new TilingPlanner(32, 32,
+			new MemoryCalibration());
+		final TilingPlanner.Plan single = planner.estimate(input, axes, actions,
+			1, 1, 1024, 1024);
+		final TilingPlanner.Plan plan = planner.plan(input, axes, actions, 1, 1,
+			1024, 1024);
+		assertFalse(plan.fits());
+		assertTrue(plan.getNTiles() > 1);
+		assertTrue(plan.getPeakBytes() < single.getPeakBytes());
+	}
+
+	@Test
+	public void testKeepsTilingIfTheOutputsExceedTheBudget() {
+		// the merged outputs dominate, splitting hardly lowers the peak
+		final TilingPlanner planner = new TilingPlanner(32, 32,
+			new MemoryCalibration(1e-9, 0));
+		final List<RandomAccessibleInterval> inputs = Collections.nCopies(16,
+			ArrayImgs.floats(512, 512));
+		final TilingPlanner.Plan plan = planner.plan(inputs, axes, actions, 1, 1,
+			1024, 1024);
+		assertFalse(plan.fits());
+		assertEquals(1, plan.getNTiles());
+		assertEquals(1, plan.getBatchSize());
+	}
+
+	@Test
+	public void testCalibration() {
+		final MemoryCalibration calibration = new MemoryCalibration();
+		final TilingPlanner planner = new TilingPlanner(32, 32, calibration);
+		final TilingPlanner.Plan plan = planner.estimate(input, axes, actions, 1,
+			1, Long.MAX_VALUE, Long.MAX_VALUE);
+		calibration.recordRun(plan.getProcessedVoxels(), 1000);
+		assertEquals(1000, planner.estimate(input, axes, actions, 1, 1,
+			Long.MAX_VALUE, Long.MAX_VALUE).getEstimatedMillis(), 1);
+
+		calibration.recordOutOfMemory();
+		assertTrue(planner.estimate(input, axes, actions, 1, 1, Long.MAX_VALUE,
+			Long.MAX_VALUE).getNativeBytes() > plan.getNativeBytes());
+	}
+
+	@Test
+	public void testCalibrationRecoversFromOutOfMemory() {
+		final MemoryCalibration calibration = new MemoryCalibration();
+		for (int i = 0; i < 100; i++) {
+			calibration.recordOutOfMemory();
+		}
+		assertEquals(MemoryCalibration.MAX_NATIVE_BYTES_PER_VOXEL, calibration
+			.getNativeBytesPerVoxel(), 0);
+		for (int i = 0; i < 100; i++) {
+			calibration.recordRun(1000000, 1000);
+		}
+		assertEquals(MemoryCalibration.DEFAULT_NATIVE_BYTES_PER_VOXEL, calibration
+			.getNativeBytesPerVoxel(), 0);
+	}
+
+}
@@ -33,6 +33,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import java.util.Arrays;
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -47,7 +48,10 @@ import net.imagej.Dataset;
 import net.imagej.axis.Axes;
 import net.imagej.axis.AxisType;
 import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.Views;
 
@@ -123,6 +127,40 @@ public class TilingTest extends CSBDeepTest {
 		compareDimensions(input, output);
 	}
 
+	@Test
+	public void testMergedValues() {
+
+		final Tiling tiling = new DefaultTiling(8, 1, 16, 8);
+		final AxisType[] axes = { Axes.X, Axes.Y, Axes.Z };
+		final Tiling.TilingAction[] actions = new Tiling.TilingAction[axes.length];
+		Arrays.fill(actions, Tiling.TilingAction.TILE_WITH_PADDING);
+		final Task task = new DefaultTask();
+
+		final Img<FloatType> input = ArrayImgs.floats(45, 37, 5);
+		final Random random = new Random(1);
+		input.forEach(pixel -> pixel.set(random.nextFloat()));
+
+		final AdvancedTiledView<FloatType> tiledView = tiling.preprocess(input,
+			axes, actions, task);
+		final Cursor<RandomAccessibleInterval<FloatType>> cursor = Views.iterable(
+			tiledView).cursor();
+		while (cursor.hasNext()) {
+			tiledView.getProcessedTiles().add(cursor.next());
+		}
+
+		final RandomAccessibleInterval<FloatType> output = tiling.postprocess(task,
+			tiledView, axes);
+
+		compareDimensions(input, output);
+		final Cursor<FloatType> inputCursor = input.localizingCursor();
+		final RandomAccess<FloatType> outputAccess = output.randomAccess();
+		while (inputCursor.hasNext()) {
+			inputCursor.fwd();
+			outputAccess.setPosition(inputCursor);
+			assertEquals(inputCursor.get().get(), outputAccess.get().get(), 0);
+		}
+	}
+
 	@Test
 	public void testNoTiling() {
 
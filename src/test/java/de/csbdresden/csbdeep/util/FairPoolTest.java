@@ -0,0 +1,119 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.csbdeep.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class FairPoolTest {
+
+	@Test
+	public void testClientsTakeTurns() throws Exception {
+		final FairPool<String> pool = new FairPool<>(Collections.singletonList(
+			"session"));
+		final List<String> served = Collections.synchronizedList(new ArrayList<>());
+		final ExecutorService threads = Executors.newCachedThreadPool();
+		try {
+			final String session = pool.borrow("a");
+			// client a queues three requests before client b queues one
+			final List<Future<?>> requests = new ArrayList<>();
+			for (final String client : Arrays.asList("a", "a", "a", "b")) {
+				final int waiting = pool.getWaiting();
+				requests.add(threads.submit(() -> {
+					final String entry = pool.borrow(client);
+					served.add(client);
+					pool.release(entry);
+					return null;
+				}));
+				while (pool.getWaiting() == waiting) {
+					Thread.sleep(1);
+				}
+			}
+			pool.release(session);
+			for (final Future<?> request : requests) {
+				request.get(10, TimeUnit.SECONDS);
+			}
+		}
+		finally {
+			threads.shutdownNow();
+		}
+		assertEquals(Arrays.asList("a", "b", "a", "a"), served);
+		assertEquals(0, pool.getWaiting());
+	}
+
+	@Test
+	public void testAddServesWaitingClient() throws Exception {
+		final FairPool<String> pool = new FairPool<>(Collections.singletonList(
+			"first"));
+		pool.borrow("a");
+		final ExecutorService threads = Executors.newSingleThreadExecutor();
+		try {
+			final Future<String> request = threads.submit(() -> pool.borrow("b"));
+			while (pool.getWaiting() == 0) {
+				Thread.sleep(1);
+			}
+			pool.add("second");
+			assertEquals("second", request.get(10, TimeUnit.SECONDS));
+			assertEquals(2, pool.size());
+		}
+		finally {
+			threads.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testInterruptedRequestLeavesQueue() throws Exception {
+		final FairPool<String> pool = new FairPool<>(Collections.singletonList(
+			"session"));
+		final String session = pool.borrow("a");
+		final ExecutorService threads = Executors.newSingleThreadExecutor();
+		final Future<String> request = threads.submit(() -> pool.borrow("b"));
+		while (pool.getWaiting() == 0) {
+			Thread.sleep(1);
+		}
+		threads.shutdownNow();
+		assertTrue(threads.awaitTermination(10, TimeUnit.SECONDS));
+		assertTrue(request.isDone());
+		assertEquals(0, pool.getWaiting());
+		pool.release(session);
+		assertEquals("session", pool.borrow("c"));
+	}
+
+}
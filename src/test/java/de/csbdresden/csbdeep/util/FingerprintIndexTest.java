@@ -0,0 +1,119 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.csbdeep.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.csbdresden.csbdeep.commands.GenericCoreNetwork;
+
+public class FingerprintIndexTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testFileFingerprint() throws IOException {
+		final File indexFile = new File(folder.getRoot(), "index.json");
+		final File model = write(folder.newFile("model.zip"), "model");
+		final String md5 = new FingerprintIndex(indexFile).md5(model);
+		assertEquals(DigestUtils.md5Hex("model"), md5);
+		assertTrue(indexFile.exists());
+
+		// a new index reads the stored hash
+		assertEquals(md5, new FingerprintIndex(indexFile).md5(model));
+
+		write(model, "changed");
+		model.setLastModified(model.lastModified() + 2000);
+		assertEquals(DigestUtils.md5Hex("changed"), new FingerprintIndex(indexFile)
+			.md5(model));
+	}
+
+	@Test
+	public void testDirectoryFingerprint() throws IOException {
+		final FingerprintIndex index = new FingerprintIndex(new File(folder
+			.getRoot(), "index.json"));
+		final File dir = folder.newFolder("model");
+		final File pb = write(new File(dir, IOHelper.SAVED_MODEL_FILE), "graph");
+		new File(dir, "variables").mkdir();
+		final File variables = write(new File(dir, "variables/variables.index"),
+			"a");
+		final String md5 = index.md5(dir);
+		assertEquals(md5, index.md5(dir));
+
+		write(variables, "b");
+		variables.setLastModified(variables.lastModified() + 2000);
+		assertNotEquals(md5, index.md5(dir));
+
+		assertEquals(dir, IOHelper.getSavedModelDirectory(dir));
+		assertEquals(dir, IOHelper.getSavedModelDirectory(pb));
+		assertNull(IOHelper.getSavedModelDirectory(variables));
+		assertNull(IOHelper.getSavedModelDirectory(folder.getRoot()));
+	}
+
+	@Test
+	public void testSavedModelFileCoversVariables() throws IOException {
+		final FingerprintIndex index = new FingerprintIndex(new File(folder
+			.getRoot(), "index.json"));
+		final File dir = folder.newFolder("model");
+		final File pb = write(new File(dir, IOHelper.SAVED_MODEL_FILE), "graph");
+		new File(dir, "variables").mkdir();
+		final File variables = write(new File(dir,
+			"variables/variables.data-00000-of-00001"), "weights");
+		final String name = IOHelper.getFileCacheName(GenericCoreNetwork.class, pb,
+			index);
+		assertEquals(name, IOHelper.getFileCacheName(GenericCoreNetwork.class, dir,
+			index));
+
+		// retrained weights, same graph
+		write(variables, "retrained");
+		variables.setLastModified(variables.lastModified() + 2000);
+		assertNotEquals(name, IOHelper.getFileCacheName(GenericCoreNetwork.class,
+			pb, index));
+	}
+
+	private static File write(final File file, final String content)
+		throws IOException
+	{
+		Files.write(file.toPath(), content.getBytes());
+		return file;
+	}
+
+}
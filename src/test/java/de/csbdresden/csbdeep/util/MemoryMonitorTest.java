@@ -0,0 +1,78 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.csbdeep.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+public class MemoryMonitorTest {
+
+	@Test
+	public void testThresholdsStayWhileAMonitorIsOpen() {
+		final List<MemoryPoolMXBean> pools = getWatchedPools();
+		final MemoryMonitor first = new MemoryMonitor(0.9, 0);
+		final MemoryMonitor second = new MemoryMonitor(0.9, 0);
+		first.close();
+		// closing twice does not release the second monitor's thresholds
+		first.close();
+		for (final MemoryPoolMXBean pool : pools) {
+			assertTrue(pool.getCollectionUsageThreshold() > 0);
+		}
+		second.close();
+		for (final MemoryPoolMXBean pool : pools) {
+			assertEquals(0, pool.getCollectionUsageThreshold());
+		}
+	}
+
+	@Test
+	public void testNoPressureAfterReset() {
+		try (MemoryMonitor monitor = new MemoryMonitor(0.9, 0)) {
+			monitor.reset();
+			assertFalse(monitor.isUnderPressure());
+			assertFalse(monitor.wasHeapFull());
+		}
+	}
+
+	private static List<MemoryPoolMXBean> getWatchedPools() {
+		return ManagementFactory.getMemoryPoolMXBeans().stream().filter(
+			pool -> pool.getType() == MemoryType.HEAP && pool
+				.isCollectionUsageThresholdSupported() && pool.getUsage()
+					.getMax() > 0).collect(Collectors.toList());
+	}
+
+}
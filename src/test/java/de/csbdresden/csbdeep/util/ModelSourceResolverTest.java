@@ -0,0 +1,255 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package de.csbdresden.csbdeep.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class ModelSourceResolverTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private HttpServer server;
+	private String url;
+	private volatile byte[] content;
+	private volatile String etag = "\"v1\"";
+	private volatile String checksum = null;
+	// if set, ranges are served from here instead of the requested offset
+	private volatile Integer rangeStart = null;
+	private final List<Headers> requests = Collections.synchronizedList(
+		new ArrayList<>());
+
+	@Before
+	public void startServer() throws IOException {
+		content = new byte[100000];
+		new Random(3).nextBytes(content);
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/models/model.zip", this::handle);
+		server.start();
+		url = "http://127.0.0.1:" + server.getAddress().getPort() +
+			"/models/model.zip";
+	}
+
+	@After
+	public void stopServer() {
+		if (server != null) server.stop(0);
+	}
+
+	/**
+	 * Serves {@link #content} with an ETag, conditional requests and ranges.
+	 */
+	private void handle(final HttpExchange exchange) throws IOException {
+		final Headers request = exchange.getRequestHeaders();
+		requests.add(request);
+		final Headers response = exchange.getResponseHeaders();
+		response.set("ETag", etag);
+		response.set("Last-Modified", "Tue, 15 Nov 1994 08:12:31 GMT");
+		if (checksum != null) response.set("X-Checksum-Sha256", checksum);
+		if (etag.equals(request.getFirst("If-None-Match"))) {
+			exchange.sendResponseHeaders(304, -1);
+			exchange.close();
+			return;
+		}
+		int offset = 0;
+		final String range = request.getFirst("Range");
+		if (range != null && etag.equals(request.getFirst("If-Range"))) {
+			offset = rangeStart != null ? rangeStart : Integer.parseInt(range
+				.replaceAll("bytes=(\\d+)-", "$1"));
+			response.set("Content-Range", "bytes " + offset + "-" +
+				(content.length - 1) + "/" + content.length);
+		}
+		exchange.sendResponseHeaders(offset > 0 ? 206 : 200, content.length -
+			offset);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(content, offset, content.length - offset);
+		}
+	}
+
+	@Test
+	public void testDownloadAndOffline() throws Exception {
+		final ModelSourceResolver resolver = new ModelSourceResolver(folder
+			.getRoot());
+		assertNull(resolver.resolve(url, false));
+		assertTrue(requests.isEmpty());
+
+		final ModelSourceResolver.Resolution downloaded = resolver.resolve(url,
+			true);
+		assertFalse(downloaded.isCached());
+		assertEquals(DigestUtils.sha256Hex(content).substring(0, 16) + "-model.zip",
+			downloaded.getFile().getName());
+		assertArrayEquals(content, Files.readAllBytes(downloaded.getFile()
+			.toPath()));
+		assertEquals(DigestUtils.sha256Hex(content), downloaded.getSha256());
+		assertTrue(downloaded.getLastModified() > 0);
+
+		// without the server, the cached copy is still found
+		server.stop(0);
+		server = null;
+		final ModelSourceResolver offline = new ModelSourceResolver(folder
+			.getRoot());
+		final ModelSourceResolver.Resolution cached = offline.resolve(url, true);
+		assertTrue(cached.isCached());
+		assertEquals(downloaded.getFile(), cached.getFile());
+		assertEquals(downloaded.getLastModified(), cached.getLastModified());
+		assertNotNull(offline.revalidate(url).get());
+	}
+
+	@Test
+	public void testRevalidation() throws Exception {
+		final ModelSourceResolver resolver = new ModelSourceResolver(folder
+			.getRoot());
+		resolver.resolve(url, true);
+		requests.clear();
+
+		// unchanged on the server
+		assertTrue(resolver.revalidate(url).get() != null);
+		assertEquals(1, requests.size());
+		assertEquals("\"v1\"", requests.get(0).getFirst("If-None-Match"));
+		assertArrayEquals(content, Files.readAllBytes(resolver.getCached(url)
+			.getFile().toPath()));
+
+		// a new version replaces the cached copy, the old file stays untouched
+		// for commands still reading it
+		final File old = resolver.getCached(url).getFile();
+		final byte[] original = content;
+		final byte[] update = Arrays.copyOf(content, 5000);
+		content = update;
+		etag = "\"v2\"";
+		final ModelSourceResolver.Resolution revalidated = resolver.revalidateNow(
+			url);
+		assertArrayEquals(update, Files.readAllBytes(revalidated.getFile()
+			.toPath()));
+		assertEquals(update.length, resolver.getCached(url).getFile().length());
+		assertNotEquals(old, revalidated.getFile());
+		assertArrayEquals(original, Files.readAllBytes(old.toPath()));
+	}
+
+	@Test
+	public void testResumeDownload() throws Exception {
+		final File root = folder.getRoot();
+		final ModelSourceResolver resolver = new ModelSourceResolver(root);
+		resolver.resolve(url, true);
+		// turn the complete download into an interrupted one
+		final File dir = resolver.getCached(url).getFile().getParentFile();
+		final File file = resolver.getCached(url).getFile();
+		final File part = new File(dir, "model.zip.part");
+		Files.write(part.toPath(), Arrays.copyOf(content, 30000));
+		file.delete();
+		Files.write(new File(dir, "partial.json").toPath(), ("{\"url\":\"" + url +
+			"\",\"etag\":\"\\\"v1\\\"\"}").getBytes());
+		requests.clear();
+
+		final ModelSourceResolver.Resolution resumed = resolver.resolve(url,
+			true);
+		assertEquals(1, requests.size());
+		assertEquals("bytes=30000-", requests.get(0).getFirst("Range"));
+		assertArrayEquals(content, Files.readAllBytes(resumed.getFile()
+			.toPath()));
+		assertFalse(part.exists());
+	}
+
+	@Test
+	public void testResumeWithWrongRange() throws Exception {
+		final File root = folder.getRoot();
+		final ModelSourceResolver resolver = new ModelSourceResolver(root);
+		resolver.resolve(url, true);
+		final File dir = resolver.getCached(url).getFile().getParentFile();
+		final File part = new File(dir, "model.zip.part");
+		Files.write(part.toPath(), Arrays.copyOf(content, 30000));
+		resolver.getCached(url).getFile().delete();
+		Files.write(new File(dir, "partial.json").toPath(), ("{\"url\":\"" + url +
+			"\",\"etag\":\"\\\"v1\\\"\"}").getBytes());
+		requests.clear();
+
+		// the server answers with a different range, start from scratch
+		rangeStart = 20000;
+		final ModelSourceResolver.Resolution restarted = resolver.resolve(url,
+			true);
+		assertEquals(2, requests.size());
+		assertEquals("bytes=30000-", requests.get(0).getFirst("Range"));
+		assertNull(requests.get(1).getFirst("Range"));
+		assertArrayEquals(content, Files.readAllBytes(restarted.getFile()
+			.toPath()));
+		assertFalse(part.exists());
+	}
+
+	@Test
+	public void testChecksumMismatch() throws Exception {
+		final ModelSourceResolver resolver = new ModelSourceResolver(folder
+			.getRoot());
+		checksum = DigestUtils.sha256Hex("something else");
+		try {
+			resolver.resolve(url, true);
+			fail("download with wrong checksum was accepted");
+		}
+		catch (final IOException e) {
+			assertNull(resolver.getCached(url));
+		}
+		checksum = DigestUtils.sha256Hex(content);
+		assertNotNull(resolver.resolve(url, true));
+		try {
+			resolver.resolve("http://127.0.0.1:" + server.getAddress().getPort() +
+				"/other.zip", true, DigestUtils.sha256Hex(content));
+			fail("missing model was resolved");
+		}
+		catch (final IOException e) {
+			// expected, the server does not know this model
+		}
+	}
+
+}
@@ -0,0 +1,156 @@
+/*-
+ * #%L
+ * CSBDeep: CNNs for image restoration of fluorescence microscopy.
+ * %%
+ * Copyright (C) 2017 - 2020 Deborah Schmidt, Florian Jug, Benjamin Wilhelm
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+
+package de.csbdresden.csbdeep.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SettlingFileQueueTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testFileSettles() throws Exception {
+		final SettlingFileQueue queue = new SettlingFileQueue(4, 100, file -> true);
+		final File file = write("a.tif", "first part");
+		assertTrue(queue.add(file, 0));
+		assertFalse(queue.add(file, 10));
+		assertEquals(0, queue.update(0));
+		assertEquals(0, queue.update(50));
+
+		// the file grows, it has to settle again
+		append(file, ", second part");
+		assertEquals(0, queue.update(80));
+		assertEquals(0, queue.update(150));
+		assertEquals(1, queue.update(180));
+		final SettlingFileQueue.Arrival arrival = queue.take();
+		assertEquals(file, arrival.getFile());
+		assertEquals(0, arrival.getFirstSeen());
+		assertEquals(180, arrival.getCompleted());
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void testEmptyAndRemovedFiles() throws Exception {
+		final SettlingFileQueue queue = new SettlingFileQueue(4, 0, file -> true);
+		final File empty = folder.newFile("empty.tif");
+		final File removed = write("removed.tif", "data");
+		queue.add(empty, 0);
+		queue.add(removed, 0);
+		assertTrue(removed.delete());
+		assertEquals(0, queue.update(100));
+		assertFalse(queue.isEmpty());
+
+		// a file which is still empty is not complete
+		write("empty.tif", "data");
+		assertEquals(1, queue.update(200));
+		assertEquals(empty, queue.take().getFile());
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void testBackPressure() throws Exception {
+		final SettlingFileQueue queue = new SettlingFileQueue(1, 0, file -> true);
+		final File first = write("a.tif", "a");
+		final File second = write("b.tif", "b");
+		queue.add(first, 0);
+		queue.add(second, 0);
+		assertEquals(1, queue.update(0));
+		assertTrue(queue.isFull());
+
+		// the second file stays pending until the consumer took the first
+		assertEquals(0, queue.update(10));
+		assertEquals(first, queue.take().getFile());
+		assertEquals(1, queue.update(20));
+		assertFalse(queue.isFull());
+		assertEquals(second, queue.take().getFile());
+		assertTrue(queue.isEmpty());
+	}
+
+	@Test
+	public void testFilesAreHandedOverOnce() throws Exception {
+		final SettlingFileQueue queue = new SettlingFileQueue(4, 0, file -> file
+			.getName().endsWith(".tif"));
+		final File file = write("a.tif", "a");
+		assertFalse(queue.add(write("a.txt", "a"), 0));
+		queue.add(file, 0);
+		assertEquals(1, queue.update(0));
+		queue.take();
+		assertFalse(queue.add(file, 10));
+
+		// unless the file was written again
+		assertTrue(file.setLastModified(file.lastModified() - 10000));
+		assertTrue(queue.add(file, 20));
+	}
+
+	@Test
+	public void testClose() throws Exception {
+		final SettlingFileQueue queue = new SettlingFileQueue(4, 0, file -> true);
+		queue.add(write("a.tif", "a"), 0);
+		queue.update(0);
+		queue.close(false);
+		assertEquals("a.tif", queue.take().getFile().getName());
+		assertNull(queue.take());
+
+		queue.add(write("b.tif", "b"), 10);
+		queue.update(10);
+		queue.close(true);
+		assertNull(queue.take());
+	}
+
+	private File write(final String name, final String content)
+		throws IOException
+	{
+		final File file = new File(folder.getRoot(), name);
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+
+	private static void append(final File file, final String content)
+		throws IOException
+	{
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8),
+			StandardOpenOption.APPEND);
+	}
+
+}